@@ -1,24 +1,58 @@
 package weka.classifiers.bayes;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Vector;
 import java.lang.Math;
 import java.util.Random;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import weka.classifiers.*;
 import weka.classifiers.RandomizableClassifier;
+import weka.classifiers.bayes.hmm.BatchForwardKernel;
+import weka.classifiers.bayes.hmm.Codebook;
+import weka.classifiers.bayes.hmm.EmissionCache;
+import weka.classifiers.bayes.hmm.GaussianCodebook;
+import weka.classifiers.bayes.hmm.FloatDiscreteHMM;
+import weka.classifiers.bayes.hmm.ForwardPool;
+import weka.classifiers.bayes.hmm.ForwardSteps;
+import weka.classifiers.bayes.hmm.KernelProfile;
+import weka.classifiers.bayes.hmm.KernelTuner;
+import weka.classifiers.bayes.hmm.LaneForward;
+import weka.classifiers.bayes.hmm.ParallelForward;
+import weka.classifiers.bayes.hmm.QuantizedDiscreteHMM;
+import weka.classifiers.bayes.hmm.RunLengthForward;
+import weka.classifiers.bayes.hmm.ScanForward;
+import weka.classifiers.bayes.hmm.ScoringWorkspace;
+import weka.classifiers.bayes.hmm.SmallDiscreteHMM;
+import weka.classifiers.bayes.hmm.SequenceProjection;
+import weka.classifiers.bayes.hmm.TrieForward;
 import weka.clusterers.SimpleKMeans;
 import weka.core.*;
 import weka.core.Capabilities.Capability;
 
 import weka.core.matrix.DoubleVector;
 import weka.core.matrix.Matrix;
+import weka.estimators.AbstractHMMEstimator;
+import weka.estimators.ApproximateMath;
 import weka.estimators.DiscreteHMMEstimator;
 import weka.estimators.HMMEstimator;
 import weka.estimators.MultivariateNormalEstimator;
 import weka.estimators.MultivariateNormalHMMEstimator;
+import weka.estimators.SemiContinuousHMMEstimator;
+import weka.estimators.SharedDiscreteHMMEstimator;
+import weka.estimators.SparseDiscreteHMMEstimator;
+import weka.estimators.UnivariateNormalHMMEstimator;
 
 /*
  * A hidden Markov Model classifier class.
@@ -180,6 +214,640 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		this.m_LeftRight = leftRight;
 	}
 
+	/**
+	 * the type of projection applied to numeric outputs before training.
+	 * PCA projects onto the principal components of the training data,
+	 * RANDOM uses a gaussian random projection which is cheaper to fit.
+	 */
+	public static final Tag [] TAGS_PROJECTION_TYPE = {
+	    new Tag(SequenceProjection.PROJECTION_PCA, "Principal component analysis"),
+	    new Tag(SequenceProjection.PROJECTION_RANDOM, "Gaussian random projection"),
+	};
+	
+	protected int m_ProjectionType = SequenceProjection.PROJECTION_PCA;
+	
+	protected int m_ProjectionDimension = 0;
+	
+	/** the projection fitted to the training data, null if none is used */
+	protected SequenceProjection m_Projection = null;
+	
+	/**
+	 * gets the type of projection applied to numeric outputs
+	 */
+	public SelectedTag getProjectionType() {
+		return new SelectedTag(m_ProjectionType, TAGS_PROJECTION_TYPE);
+	}
+
+	/**
+	 * sets the type of projection applied to numeric outputs
+	 * 
+	 * @param projectionType the projection type (PROJECTION_PCA or PROJECTION_RANDOM)
+	 */
+	public void setProjectionType(SelectedTag projectionType) {
+		if (projectionType.getTags() == TAGS_PROJECTION_TYPE) {
+			m_ProjectionType = projectionType.getSelectedTag().getID();
+		}
+	}
+
+	/**
+	 * gets the number of dimensions numeric outputs are projected to.
+	 * 0 (default) means the outputs are used as they are. 
+	 */
+	public int getProjectionDimension() {
+		return m_ProjectionDimension;
+	}
+
+	/**
+	 * sets the number of dimensions numeric outputs are projected to.
+	 * The cost of gaussian outputs grows with the square of the output 
+	 * dimension (and the cube when fitting full covariances) so projecting
+	 * high dimensional, redundant data can make training and classification
+	 * much faster. The projection is fitted when the classifier is built and is
+	 * applied to all sequences that are classified and mapped back when sampling.
+	 * 
+	 * @param dimension the number of dimensions, 0 for no projection
+	 */
+	public void setProjectionDimension(int dimension) {
+		m_ProjectionDimension = dimension;
+	}
+
+	/** Output Model: a gaussian distribution per state */
+	public static final int OUTPUT_GAUSSIAN = 0;
+	/** Output Model: outputs are vector quantized and modelled by a discrete distribution per state */
+	public static final int OUTPUT_VECTOR_QUANTIZED = 1;
+	/** Output Model: a mixture of gaussians shared by all states and classes */
+	public static final int OUTPUT_SEMI_CONTINUOUS = 2;
+	
+	/**
+	 * the way numeric outputs are modelled. 
+	 * GAUSSIAN models the outputs of each state with a gaussian distribution. 
+	 * VECTOR_QUANTIZED replaces each output by the nearest of a set of codewords 
+	 * learnt by k-means clustering and trains discrete HMMs on the codes. 
+	 * This is much faster to evaluate but less accurate.
+	 * SEMI_CONTINUOUS models the outputs of each state as a mixture of a 
+	 * single pool of gaussians shared by all states and classes, so each 
+	 * output only has to be evaluated once against the pool.
+	 */
+	public static final Tag [] TAGS_OUTPUT_MODEL = {
+	    new Tag(OUTPUT_GAUSSIAN, "Gaussian outputs"),
+	    new Tag(OUTPUT_VECTOR_QUANTIZED, "Vector quantized outputs"),
+	    new Tag(OUTPUT_SEMI_CONTINUOUS, "Semi-continuous outputs"),
+	};
+	
+	protected int m_OutputModel = OUTPUT_GAUSSIAN;
+	
+	protected int m_NumCodewords = 16;
+	
+	/** the vector quantization codebook, null if outputs are not quantized */
+	protected Codebook m_Codebook = null;
+	
+	/** the shared gaussians of semi-continuous outputs, null for other output models */
+	protected GaussianCodebook m_MixtureCodebook = null;
+	
+	/**
+	 * gets the way numeric outputs are modelled
+	 */
+	public SelectedTag getOutputModel() {
+		return new SelectedTag(m_OutputModel, TAGS_OUTPUT_MODEL);
+	}
+
+	/**
+	 * sets the way numeric outputs are modelled
+	 * 
+	 * @param outputModel the output model (OUTPUT_GAUSSIAN, OUTPUT_VECTOR_QUANTIZED or OUTPUT_SEMI_CONTINUOUS)
+	 */
+	public void setOutputModel(SelectedTag outputModel) {
+		if (outputModel.getTags() == TAGS_OUTPUT_MODEL) {
+			m_OutputModel = outputModel.getSelectedTag().getID();
+		}
+	}
+
+	/** Output Initialization: random output distributions */
+	public static final int OUTPUT_INIT_RANDOM = 0;
+	/** Output Initialization: random shares of the output histogram of each class */
+	public static final int OUTPUT_INIT_HISTOGRAM = 1;
+	/** Output Initialization: the output histograms of equal segments of the sequences */
+	public static final int OUTPUT_INIT_SEGMENTAL = 2;
+	
+	/**
+	 * the way the output distributions of discrete HMMs are initialised 
+	 * before EM. RANDOM ignores the data. HISTOGRAM gives each state the
+	 * counts of each output in the sequences of its class, each moved by 
+	 * up to HISTOGRAM_PERTURBATION at random. SEGMENTAL splits every sequence into as many equal 
+	 * segments as there are states and initialises each state with the 
+	 * outputs of its segment, which usually needs the fewest EM steps.
+	 */
+	public static final Tag [] TAGS_OUTPUT_INITIALIZATION = {
+	    new Tag(OUTPUT_INIT_RANDOM, "Random output initialization"),
+	    new Tag(OUTPUT_INIT_HISTOGRAM, "Class histogram output initialization"),
+	    new Tag(OUTPUT_INIT_SEGMENTAL, "Uniform segmentation output initialization"),
+	};
+	
+	protected int m_OutputInitialization = OUTPUT_INIT_RANDOM;
+	
+	/** 
+	 * the largest fraction by which the HISTOGRAM initialization moves
+	 * each count, enough to tell the states apart while the class 
+	 * histogram still dominates 
+	 */
+	public static final double HISTOGRAM_PERTURBATION = 0.1;
+	
+	/**
+	 * gets the way the output distributions of discrete HMMs are initialised
+	 */
+	public SelectedTag getOutputInitialization() {
+		return new SelectedTag(m_OutputInitialization, TAGS_OUTPUT_INITIALIZATION);
+	}
+
+	/**
+	 * sets the way the output distributions of discrete HMMs are initialised
+	 * 
+	 * @param init the initialization (OUTPUT_INIT_RANDOM, OUTPUT_INIT_HISTOGRAM or OUTPUT_INIT_SEGMENTAL)
+	 */
+	public void setOutputInitialization(SelectedTag init) {
+		if (init.getTags() == TAGS_OUTPUT_INITIALIZATION) {
+			m_OutputInitialization = init.getSelectedTag().getID();
+		}
+	}
+
+	/**
+	 * gets the number of codewords used to quantize numeric outputs, 
+	 * which is also the number of shared gaussians of semi-continuous outputs
+	 */
+	public int getNumCodewords() {
+		return m_NumCodewords;
+	}
+
+	/**
+	 * sets the number of codewords used to quantize numeric outputs, 
+	 * which is also the number of shared gaussians of semi-continuous outputs
+	 * 
+	 * @param numCodewords the size of the codebook
+	 */
+	public void setNumCodewords(int numCodewords) {
+		m_NumCodewords = numCodewords;
+	}
+
+	/**
+	 * whether the estimators model discrete outputs, either because the 
+	 * data is nominal or because numeric outputs are quantized
+	 */
+	protected boolean hasDiscreteOutputs() {
+		return !isNumeric() || m_Codebook != null;
+	}
+
+	protected boolean m_SparseOutputs = false;
+	
+	protected double m_OutputSmoothing = 0.01;
+	
+	/**
+	 * gets whether discrete outputs are stored sparsely. 
+	 * Sparse outputs only store the outputs that are seen for each state 
+	 * and are meant for very large alphabets.
+	 */
+	public boolean isSparseOutputs() {
+		return m_SparseOutputs;
+	}
+
+	/**
+	 * sets whether discrete outputs are stored sparsely. 
+	 * Sparse outputs only store the outputs that are seen for each state 
+	 * and are meant for very large alphabets.
+	 * 
+	 * @param sparseOutputs if true the output distributions will be sparse
+	 */
+	public void setSparseOutputs(boolean sparseOutputs) {
+		m_SparseOutputs = sparseOutputs;
+	}
+
+	/**
+	 * gets the count added to every output of every state of sparse 
+	 * outputs, which gives outputs that were not seen in training a 
+	 * small shared probability
+	 */
+	public double getOutputSmoothing() {
+		return m_OutputSmoothing;
+	}
+
+	/**
+	 * sets the count added to every output of every state of sparse 
+	 * outputs, which gives outputs that were not seen in training a 
+	 * small shared probability
+	 * 
+	 * @param outputSmoothing the count
+	 */
+	public void setOutputSmoothing(double outputSmoothing) {
+		m_OutputSmoothing = outputSmoothing;
+	}
+	
+	/** Batch Scoring: a trie of the prefixes of the batch */
+	public static final int BATCH_TRIE = 0;
+	/** Batch Scoring: groups of sequences of similar length run side by side */
+	public static final int BATCH_LANES = 1;
+	
+	/**
+	 * the way discrete HMMs score a batch of sequences in 
+	 * distributionsForInstances. TRIE runs the forward pass once per 
+	 * distinct prefix, which is best when many sequences start the same 
+	 * way. LANES sorts the sequences by length and runs groups of them 
+	 * through the forward pass together, with the forward vectors stored 
+	 * state by state across the group so the inner loops run over 
+	 * sequences, which is best for many short sequences.
+	 */
+	public static final Tag [] TAGS_BATCH_SCORING = {
+	    new Tag(BATCH_TRIE, "Prefix trie"),
+	    new Tag(BATCH_LANES, "Sequences side by side"),
+	};
+	
+	protected int m_BatchScoring = BATCH_TRIE;
+	
+	/**
+	 * gets the way discrete HMMs score batches of sequences
+	 */
+	public SelectedTag getBatchScoring() {
+		return new SelectedTag(m_BatchScoring, TAGS_BATCH_SCORING);
+	}
+
+	/**
+	 * sets the way discrete HMMs score batches of sequences
+	 * 
+	 * @param batchScoring the scoring method (BATCH_TRIE or BATCH_LANES)
+	 */
+	public void setBatchScoring(SelectedTag batchScoring) {
+		if (batchScoring.getTags() == TAGS_BATCH_SCORING) {
+			m_BatchScoring = batchScoring.getSelectedTag().getID();
+		}
+	}
+	
+	protected int m_ScanMinLength = 0;
+	
+	/**
+	 * gets the length from which discrete sequences are scored by
+	 * a parallel scan over chunks of the sequence, 0 (default) for never
+	 */
+	public int getScanMinLength() {
+		return m_ScanMinLength;
+	}
+
+	/**
+	 * sets the length from which discrete sequences are scored by
+	 * a parallel scan over chunks of the sequence. The scan does 
+	 * about N times the work of the normal forward pass, split 
+	 * between the execution slots, so it is only worth it for 
+	 * very long sequences of HMMs with few states.
+	 * 
+	 * @param minLength the shortest sequence to scan, 0 for never
+	 */
+	public void setScanMinLength(int minLength) {
+		m_ScanMinLength = minLength;
+	}
+	
+	/** Scoring Kernel: the usual choice for the model */
+	public static final int SCORING_DEFAULT = 0;
+	/** Scoring Kernel: the forward pass unrolled for few states */
+	public static final int SCORING_UNROLLED = 1;
+	/** Scoring Kernel: the forward pass with runs of a symbol done as matrix powers */
+	public static final int SCORING_RUN_LENGTH = 2;
+	/** Scoring Kernel: the step by step forward pass */
+	public static final int SCORING_STEPWISE = 3;
+	/** Scoring Kernel: the forward pass with each step split between threads */
+	public static final int SCORING_PARALLEL = 4;
+	
+	/**
+	 * the kernels discrete HMMs can score single sequences with, 
+	 * chosen by benchmarking when auto tuning is on
+	 */
+	public static final Tag [] TAGS_SCORING_KERNEL = {
+	    new Tag(SCORING_DEFAULT, "DEFAULT", "Default"),
+	    new Tag(SCORING_UNROLLED, "UNROLLED", "Unrolled for few states"),
+	    new Tag(SCORING_RUN_LENGTH, "RUN_LENGTH", "Runs of symbols as matrix powers"),
+	    new Tag(SCORING_STEPWISE, "STEPWISE", "Step by step"),
+	    new Tag(SCORING_PARALLEL, "PARALLEL", "Steps split between threads"),
+	};
+	
+	/** the kernel single sequences are scored with */
+	protected int m_ScoringKernel = SCORING_DEFAULT;
+	
+	/**
+	 * gets the kernel single sequences are scored with, chosen when 
+	 * the classifier is built if auto tuning is on
+	 */
+	public SelectedTag getScoringKernel() {
+		return new SelectedTag(m_ScoringKernel, TAGS_SCORING_KERNEL);
+	}
+	
+	protected boolean m_AutoTune = false;
+	
+	/**
+	 * gets whether the scoring kernels of discrete HMMs are chosen 
+	 * by benchmarking once the classifier is built
+	 */
+	public boolean isAutoTune() {
+		return m_AutoTune;
+	}
+
+	/**
+	 * sets whether the scoring kernels of discrete HMMs are chosen by
+	 * benchmarking once the classifier is built. The kernel for single 
+	 * sequences and the batch scoring method are each timed on a sample 
+	 * of the training sequences and the fastest is used. The choice is 
+	 * recorded in the tuning profile for the shape of the model and the 
+	 * machine, and read from it rather than benchmarked again next time.
+	 * The batch scoring option is overridden.
+	 * 
+	 * @param autoTune true to choose kernels by benchmarking
+	 */
+	public void setAutoTune(boolean autoTune) {
+		m_AutoTune = autoTune;
+	}
+	
+	protected String m_TuningProfile = "";
+	
+	/**
+	 * gets the file auto tuning records its choices in, empty for 
+	 * hmm-kernels.props in the user's home directory
+	 */
+	public String getTuningProfile() {
+		return m_TuningProfile;
+	}
+
+	/**
+	 * sets the file auto tuning records its choices in
+	 * 
+	 * @param profile the file name, empty for hmm-kernels.props in 
+	 * the user's home directory
+	 */
+	public void setTuningProfile(String profile) {
+		m_TuningProfile = profile;
+	}
+	
+	protected File getTuningProfileFile()
+	{
+		if (m_TuningProfile.length() == 0)
+			return new File(System.getProperty("user.home"), "hmm-kernels.props");
+		return new File(m_TuningProfile);
+	}
+	
+	protected boolean m_DeduplicateSequences = true;
+	
+	/**
+	 * gets whether identical sequences of the same class are merged
+	 * into one weighted sequence before training
+	 */
+	public boolean isDeduplicateSequences() {
+		return m_DeduplicateSequences;
+	}
+
+	/**
+	 * sets whether identical sequences of the same class are merged
+	 * into one weighted sequence before training, so the forward backward
+	 * algorithm only runs once for each distinct sequence in each EM step
+	 * 
+	 * @param deduplicate if true duplicate sequences will be merged
+	 */
+	public void setDeduplicateSequences(boolean deduplicate) {
+		m_DeduplicateSequences = deduplicate;
+	}
+	
+	/** the number of training sequences the last call to buildClassifier merged into others */
+	protected int m_NumMergedSequences = 0;
+	
+	/**
+	 * gets the number of training sequences the last call to 
+	 * buildClassifier merged into identical ones
+	 */
+	public int getNumMergedSequences() {
+		return m_NumMergedSequences;
+	}
+	
+	protected int m_OutputQuantizationBits = 0;
+	
+	/** compact copies of the trained discrete estimators used for classification */
+	protected QuantizedDiscreteHMM m_QuantizedEstimators[] = null;
+	
+	/** 
+	 * copies of the trained discrete estimators with the forward pass
+	 * unrolled for their number of states, used for classification
+	 * when there are few states
+	 */
+	protected SmallDiscreteHMM m_SmallEstimators[] = null;
+	
+	protected boolean m_SinglePrecision = false;
+	
+	/**
+	 * single precision copies of the discrete estimators. During training 
+	 * they are copies of the current estimators, used by the E step, and 
+	 * once training is finished of the trained ones, used for classification
+	 */
+	protected FloatDiscreteHMM m_FloatEstimators[] = null;
+	
+	/**
+	 * gets whether discrete HMMs use single precision tables and forward
+	 * and backward vectors
+	 */
+	public boolean isSinglePrecision() {
+		return m_SinglePrecision;
+	}
+
+	/**
+	 * sets whether discrete HMMs use single precision tables and forward
+	 * and backward vectors, in the E step of training and for 
+	 * classification. This halves the memory the forward backward algorithm 
+	 * reads and writes for long sequences. Each vector is scaled to sum to 
+	 * one before it is stored and sums are taken in double precision, 
+	 * so the error is that of rounding each stored value to float.
+	 * 
+	 * @param singlePrecision true to use single precision
+	 */
+	public void setSinglePrecision(boolean singlePrecision) {
+		m_SinglePrecision = singlePrecision;
+	}
+	
+	protected boolean m_ApproximateMath = false;
+	
+	/**
+	 * gets whether gaussian densities and log likelihoods are evaluated
+	 * with fast approximations of exp and log
+	 */
+	public boolean isApproximateMath() {
+		return m_ApproximateMath;
+	}
+
+	/**
+	 * sets whether gaussian densities and log likelihoods are evaluated
+	 * with the fast approximations of exp and log in ApproximateMath, 
+	 * in training and classification. exp has a relative error below 
+	 * 1.0E-8 and log an absolute error below 1.0E-9, so the log likelihood 
+	 * of a sequence of T frames is off by at most about T*1.0E-8.
+	 * 
+	 * @param approximateMath true to use the approximations
+	 */
+	public void setApproximateMath(boolean approximateMath) {
+		m_ApproximateMath = approximateMath;
+	}
+	
+	protected int m_EmissionCacheSize = 0;
+	
+	/** 
+	 * the cache of the output densities of every state of every class 
+	 * by frame, used for classification if the cache size is not 0 
+	 */
+	protected EmissionCache m_EmissionCache = null;
+	
+	/**
+	 * gets the number of frames whose output densities are cached, 
+	 * 0 (default) for no cache
+	 */
+	public int getEmissionCacheSize() {
+		return m_EmissionCacheSize;
+	}
+
+	/**
+	 * sets the number of frames whose output densities are cached once 
+	 * training is finished. Models with gaussian outputs then look up 
+	 * the densities of all states of all classes for a frame by the bits 
+	 * of its values, and only evaluate them for frames not seen recently. 
+	 * This removes most of the work of classifying quantized or low 
+	 * resolution readings, where the same frames recur many times. The 
+	 * least recently used frame is dropped when the cache is full. 
+	 * Semi-continuous models are not cached, as their frames are already 
+	 * turned into codebook densities once per sequence and a cache would 
+	 * only save multiplying those by the mixture weights. Threads 
+	 * classifying at the same time share the cache and take its lock 
+	 * once per frame, so it may limit how well they scale.
+	 * 
+	 * @param size the number of frames, or 0 for no cache
+	 */
+	public void setEmissionCacheSize(int size) {
+		m_EmissionCacheSize = size;
+	}
+	
+	/**
+	 * gets the fraction of frames whose output densities were found in
+	 * the emission cache since training, 0 if there is no cache or 
+	 * no frames have been looked up
+	 */
+	public double getEmissionCacheHitRate()
+	{
+		return m_EmissionCache == null ? 0.0 : m_EmissionCache.getHitRate();
+	}
+	
+	/**
+	 * builds the emission cache of the trained estimators if the 
+	 * cache size is not 0 and their output densities are evaluated 
+	 * per frame from gaussians, which leaves out semi-continuous models
+	 */
+	protected void buildEmissionCache()
+	{
+		m_EmissionCache = null;
+		if (getEmissionCacheSize() <= 0 || !hasOutputColumns(estimators[0]) || m_MixtureCodebook != null)
+			return;
+		m_EmissionCache = new EmissionCache(getEmissionCacheSize());
+	}
+	
+	/**
+	 * looks up the output densities of each frame of a sequence in the 
+	 * emission cache, evaluating and adding those of frames that are 
+	 * not in it. Each entry holds the densities of the states of class 
+	 * c at c*numStates.
+	 * 
+	 * @param sequence the sequence, as returned by getSequence
+	 * @return the entry of each frame, in the workspace of the calling 
+	 * thread, or null if there is no emission cache
+	 */
+	protected double [][] lookupEmissions(Instances sequence) throws Exception
+	{
+		EmissionCache cache = m_EmissionCache;
+		if (cache == null)
+			return null;
+		int N = m_NumStates;
+		ScoringWorkspace workspace = getWorkspace();
+		EmissionCache.FrameKey key = workspace.getFrameKey();
+		double emissions[][] = workspace.getEmissions(sequence.numInstances());
+		double b[] = workspace.getColumn();
+		DoubleVector output = workspace.getOutput(sequence.numAttributes());
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			key.set(sequence.instance(t));
+			double entry[] = cache.get(key);
+			if (entry == null)
+			{
+				entry = new double[estimators.length*N];
+				for (int c = 0; c < estimators.length; c++)
+				{
+					getOutputColumn(estimators[c], sequence, t, b, output);
+					System.arraycopy(b, 0, entry, c*N, N);
+				}
+				cache.put(key, entry);
+			}
+			emissions[t] = entry;
+		}
+		return emissions;
+	}
+	
+	/**
+	 * gets the number of bits the output probabilities of discrete HMMs 
+	 * are quantized to for classification, 0 (default) for no quantization
+	 */
+	public int getOutputQuantizationBits() {
+		return m_OutputQuantizationBits;
+	}
+
+	/**
+	 * sets the number of bits the output probabilities of discrete HMMs 
+	 * are quantized to for classification. Quantized models are built once 
+	 * training is finished and are 4 (16 bits) or 8 (8 bits) times smaller 
+	 * than the full tables, at the cost of a small error in the likelihoods.
+	 * 
+	 * @param bits 8 or 16, or 0 for no quantization
+	 */
+	public void setOutputQuantizationBits(int bits) {
+		m_OutputQuantizationBits = bits;
+	}
+	
+	/*
+	 * creates an empty discrete HMM estimator, sparse if sparse outputs are used
+	 */
+	protected DiscreteHMMEstimator newDiscreteEstimator()
+	{
+		if (isSparseOutputs())
+		{
+			SparseDiscreteHMMEstimator est = new SparseDiscreteHMMEstimator(getNumStates(), getNumOutputs(), false);
+			est.setSmoothing(getOutputSmoothing());
+			return est;
+		}
+		else
+			return new DiscreteHMMEstimator(getNumStates(), getNumOutputs(), false);
+	}
+
+	protected int m_NumExecutionSlots = 1;
+	
+	/** the thread pool shared by the parallel parts of training */
+	protected transient ExecutorService m_ExecutorPool = null;
+	
+	/** the number of threads in the pool */
+	protected transient int m_NumPoolSlots = 1;
+	
+	/**
+	 * gets the number of threads used for training. 
+	 * 1 (default) means training is done in the calling thread.
+	 */
+	public int getNumExecutionSlots() {
+		return m_NumExecutionSlots;
+	}
+
+	/**
+	 * sets the number of threads used for training.
+	 * When more than one slot is used the parameters of each class and 
+	 * state are recalculated in parallel after every EM iteration. The results
+	 * are the same as with a single slot. 
+	 * 
+	 * @param numSlots the number of threads, 0 uses one per available processor
+	 */
+	public void setNumExecutionSlots(int numSlots) {
+		m_NumExecutionSlots = numSlots;
+	}
+
 	/*
 	 * gets the dimensionality of the HMM outputs (observations)
 	 */
@@ -229,101 +897,523 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 	public void setIterationCutoff(double iterationCutoff) {
 		m_IterationCutoff = iterationCutoff;
 	}
-
-	protected HMMEstimator estimators[];
-
+
+	/** the number of EM steps taken by the last call to buildClassifier */
+	protected int m_NumIterations = 0;
+
+	/**
+	 * gets the number of EM steps taken by the last call to buildClassifier
+	 */
+	public int getNumIterations() {
+		return m_NumIterations;
+	}
+
+	protected HMMEstimator estimators[];
+
+	/**
+	 * gets the number of classes for the HMM classifier. 
+	 * The value is set automatically from the data
+	 */
+	public int getNumClasses()
+	{
+		if (estimators == null)
+			return 0; 
+		else
+			return estimators.length;
+	}
+	
+	/**
+	 * gets the number of hidden states in the HMM
+	 */
+	public int getNumStates() {
+		return m_NumStates;
+	}
+
+	/**
+	 * sets the number of hidden states in the HMM.
+	 * The number of states is the major parameter of an HMM and must be set 
+	 * (it is not learnt from the data).
+	 * 
+	 * @param numStates the number of states to be used
+	 */
+	public void setNumStates(int numStates) {
+		m_NumStates = numStates;
+	}
+	
+	/**
+	 * gets the number distinct output (observation) values for nominal data
+	 * This is set automatically from data.
+	 */
+	public int getNumOutputs()
+	{
+		return m_NumOutputs;
+	}
+	
+	protected void setNumOutputs(int numOutputs)
+	{
+		m_NumOutputs = numOutputs;
+	}
+
+	/**
+	 * sets a step 0 state/output probability
+	 * 
+	 * @param classId the class for which we are setting the probability
+	 * @param state the current state
+	 * @param output the output value
+	 * @param prob the probability value to set it to
+	 */
+	public void setProbability0(int classId, double state, DoubleVector output, double prob) {
+		estimators[classId].addValue0(state, output, prob);
+	}
+
+	/**
+	 * sets a state/output probability
+	 * 
+	 * @param classId the class for which we are setting the probability
+	 * @param prevState the previous state
+	 * @param state the current state
+	 * @param output the output value
+	 * @param prob the probability value to set it to
+	 */
+	public void setProbability(int classId, double prevState, double state, DoubleVector output, double prob) {
+		estimators[classId].addValue(prevState, state, output, prob);
+	}
+	
+	protected double likelihoodFromScales(double scales[])
+	{
+		return likelihoodFromScales(scales, scales.length);
+	}
+	
+	/**
+	 * the log likelihood from the scales of the first length steps,
+	 * for scales kept in a workspace longer than the sequence
+	 */
+	protected double likelihoodFromScales(double scales[], int length)
+	{
+		double lik = 0.0f;
+		if (m_ApproximateMath)
+		{
+			for (int i = 0; i < length; i++)
+				lik += ApproximateMath.log(Math.abs(scales[i]) > 1.0E-32 ? scales[i] : 1.0E-32);
+			return lik;
+		}
+		for (int i = 0; i < length; i++)
+			if (Math.abs((scales[i])) > 1.0E-32)
+				lik += Math.log(scales[i]);
+			else
+				lik += Math.log(1.0E-32);
+		return lik;
+	}
+	
+	/**
+	 * whether the frames of a sequence can be passed to an estimator as
+	 * single values rather than as output vectors
+	 */
+	protected boolean isUnivariate(HMMEstimator hmm, Instances sequence)
+	{
+		return sequence.numAttributes() == 1 && hmm.getOutputDimension() == 1;
+	}
+	
+	/**
+	 * gets the output vector for a time step of a sequence
+	 * 
+	 * @param sequence the sequence
+	 * @param t the time step
+	 * @return the output values of that time step
+	 */
+	protected DoubleVector getOutput(Instances sequence, int t)
+	{
+		return getOutput(sequence, t, new DoubleVector(sequence.numAttributes()));
+	}
+	
+	/**
+	 * copies the output vector for a time step of a sequence into
+	 * an existing vector of the right size
+	 * 
+	 * @return the vector
+	 */
+	protected DoubleVector getOutput(Instances sequence, int t, DoubleVector output)
+	{
+		Instance frame = sequence.instance(t);
+		for (int i = 0; i < frame.numAttributes(); i++)
+			output.set(i, frame.value(i));
+		return output;
+	}
+	
+	/**
+	 * the forward pass of a discrete HMM, reading the normalised 
+	 * probability tables of the estimator directly
+	 */
+	protected double [] forwardDiscrete(DiscreteHMMEstimator hmm, Instances sequence, double alpha[][]) throws Exception
+	{
+		int numWorkers = getNumForwardWorkers();
+		if (numWorkers > 1)
+			return forwardParallel(hmm, sequence, alpha, numWorkers);
+		
+		double scales [] =  new double [sequence.numInstances()];
+		int N = m_NumStates;
+		double pi[] = hmm.getState0Probabilities();
+		double b[] = new double[N];
+		
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			int o = (int)sequence.instance(t).value(0);
+			double cur[] = alpha[t];
+			if (t == 0)
+			{
+				hmm.getOutputColumn(o, cur);
+				for (int s = 0; s < N; s++)
+					cur[s] *= pi[s];
+			}
+			else
+			{
+				ForwardSteps.forwardStep(hmm, o, alpha[t-1], cur, b);
+			}
+			double scale = 0.0;
+			for (int s = 0; s < N; s++)
+				scale += cur[s];
+			scales[t] = scale;
+			// do scaling
+			if (Math.abs(scale) > minScale)
+			{
+				for (int s = 0; s < N; s++)
+					alpha[t][s] /= scale;
+			}
+			else
+			{
+				throw new ProbabilityTooSmallException("time step " + t + " probability " + scale);
+			}
+		}
+		
+		return scales;
+	}
+	
+	/**
+	 * discrete HMMs with at least this many states split each step of the
+	 * forward pass of a sequence between threads
+	 */
+	protected static final int PARALLEL_FORWARD_MIN_STATES = 256;
+	
+	/** the fewest destination states given to each thread of a parallel forward pass */
+	protected static final int MIN_STATES_PER_WORKER = 64;
+	
+	/** the threads that help the calling thread with parallel forward passes */
+	protected transient ForwardPool m_ForwardPool = null;
+	
+	/**
+	 * gets the number of threads a forward pass is split between. Only 
+	 * discrete HMMs with at least PARALLEL_FORWARD_MIN_STATES states are 
+	 * split, and not while training in parallel, which already runs 
+	 * sequences on separate threads.
+	 */
+	protected int getNumForwardWorkers()
+	{
+		if (m_ExecutorPool != null || m_NumStates < PARALLEL_FORWARD_MIN_STATES)
+			return 1;
+		int numSlots = getNumExecutionSlots();
+		if (numSlots == 0)
+			numSlots = Runtime.getRuntime().availableProcessors();
+		return Math.max(1, Math.min(numSlots, m_NumStates/MIN_STATES_PER_WORKER));
+	}
+	
+	/**
+	 * gets the pool of threads for parallel forward passes, which is 
+	 * created once and never replaced while the model is in use
+	 */
+	protected synchronized ForwardPool getForwardPool()
+	{
+		if (m_ForwardPool == null)
+			m_ForwardPool = new ForwardPool();
+		return m_ForwardPool;
+	}
+	
+	/**
+	 * the forward pass of a discrete HMM with each time step split 
+	 * between threads, see ParallelForward
+	 * 
+	 * @param numWorkers the number of threads, including the calling one
+	 */
+	protected double [] forwardParallel(DiscreteHMMEstimator hmm, Instances sequence, 
+			double alpha[][], int numWorkers) throws Exception
+	{
+		double scales[] = new ParallelForward(getForwardPool(), numWorkers).forward(hmm, sequence, alpha);
+		for (int t = 0; t < scales.length; t++)
+			if (Math.abs(scales[t]) <= minScale)
+				throw new ProbabilityTooSmallException("time step " + t + " probability " + scales[t]);
+		return scales;
+	}
+	
+	/**
+	 * gets the number of chunks a long sequence is split into for 
+	 * forwardScan, one per execution slot. As with getNumForwardWorkers
+	 * sequences are not split while training in parallel.
+	 */
+	protected int getNumScanWorkers()
+	{
+		if (m_ExecutorPool != null)
+			return 1;
+		int numSlots = getNumExecutionSlots();
+		if (numSlots == 0)
+			numSlots = Runtime.getRuntime().availableProcessors();
+		return numSlots;
+	}
+	
+	/**
+	 * the log likelihood of a long discrete sequence, computed in 
+	 * parallel over time, see ScanForward
+	 * 
+	 * @param numChunks the number of chunks, and threads, to use
+	 * @return the log likelihood of the sequence, as for forward
+	 */
+	protected double forwardScan(DiscreteHMMEstimator hmm, Instances sequence, 
+			int numChunks) throws Exception
+	{
+		return new ScanForward(getForwardPool(), numChunks).logLikelihood(hmm, sequence, getWorkspace());
+	}
+	
+	/**
+	 * whether the output densities of an estimator can be evaluated
+	 * separately from its transitions, so the forward and backward passes
+	 * evaluate each density once per frame rather than once per transition
+	 */
+	protected boolean hasOutputColumns(HMMEstimator hmm)
+	{
+		return hmm instanceof MultivariateNormalHMMEstimator || hmm instanceof SemiContinuousHMMEstimator;
+	}
+	
+	/**
+	 * gets the output densities of all states for a frame of a sequence,
+	 * for estimators for which hasOutputColumns is true
+	 */
+	protected void getOutputColumn(HMMEstimator hmm, Instances sequence, int t, double b[]) throws Exception
+	{
+		getOutputColumn(hmm, sequence, t, b, null);
+	}
+	
+	/**
+	 * gets the output densities of all states for a frame of a sequence
+	 * 
+	 * @param output a vector to copy multivariate frames into, or null to create one
+	 */
+	protected void getOutputColumn(HMMEstimator hmm, Instances sequence, int t, double b[], DoubleVector output) throws Exception
+	{
+		if (hmm instanceof UnivariateNormalHMMEstimator && sequence.numAttributes() == 1)
+		{
+			UnivariateNormalHMMEstimator est = (UnivariateNormalHMMEstimator)hmm;
+			double value = sequence.instance(t).value(0);
+			for (int s = 0; s < b.length; s++)
+				b[s] = est.getOutputProbability(s, value);
+			return;
+		}
+		
+		output = output == null ? getOutput(sequence, t) : getOutput(sequence, t, output);
+		for (int s = 0; s < b.length; s++)
+		{
+			if (hmm instanceof SemiContinuousHMMEstimator)
+				b[s] = ((SemiContinuousHMMEstimator)hmm).getOutputProbability(s, output);
+			else
+				b[s] = ((MultivariateNormalHMMEstimator)hmm).getOutputProbability(s, output);
+			if (Double.isInfinite(b[s]) || Double.isNaN(b[s]))
+				throw new Exception("Calculated probability is NaN");
+		}
+	}
+	
 	/**
-	 * gets the number of classes for the HMM classifier. 
-	 * The value is set automatically from the data
+	 * the forward pass of an estimator with output columns, a vector
+	 * matrix product with the transitions followed by the densities
 	 */
-	public int getNumClasses()
+	protected double [] forwardColumns(HMMEstimator hmm, Instances sequence, double alpha[][]) throws Exception
 	{
-		if (estimators == null)
-			return 0; 
-		else
-			return estimators.length;
+		return forwardColumns(hmm, sequence, alpha, new double[sequence.numInstances()], new double[m_NumStates], null);
 	}
 	
 	/**
-	 * gets the number of hidden states in the HMM
+	 * the forward pass of an estimator with output columns into 
+	 * existing arrays, which may be longer than the sequence
+	 * 
+	 * @param scales space for the scales
+	 * @param b space for the output densities of a frame
+	 * @param output a vector for multivariate frames, or null to create them
+	 * @return the scales
 	 */
-	public int getNumStates() {
-		return m_NumStates;
+	protected double [] forwardColumns(HMMEstimator hmm, Instances sequence, double alpha[][], 
+			double scales[], double b[], DoubleVector output) throws Exception
+	{
+		return forwardColumns(hmm, sequence, alpha, scales, b, output, null, 0);
 	}
-
+	
 	/**
-	 * sets the number of hidden states in the HMM.
-	 * The number of states is the major parameter of an HMM and must be set 
-	 * (it is not learnt from the data).
+	 * the forward pass of an estimator with output columns, taking the 
+	 * densities of each frame from its emission cache entry if given
 	 * 
-	 * @param numStates the number of states to be used
+	 * @param emissions the emission cache entry of each frame, as 
+	 * returned by lookupEmissions, or null to evaluate the densities
+	 * @param offset the position of the densities of the estimator in 
+	 * each entry
 	 */
-	public void setNumStates(int numStates) {
-		m_NumStates = numStates;
+	protected double [] forwardColumns(HMMEstimator hmm, Instances sequence, double alpha[][], 
+			double scales[], double b[], DoubleVector output, double emissions[][], int offset) throws Exception
+	{
+		int N = m_NumStates;
+		AbstractHMMEstimator est = (AbstractHMMEstimator)hmm;
+		double pi[] = est.getState0Probabilities();
+		double A[] = est.getTransitionProbabilities();
+		
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			if (emissions == null)
+				getOutputColumn(hmm, sequence, t, b, output);
+			else
+				System.arraycopy(emissions[t], offset, b, 0, N);
+			double cur[] = alpha[t];
+			if (t == 0)
+				System.arraycopy(pi, 0, cur, 0, N);
+			else
+				ForwardSteps.vectorTimesMatrix(alpha[t-1], A, cur);
+			double scale = 0.0;
+			for (int s = 0; s < N; s++)
+			{
+				cur[s] *= b[s];
+				scale += cur[s];
+			}
+			scales[t] = scale;
+			if (Math.abs(scale) > minScale)
+			{
+				for (int s = 0; s < N; s++)
+					cur[s] /= scale;
+			}
+			else
+			{
+				throw new ProbabilityTooSmallException("time step " + t + " probability " + scale);
+			}
+		}
+		return scales;
 	}
 	
 	/**
-	 * gets the number distinct output (observation) values for nominal data
-	 * This is set automatically from data.
+	 * the backward pass of an estimator with output columns
 	 */
-	public int getNumOutputs()
+	protected void backwardColumns(HMMEstimator hmm, Instances sequence, double scales[], double beta[][]) throws Exception
 	{
-		return m_NumOutputs;
+		int N = m_NumStates;
+		double A[] = ((AbstractHMMEstimator)hmm).getTransitionProbabilities();
+		double b[] = new double[N];
+		
+		for (int t = sequence.numInstances()-2; t >= 0; t--)
+		{
+			if (Math.abs(scales[t+1]) <= minScale)
+				throw new ProbabilityTooSmallException("time step " + (t+1) + " probability " + scales[t+1]);
+			
+			getOutputColumn(hmm, sequence, t+1, b);
+			for (int ns = 0; ns < N; ns++)
+				b[ns] *= beta[t+1][ns];
+			ForwardSteps.matrixTimesVector(A, b, beta[t]);
+			for (int s = 0; s < N; s++)
+			{
+				beta[t][s] /= scales[t+1];
+				if (Double.isInfinite(beta[t][s]) || Double.isNaN(beta[t][s]))
+					throw new Exception("Scaled Beta is NaN");
+			}
+		}
 	}
 	
-	protected void setNumOutputs(int numOutputs)
+	/**
+	 * whether a sequence is long enough to be split between threads by forwardScan
+	 */
+	protected boolean useForwardScan(Instances sequence)
 	{
-		m_NumOutputs = numOutputs;
+		return m_ScanMinLength > 0 && sequence.numInstances() >= m_ScanMinLength && getNumScanWorkers() > 1;
 	}
-
+	
 	/**
-	 * sets a step 0 state/output probability
-	 * 
-	 * @param classId the class for which we are setting the probability
-	 * @param state the current state
-	 * @param output the output value
-	 * @param prob the probability value to set it to
+	 * whether the unrolled estimators may score a sequence by default. 
+	 * They are only used when neither the scan over time nor the matrix 
+	 * powers of runs of symbols apply to the sequence, as those save 
+	 * more than unrolling does on the sequences they are meant for.
 	 */
-	public void setProbability0(int classId, double state, DoubleVector output, double prob) {
-		estimators[classId].addValue0(state, output, prob);
+	protected boolean useSmallEstimators(Instances sequence)
+	{
+		return m_SmallEstimators != null && !useForwardScan(sequence) && !RunLengthForward.hasLongRuns(sequence);
 	}
-
+	
+	/** the run length kernel, which keeps no state */
+	protected static final RunLengthForward RUN_LENGTH_FORWARD = new RunLengthForward();
+	
 	/**
-	 * sets a state/output probability
-	 * 
-	 * @param classId the class for which we are setting the probability
-	 * @param prevState the previous state
-	 * @param state the current state
-	 * @param output the output value
-	 * @param prob the probability value to set it to
+	 * the log likelihood of a sequence under a discrete HMM, evaluating
+	 * runs of the same symbol with powers of its symbol matrix, see 
+	 * RunLengthForward
 	 */
-	public void setProbability(int classId, double prevState, double state, DoubleVector output, double prob) {
-		estimators[classId].addValue(prevState, state, output, prob);
+	protected double forwardRunLength(DiscreteHMMEstimator hmm, Instances sequence) throws Exception
+	{
+		return RUN_LENGTH_FORWARD.logLikelihood(hmm, sequence, getWorkspace());
 	}
 	
-	protected double likelihoodFromScales(double scales[])
+	/**
+	 * the backward pass of a discrete HMM, reading the normalised 
+	 * probability tables of the estimator directly
+	 */
+	protected void backwardDiscrete(DiscreteHMMEstimator hmm, Instances sequence, double scales[], double beta[][]) throws Exception
 	{
-		double lik = 0.0f;
-		for (int i = 0; i < scales.length; i++)
-			if (Math.abs((scales[i])) > 1.0E-32)
-				lik += Math.log(scales[i]);
+		int N = m_NumStates;
+		double A[] = hmm.getTransitionProbabilities();
+		double b[] = new double[N];
+		
+		for (int t = sequence.numInstances()-2; t >= 0; t--)
+		{
+			if (Math.abs(scales[t+1]) <= minScale)
+				throw new ProbabilityTooSmallException("time step " + (t+1) + " probability " + scales[t+1]);
+			
+			int o = (int)sequence.instance(t+1).value(0);
+			double Mo[] = hmm.getSymbolMatrix(o);
+			double T[];
+			if (Mo != null)
+			{
+				T = Mo;
+				System.arraycopy(beta[t+1], 0, b, 0, N);
+			}
 			else
-				lik += Math.log(1.0E-32);
-		return lik;
+			{
+				// the emission of the next step does not depend on the current state
+				T = A;
+				hmm.getOutputColumn(o, b);
+				for (int ns = 0; ns < N; ns++)
+					b[ns] *= beta[t+1][ns];
+			}
+			ForwardSteps.matrixTimesVector(T, b, beta[t]);
+			for (int s = 0; s < N; s++)
+			{
+				beta[t][s] /= scales[t+1];
+				if (Double.isInfinite(beta[t][s]) || Double.isNaN(beta[t][s]))
+					throw new Exception("Scaled Beta is NaN");
+			}
+		}
 	}
 	
 	protected double [] forward(HMMEstimator hmm, Instances sequence, double alpha[][]) throws Exception
 	{
+		if (hmm instanceof DiscreteHMMEstimator)
+			return forwardDiscrete((DiscreteHMMEstimator)hmm, sequence, alpha);
+		if (hasOutputColumns(hmm))
+			return forwardColumns(hmm, sequence, alpha);
+		
 		double scales [] =  new double [sequence.numInstances()];
 		
+		// univariate outputs are passed as plain values
+		// to avoid creating an output vector per frame
+		boolean univariate = isUnivariate(hmm, sequence);
+		
 		// initial time step
 		scales[0] = 0.0f;
-		DoubleVector output = new DoubleVector(sequence.instance(0).numAttributes());
-		for (int i = 0; i < sequence.instance(0).numAttributes(); i++)
-			output.set(i, sequence.instance(0).value(i));
+		DoubleVector output = null;
+		if (!univariate)
+			output = getOutput(sequence, 0);
 		for (int s = 0; s < m_NumStates; s++)
 		{
-			alpha[0][s] = hmm.getProbability0(s, output);
+			if (univariate)
+				alpha[0][s] = hmm.getProbability0(s, sequence.instance(0).value(0));
+			else
+				alpha[0][s] = hmm.getProbability0(s, output);
 			scales[0] += alpha[0][s];
 		}
 		
@@ -341,9 +1431,9 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		// the rest of the sequence
 		for (int t = 1; t < sequence.numInstances(); t++)
 		{
-			output = new DoubleVector(sequence.instance(t).numAttributes());
-			for (int i = 0; i < sequence.instance(t).numAttributes(); i++)
-				output.set(i, sequence.instance(t).value(i));
+			double value = sequence.instance(t).value(0);
+			if (!univariate)
+				output = getOutput(sequence, t);
 			//System.out.println(output);
 			scales[t] = 0.0f;
 			for (int s = 0; s < m_NumStates; s++)
@@ -351,7 +1441,10 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 				alpha[t][s] = 0.0f;
 				for (int ps = 0; ps < m_NumStates; ps++)
 				{
-					alpha[t][s] += alpha[t-1][ps]*hmm.getProbability(ps, s, output);
+					if (univariate)
+						alpha[t][s] += alpha[t-1][ps]*hmm.getProbability(ps, s, value);
+					else
+						alpha[t][s] += alpha[t-1][ps]*hmm.getProbability(ps, s, output);
 				}
 				scales[t] += alpha[t][s];
 			}
@@ -379,6 +1472,38 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 	 */
 	protected double forward(HMMEstimator hmm, Instances sequence) throws Exception
 	{
+		return forward(hmm, sequence, null, 0);
+	}
+	
+	/**
+	 * evaluate the forward algorithm on a particular sequence
+	 * 
+	 * @param emissions the emission cache entry of each frame, as 
+	 * returned by lookupEmissions, or null to evaluate the densities
+	 * @param offset the position of the densities of the estimator in 
+	 * each entry
+	 * @return the likelihood of the sequence
+	 */
+	protected double forward(HMMEstimator hmm, Instances sequence, double emissions[][], int offset) throws Exception
+	{
+		if (hmm instanceof DiscreteHMMEstimator)
+		{
+			if (useForwardScan(sequence))
+				return forwardScan((DiscreteHMMEstimator)hmm, sequence, getNumScanWorkers());
+			int numWorkers = getNumForwardWorkers();
+			if (numWorkers > 1)
+				return likelihoodFromScales(forwardParallel((DiscreteHMMEstimator)hmm, sequence, 
+						new double[sequence.numInstances()][m_NumStates], numWorkers));
+			return forwardRunLength((DiscreteHMMEstimator)hmm, sequence);
+		}
+		if (hasOutputColumns(hmm))
+		{
+			int T = sequence.numInstances();
+			ScoringWorkspace workspace = getWorkspace();
+			double scales[] = forwardColumns(hmm, sequence, workspace.getAlpha(T), workspace.getScales(T), 
+					workspace.getColumn(), workspace.getOutput(sequence.numAttributes()), emissions, offset);
+			return likelihoodFromScales(scales, T);
+		}
 		double alpha[][] = new double[sequence.numInstances()][m_NumStates];
 		double scales[] = forward(hmm, sequence, alpha);
 		return likelihoodFromScales(scales);
@@ -398,17 +1523,33 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		}
 		
 		// backward through the rest of the sequence
+		if (hmm instanceof DiscreteHMMEstimator)
+		{
+			backwardDiscrete((DiscreteHMMEstimator)hmm, sequence, scales, beta);
+			return scales;
+		}
+		if (hasOutputColumns(hmm))
+		{
+			backwardColumns(hmm, sequence, scales, beta);
+			return scales;
+		}
+		boolean univariate = isUnivariate(hmm, sequence);
 		for (int t = sequence.numInstances()-2; t >= 0; t--)
 		{
+			double value = sequence.instance(t+1).value(0);
+			DoubleVector output = null;
+			if (!univariate)
+				output = getOutput(sequence, t+1);
 			for (int s = 0; s < getNumStates(); s++)
 			{
 				beta[t][s] = 0.0f;
 				for (int ns = 0; ns < getNumStates(); ns++)
 				{
-					DoubleVector output = new DoubleVector(sequence.instance(t+1).numAttributes());
-					for (int i = 0; i < sequence.instance(t+1).numAttributes(); i++)
-						output.set(i, sequence.instance(t+1).value(i));
-					double p = hmm.getProbability(s, ns, output);
+					double p;
+					if (univariate)
+						p = hmm.getProbability(s, ns, value);
+					else
+						p = hmm.getProbability(s, ns, output);
 					beta[t][s] += beta[t+1][ns]*p;
 					if (Double.isInfinite(beta[t][s]) || Double.isNaN(beta[t][s]))
 						throw new Exception("Unscaled Beta is NaN");
@@ -440,6 +1581,25 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		return likelihoodFromScales(scales);
 	}
 	
+	/**
+	 * gets the sequence of an instance as it is seen by the estimators, 
+	 * i.e. after any projection or quantization of the outputs
+	 * 
+	 * @param instance the data instance
+	 * @return the sequence
+	 */
+	protected Instances getSequence(Instance instance)
+	{
+		Instances sequence = instance.relationalValue(m_SeqAttr);
+		if (m_Projection != null)
+			sequence = m_Projection.transform(sequence);
+		if (m_Codebook != null)
+			sequence = m_Codebook.transform(sequence);
+		if (m_MixtureCodebook != null)
+			sequence = m_MixtureCodebook.transform(sequence);
+		return sequence;
+	}
+	
 	/**
 	 * evaluate the state occupancy probabilities for a particular sequence
 	 * 
@@ -449,7 +1609,7 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 	 */
 	public double [][] probabilitiesForInstance(int classId, weka.core.Instance instance) throws Exception 
 	{
-		Instances sequence = instance.relationalValue(m_SeqAttr);
+		Instances sequence = getSequence(instance);
 		double alpha[][] = new double[sequence.numInstances()][m_NumStates];
 		double beta[][] = new double[sequence.numInstances()][m_NumStates];
 		double gamma[][] = new double[sequence.numInstances()][m_NumStates];
@@ -507,17 +1667,12 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		}
 		else
 		{
-			Instances seq = instance.relationalValue(m_SeqAttr);
+			Instances seq = getSequence(instance);
+			boolean small = useSmallEstimators(seq);
+			double emissions[][] = lookupEmissions(seq);
 			for (int j = 0; j < estimators.length; j++)
 			{
-				try
-				{
-					result[j] = Math.exp(forward(estimators[j], seq));
-				}
-				catch (ProbabilityTooSmallException e)
-				{
-					result[j] = 0;
-				}
+				result[j] = Math.exp(scoreSequence(j, seq, m_ScoringKernel, small, emissions));
 				sum += result[j];
 			};
 		}
@@ -530,6 +1685,149 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		return result;
 	}
 
+	/**
+	 * the log likelihood of a sequence under the HMM of a class
+	 * 
+	 * @param classId the class
+	 * @param seq the sequence, as returned by getSequence
+	 * @param kernel the kernel to score with, SCORING_DEFAULT to use
+	 * quantized, single precision or unrolled estimators if there are any 
+	 * and the forward pass otherwise
+	 * @return the log likelihood, or negative infinity if the sequence is 
+	 * too unlikely to evaluate
+	 */
+	protected double scoreSequence(int classId, Instances seq, int kernel) throws Exception
+	{
+		return scoreSequence(classId, seq, kernel, useSmallEstimators(seq), lookupEmissions(seq));
+	}
+	
+	/**
+	 * the log likelihood of a sequence under the HMM of a class
+	 * 
+	 * @param small whether SCORING_DEFAULT may use the unrolled 
+	 * estimators, as given by useSmallEstimators for the sequence
+	 * @param emissions the emission cache entry of each frame, as 
+	 * returned by lookupEmissions for the sequence
+	 */
+	protected double scoreSequence(int classId, Instances seq, int kernel, boolean small, 
+			double emissions[][]) throws Exception
+	{
+		try
+		{
+			switch (kernel)
+			{
+				case SCORING_UNROLLED:
+					return m_SmallEstimators[classId].logLikelihood(seq);
+				case SCORING_RUN_LENGTH:
+					return forwardRunLength((DiscreteHMMEstimator)estimators[classId], seq);
+				case SCORING_STEPWISE:
+				{
+					int T = seq.numInstances();
+					double scales[] = forwardDiscrete((DiscreteHMMEstimator)estimators[classId], seq, 
+							getWorkspace().getAlpha(T));
+					return likelihoodFromScales(scales);
+				}
+				case SCORING_PARALLEL:
+				{
+					int T = seq.numInstances();
+					double scales[] = forwardParallel((DiscreteHMMEstimator)estimators[classId], seq, 
+							getWorkspace().getAlpha(T), getNumForwardWorkers());
+					return likelihoodFromScales(scales);
+				}
+			}
+			
+			if (m_QuantizedEstimators != null)
+			{
+				ScoringWorkspace workspace = getWorkspace();
+				return m_QuantizedEstimators[classId].logLikelihood(seq, 
+						workspace.getVector(), workspace.getNext(), workspace.getColumn());
+			}
+			if (m_FloatEstimators != null)
+			{
+				ScoringWorkspace workspace = getWorkspace();
+				return m_FloatEstimators[classId].logLikelihood(seq, 
+						workspace.getFloatVector(), workspace.getNext());
+			}
+			if (small)
+				return m_SmallEstimators[classId].logLikelihood(seq);
+			return forward(estimators[classId], seq, emissions, classId*m_NumStates);
+		}
+		catch (ProbabilityTooSmallException e)
+		{
+			return Double.NEGATIVE_INFINITY;
+		}
+	}
+	
+	/**
+	 * discrete HMMs score batches of sequences with a trie of their prefixes
+	 */
+	@Override
+	public boolean implementsMoreEfficientBatchPrediction() {
+		return true;
+	}
+	
+	/**
+	 * gets the kernel that scores a batch of sequences one of the batch 
+	 * scoring ways. Sparse estimators have no dense output table for the 
+	 * side by side pass, so always use the trie.
+	 * 
+	 * @param sequences the batch
+	 * @param batchScoring BATCH_TRIE or BATCH_LANES
+	 */
+	protected BatchForwardKernel getBatchKernel(Instances sequences[], int batchScoring)
+	{
+		if (batchScoring == BATCH_LANES && ((DiscreteHMMEstimator)estimators[0]).hasDenseOutputTable())
+			return new LaneForward(sequences);
+		return new TrieForward(sequences, getNumOutputs());
+	}
+	
+	/**
+	 * gets the class probabilities of a batch of sequences. Discrete
+	 * HMMs score the batch either with a trie of the prefixes of the 
+	 * sequences (see TrieForward) or by running groups of sequences of 
+	 * similar length side by side (see LaneForward), as set by the batch
+	 * scoring option. Other models, and discrete models that classify 
+	 * with quantized or single precision estimators or with a kernel 
+	 * chosen by tuning, score each sequence separately so the results 
+	 * are those of distributionForInstance.
+	 * 
+	 * @param insts the sequences
+	 * @return the probabilities of each class for each sequence
+	 */
+	@Override
+	public double[][] distributionsForInstances(Instances insts) throws Exception {
+		if (estimators == null || m_SeqAttr < 0 || m_QuantizedEstimators != null
+				|| m_FloatEstimators != null || m_ScoringKernel != SCORING_DEFAULT
+				|| !(estimators[0] instanceof DiscreteHMMEstimator))
+			return super.distributionsForInstances(insts);
+		
+		Instances sequences[] = new Instances[insts.numInstances()];
+		for (int i = 0; i < insts.numInstances(); i++)
+			sequences[i] = getSequence(insts.instance(i));
+		BatchForwardKernel kernel = getBatchKernel(sequences, m_BatchScoring);
+		
+		double result[][] = new double[insts.numInstances()][estimators.length];
+		for (int j = 0; j < estimators.length; j++)
+		{
+			double lik[] = kernel.logLikelihoods((DiscreteHMMEstimator)estimators[j]);
+			for (int i = 0; i < insts.numInstances(); i++)
+				result[i][j] = Math.exp(lik[i]);
+		}
+		
+		for (int i = 0; i < insts.numInstances(); i++)
+		{
+			double sum = 0.0;
+			for (int j = 0; j < estimators.length; j++)
+				sum += result[i][j];
+			if (Math.abs(sum) > 0.0000001)
+			{
+				for (int j = 0; j < estimators.length; j++)
+					result[i][j] /= sum;
+			}
+		}
+		return result;
+	}
+
 	@Override
 	protected Object clone() throws CloneNotSupportedException {
 		return super.clone();
@@ -570,6 +1868,79 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		if (isTied()) options.add("-D");
 		if (isLeftRight()) options.add("-L");
 		if (isRandomStateInitializers()) options.add("-R");
+		if (getOutputQuantizationBits() > 0)
+		{
+			options.add("-quantize-outputs");
+			options.add("" + getOutputQuantizationBits());
+		}
+		if (!isDeduplicateSequences()) options.add("-no-dedup");
+		if (isSinglePrecision()) options.add("-single-precision");
+		if (isApproximateMath()) options.add("-approximate-math");
+		if (getEmissionCacheSize() > 0)
+		{
+			options.add("-emission-cache");
+			options.add("" + getEmissionCacheSize());
+		}
+		if (isSparseOutputs())
+		{
+			options.add("-sparse-outputs");
+			options.add("-smoothing");
+			options.add("" + getOutputSmoothing());
+		}
+		
+		if (getProjectionDimension() > 0)
+		{
+			options.add("-P");
+			options.add("" + getProjectionDimension());
+			options.add("-projection");
+			options.add(m_ProjectionType == SequenceProjection.PROJECTION_PCA ? "PCA" : "RANDOM");
+		}
+		
+		options.add("-output-model");
+		switch (m_OutputModel)
+		{
+			case OUTPUT_GAUSSIAN:
+				options.add("GAUSSIAN");
+				break;
+			case OUTPUT_VECTOR_QUANTIZED:
+				options.add("VQ");
+				break;
+			case OUTPUT_SEMI_CONTINUOUS:
+				options.add("SEMI_CONTINUOUS");
+				break;
+		}
+		options.add("-K");
+		options.add("" + getNumCodewords());
+		
+		options.add("-output-init");
+		switch (m_OutputInitialization)
+		{
+			case OUTPUT_INIT_RANDOM:
+				options.add("RANDOM");
+				break;
+			case OUTPUT_INIT_HISTOGRAM:
+				options.add("HISTOGRAM");
+				break;
+			case OUTPUT_INIT_SEGMENTAL:
+				options.add("SEGMENTAL");
+				break;
+		}
+		
+		options.add("-batch-scoring");
+		options.add(m_BatchScoring == BATCH_LANES ? "LANES" : "TRIE");
+		
+		options.add("-scan-length");
+		options.add("" + getScanMinLength());
+		
+		if (isAutoTune()) options.add("-autotune");
+		if (getTuningProfile().length() > 0)
+		{
+			options.add("-tuning-profile");
+			options.add(getTuningProfile());
+		}
+		
+		options.add("-num-slots");
+		options.add("" + getNumExecutionSlots());
 
     Collections.addAll(options, super.getOptions());
 	
@@ -601,14 +1972,100 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 				"D", 0,"-D"));
 
 		newVector.addElement(
-			new Option("\tLeft Right: whether the state transitions are constrained\n"
-				+"\tto go only to the next state in numerical order ",
-				"L", 0,"-L"));
+			new Option("\tLeft Right: whether the state transitions are constrained\n"
+				+"\tto go only to the next state in numerical order ",
+				"L", 0,"-L"));
+
+		newVector.addElement(
+			new Option("\tRandom Initialisation: whether the state transition probabilities are intialized randomly\n"
+				+"\t(if this is false they are initialised by performing a k-means clustering on the data) ",
+				"R", 0,"-R"));
+
+		newVector.addElement(
+			new Option("\tNo Deduplication: do not merge identical sequences of the same class\n"
+				+"\tinto one weighted sequence before training ",
+				"no-dedup", 0,"-no-dedup"));
+
+		newVector.addElement(
+			new Option("\tSparse Outputs: whether discrete output distributions only store\n"
+				+"\tthe outputs seen for each state, for very large numbers of outputs ",
+				"sparse-outputs", 0,"-sparse-outputs"));
+
+		newVector.addElement(
+			new Option("\tSmoothing: the count added to every output of sparse output distributions ",
+				"smoothing", 1,"-smoothing <count>"));
+
+		newVector.addElement(
+			new Option("\tQuantize Outputs: the number of bits (8 or 16) the output probabilities\n"
+				+"\tof discrete HMMs are quantized to for classification (default no quantization) ",
+				"quantize-outputs", 1,"-quantize-outputs <bits>"));
+
+		newVector.addElement(
+			new Option("\tSingle Precision: discrete HMMs keep their forward and backward vectors\n"
+				+"\tand a copy of their tables as floats in training and classification ",
+				"single-precision", 0,"-single-precision"));
+
+		newVector.addElement(
+			new Option("\tApproximate Math: gaussian densities and log likelihoods use fast\n"
+				+"\tapproximations of exp and log (relative error below 1e-8) ",
+				"approximate-math", 0,"-approximate-math"));
+
+		newVector.addElement(
+			new Option("\tEmission Cache: the number of recent frames whose gaussian densities\n"
+				+"\tare cached for each class in classification (default 0, no cache) ",
+				"emission-cache", 1,"-emission-cache <frames>"));
+
+		newVector.addElement(
+			new Option("\tProjection: the number of dimensions numeric outputs are projected to\n"
+				+"\tbefore training (default 0, no projection) ",
+				"P", 1,"-P <num>"));
+
+		newVector.addElement(
+			new Option("\tProjection Type: whether outputs are projected onto their\n"
+				+"\tprincipal components (PCA) or a random subspace (RANDOM) ",
+				"projection", 1,"-projection <PCA|RANDOM>"));
+
+		newVector.addElement(
+			new Option("\tOutput Model: whether numeric outputs are modelled by gaussians (GAUSSIAN)\n"
+				+"\tor quantized with a k-means codebook and modelled as discrete values (VQ)\n"
+				+"\tor modelled by mixtures of gaussians shared by all states (SEMI_CONTINUOUS) ",
+				"output-model", 1,"-output-model <GAUSSIAN|VQ|SEMI_CONTINUOUS>"));
+
+		newVector.addElement(
+			new Option("\tCodewords: the number of codewords used to quantize numeric outputs\n"
+				+"\tor the number of shared gaussians of semi-continuous outputs ",
+				"K", 1,"-K <num>"));
+
+		newVector.addElement(
+			new Option("\tOutput Initialization: whether the outputs of discrete HMMs are initialised\n"
+				+"\trandomly (RANDOM), from the slightly perturbed output histogram of each class (HISTOGRAM)\n"
+				+"\tor from the outputs of equal segments of the sequences (SEGMENTAL) ",
+				"output-init", 1,"-output-init <RANDOM|HISTOGRAM|SEGMENTAL>"));
+
+		newVector.addElement(
+			new Option("\tBatch Scoring: whether batches of sequences are scored with a trie\n"
+				+"\tof their prefixes (TRIE) or in groups of similar length side by side (LANES) ",
+				"batch-scoring", 1,"-batch-scoring <TRIE|LANES>"));
+
+		newVector.addElement(
+			new Option("\tScan Length: discrete sequences at least this long are scored by a\n"
+				+"\tparallel scan over chunks of the sequence (default 0, never) ",
+				"scan-length", 1,"-scan-length <num>"));
+
+		newVector.addElement(
+			new Option("\tAuto Tune: choose the scoring kernels of discrete HMMs by\n"
+				+"\tbenchmarking them once the classifier is built ",
+				"autotune", 0,"-autotune"));
 
 		newVector.addElement(
-			new Option("\tRandom Initialisation: whether the state transition probabilities are intialized randomly\n"
-				+"\t(if this is false they are initialised by performing a k-means clustering on the data) ",
-				"R", 0,"-R"));
+			new Option("\tTuning Profile: the file auto tuning records its choices in\n"
+				+"\t(default hmm-kernels.props in the home directory) ",
+				"tuning-profile", 1,"-tuning-profile <file>"));
+
+		newVector.addElement(
+			new Option("\tNumber of execution slots: the number of threads used in training\n"
+				+"\t(default 1, 0 uses one thread per processor) ",
+				"num-slots", 1,"-num-slots <num>"));
 	    
 		return newVector.elements();
 	}
@@ -642,6 +2099,85 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 	    
 		if (Utils.getFlag('R', options))
 			setRandomStateInitializers(true);
+		
+		setDeduplicateSequences(!Utils.getFlag("no-dedup", options));
+		
+		setSinglePrecision(Utils.getFlag("single-precision", options));
+		
+		setApproximateMath(Utils.getFlag("approximate-math", options));
+		
+		String cacheString = Utils.getOption("emission-cache", options);
+		if (cacheString.length() != 0)
+			setEmissionCacheSize(Integer.parseInt(cacheString));
+		
+		setSparseOutputs(Utils.getFlag("sparse-outputs", options));
+		
+		String quantizeString = Utils.getOption("quantize-outputs", options);
+		if (quantizeString.length() != 0)
+			setOutputQuantizationBits(Integer.parseInt(quantizeString));
+		
+		String smoothingString = Utils.getOption("smoothing", options);
+		if (smoothingString.length() != 0)
+			setOutputSmoothing(Double.parseDouble(smoothingString));
+		
+		String projectionString = Utils.getOption('P', options);
+		if (projectionString.length() != 0)
+			setProjectionDimension(Integer.parseInt(projectionString));
+		
+		String projectionTypeString = Utils.getOption("projection", options);
+		if (projectionTypeString.length() != 0)
+		{
+			if (projectionTypeString.equals("PCA"))
+				setProjectionType(new SelectedTag(SequenceProjection.PROJECTION_PCA, TAGS_PROJECTION_TYPE));
+			if (projectionTypeString.equals("RANDOM"))
+				setProjectionType(new SelectedTag(SequenceProjection.PROJECTION_RANDOM, TAGS_PROJECTION_TYPE));
+		}
+		
+		String outputModelString = Utils.getOption("output-model", options);
+		if (outputModelString.length() != 0)
+		{
+			if (outputModelString.equals("GAUSSIAN"))
+				setOutputModel(new SelectedTag(OUTPUT_GAUSSIAN, TAGS_OUTPUT_MODEL));
+			if (outputModelString.equals("VQ"))
+				setOutputModel(new SelectedTag(OUTPUT_VECTOR_QUANTIZED, TAGS_OUTPUT_MODEL));
+			if (outputModelString.equals("SEMI_CONTINUOUS"))
+				setOutputModel(new SelectedTag(OUTPUT_SEMI_CONTINUOUS, TAGS_OUTPUT_MODEL));
+		}
+		
+		String codewordsString = Utils.getOption('K', options);
+		if (codewordsString.length() != 0)
+			setNumCodewords(Integer.parseInt(codewordsString));
+		
+		String outputInitString = Utils.getOption("output-init", options);
+		if (outputInitString.length() != 0)
+		{
+			if (outputInitString.equals("RANDOM"))
+				setOutputInitialization(new SelectedTag(OUTPUT_INIT_RANDOM, TAGS_OUTPUT_INITIALIZATION));
+			if (outputInitString.equals("HISTOGRAM"))
+				setOutputInitialization(new SelectedTag(OUTPUT_INIT_HISTOGRAM, TAGS_OUTPUT_INITIALIZATION));
+			if (outputInitString.equals("SEGMENTAL"))
+				setOutputInitialization(new SelectedTag(OUTPUT_INIT_SEGMENTAL, TAGS_OUTPUT_INITIALIZATION));
+		}
+		
+		String batchString = Utils.getOption("batch-scoring", options);
+		if (batchString.length() != 0)
+		{
+			if (batchString.equals("TRIE"))
+				setBatchScoring(new SelectedTag(BATCH_TRIE, TAGS_BATCH_SCORING));
+			if (batchString.equals("LANES"))
+				setBatchScoring(new SelectedTag(BATCH_LANES, TAGS_BATCH_SCORING));
+		}
+		
+		String scanString = Utils.getOption("scan-length", options);
+		if (scanString.length() != 0)
+			setScanMinLength(Integer.parseInt(scanString));
+		
+		setAutoTune(Utils.getFlag("autotune", options));
+		setTuningProfile(Utils.getOption("tuning-profile", options));
+		
+		String slotsString = Utils.getOption("num-slots", options);
+		if (slotsString.length() != 0)
+			setNumExecutionSlots(Integer.parseInt(slotsString));
 
     super.setOptions(options);
 	    
@@ -682,132 +2218,500 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		return result;
 	}
 	  
-	protected double EMStep(Instances data) throws Exception
+	/**
+	 * the largest amount of memory, in bytes, that the private accumulators
+	 * of the E step workers may take before they share one set instead
+	 */
+	public static final long MAX_PRIVATE_ACCUMULATOR_BYTES = 256L << 20;
+	
+	/*
+	 * creates the estimators that will store the new
+	 * distributions for an EM step
+	 */
+	protected HMMEstimator [] createEMEstimators(int numClasses) throws Exception
 	{
-		double lik = 0.0f;
-		boolean hasUpdated = false;
-		
-		// set up new estimators that will store the new
-		// distributions for this step
-		HMMEstimator newEstimators[] = new HMMEstimator[data.numClasses()];
-		for (int i = 0; i < data.numClasses(); i++)
+		HMMEstimator newEstimators[] = new HMMEstimator[numClasses];
+		for (int i = 0; i < numClasses; i++)
 		{
-			if (isNumeric())
+			if (m_MixtureCodebook != null)
+			{
+				SemiContinuousHMMEstimator est = new SemiContinuousHMMEstimator(getNumStates(), m_MixtureCodebook.getNumComponents(), false);
+				est.copyOutputParameters((SemiContinuousHMMEstimator)estimators[i]);
+				newEstimators[i]= est;
+			}
+			else if (!hasDiscreteOutputs())
 			{
-				MultivariateNormalHMMEstimator est =new MultivariateNormalHMMEstimator(getNumStates(), false);
+				MultivariateNormalHMMEstimator est = newNormalEstimator();
 				est.copyOutputParameters((MultivariateNormalHMMEstimator)estimators[i]);
 				newEstimators[i]= est;
 			}
 			else
 			{
-				newEstimators[i] = new DiscreteHMMEstimator(getNumStates(), getNumOutputs(), false);
+				newEstimators[i] = newDiscreteEstimator();
 			}
 		}
+		return newEstimators;
+	}
+	
+	/**
+	 * decides whether the workers of a parallel E step add their counts
+	 * to one shared set of discrete estimators, rather than each keeping
+	 * a private set that is merged at the end. Private accumulators are
+	 * used unless they would take more than MAX_PRIVATE_ACCUMULATOR_BYTES.
+	 * Sparse estimators always use private accumulators.
+	 * 
+	 * @param numClasses the number of classes
+	 * @param numWorkers the number of workers in the E step
+	 */
+	protected boolean useSharedAccumulators(int numClasses, int numWorkers)
+	{
+		if (isSparseOutputs())
+			return false;
+		long N = getNumStates();
+		long perEstimator = (N*N + 2*N + N*getNumOutputs())*8;
+		return numWorkers*numClasses*perEstimator > MAX_PRIVATE_ACCUMULATOR_BYTES;
+	}
+	
+	/**
+	 * the number of copies of the output counts kept by shared 
+	 * accumulators: as many as fit in MAX_PRIVATE_ACCUMULATOR_BYTES, 
+	 * up to one per worker, and at least one
+	 * 
+	 * @param numClasses the number of classes
+	 * @param numWorkers the number of workers in the E step
+	 */
+	protected int getNumOutputStripes(int numClasses, int numWorkers)
+	{
+		long outputBytes = (long)numClasses*getNumStates()*getNumOutputs()*8;
+		long stripes = MAX_PRIVATE_ACCUMULATOR_BYTES/Math.max(1, outputBytes);
+		return (int)Math.max(1, Math.min(numWorkers, stripes));
+	}
+	
+	/**
+	 * the E step for one sequence: runs the forward backward algorithm 
+	 * with the current estimator and adds the expected counts to the new one
+	 * 
+	 * @param hmm the current estimator of the sequence's class
+	 * @param sequence the sequence
+	 * @param newEstimator the estimator that accumulates the counts
+	 * @param weight the weight of the sequence, which scales its counts
+	 * @return the weighted log likelihood of the sequence, or NaN if it is 
+	 * too unlikely to be used
+	 */
+	protected double expectation(HMMEstimator hmm, Instances sequence, HMMEstimator newEstimator, double weight) throws Exception
+	{
+		if (m_FloatEstimators != null)
+			for (int c = 0; c < m_FloatEstimators.length; c++)
+				if (estimators[c] == hmm)
+					return expectationFloat(m_FloatEstimators[c], sequence, newEstimator, weight);
 		
-		int numS0 = 0;
-		int numS1 = 0;
-		for (int i = 0; i < data.numInstances(); i++)
+		double alpha[][] = new double[sequence.numInstances()][m_NumStates];
+		double beta[][] = new double[sequence.numInstances()][m_NumStates];
+		
+		double scales [];
+		try
 		{
-			Instance inst = data.instance(i);
-			
-			// skip if the relevant values are missing
-			if (inst.isMissing(m_SeqAttr) || inst.classIsMissing())
-				continue;
-			
-			// e step
-			Instances sequence = inst.relationalValue(m_SeqAttr);
-			double alpha[][] = new double[sequence.numInstances()][m_NumStates];
-			double beta[][] = new double[sequence.numInstances()][m_NumStates];
-			
-			int classNum = (int) inst.value(data.classIndex());
-			
-			//System.out.println("****** class " + classNum + " *******");
-			HMMEstimator hmm = estimators[classNum];
+			scales = forwardBackward(hmm, sequence, alpha, beta);
+		}
+		catch (ProbabilityTooSmallException e)
+		{
+			return Double.NaN;
+		}
+		double lik = this.likelihoodFromScales(scales);
+		
+		boolean univariate = isUnivariate(hmm, sequence);
+		double sumGamma = 0.0;
+		double value = sequence.instance(0).value(0);
+		DoubleVector output = null;
+		if (!univariate)
+			output = getOutput(sequence, 0);
+
+		double gamma[][] = new double[getNumStates()][getNumStates()];
+		for (int s = 0; s < getNumStates(); s++)
+		{
+			gamma[0][s] = alpha[0][s]*beta[0][s];
+			sumGamma += gamma[0][s];
 			
-			double scales [];
-			try
-			{
-				scales = forwardBackward(hmm, sequence, alpha, beta);
-			}
-			catch (ProbabilityTooSmallException e)
+		}
+		for (int s = 0; s < getNumStates(); s++)
+		{
+			if (sumGamma > minScale)
 			{
-				continue;
+				if (univariate)
+					newEstimator.addValue0(s, value, weight*gamma[0][s]/sumGamma);
+				else
+					newEstimator.addValue0(s, output, weight*gamma[0][s]/sumGamma);
 			}
-			double PX = this.likelihoodFromScales(scales);
-			lik += PX;
-			PX = Math.exp(PX);
 			
-			// m step
-			double sumGamma = 0.0;
-			DoubleVector output = new DoubleVector(sequence.instance(0).numAttributes());
-			for (int a = 0; a < sequence.instance(0).numAttributes(); a++)
-				output.set(a, sequence.instance(0).value(a));
-
-			double gamma[][] = new double[getNumStates()][getNumStates()];
+			if (Double.isInfinite(gamma[0][s]) || Double.isNaN(gamma[0][s]))
+				throw new Exception("Output of the forward backward algorithm gives a NaN");
+		}
+	
+		for (int t = 1; t < sequence.numInstances(); t++)
+		{
+			sumGamma = 0.0;
+			value = sequence.instance(t).value(0);
+			if (!univariate)
+				output = getOutput(sequence, t);
 			for (int s = 0; s < getNumStates(); s++)
-			{
-				gamma[0][s] = alpha[0][s]*beta[0][s];
-				sumGamma += gamma[0][s];
-				
-			}
+				for (int ps = 0; ps < getNumStates(); ps++)
+				{
+					double p;
+					if (univariate)
+						p = hmm.getProbability(ps, s, value);
+					else
+						p = hmm.getProbability(ps, s, output);
+					gamma[ps][s] = alpha[t-1][ps]*p*beta[t][s]*scales[t];
+					sumGamma += gamma[ps][s];
+				}
 			for (int s = 0; s < getNumStates(); s++)
+				for (int ps = 0; ps < getNumStates(); ps++)
+				{
+					if (sumGamma > minScale)
+					{
+						if (univariate)
+							newEstimator.addValue(ps, s, value, weight*gamma[ps][s]/sumGamma);
+						else
+							newEstimator.addValue(ps, s, output, weight*gamma[ps][s]/sumGamma);
+					}
+					
+					// check for undefined numerical values
+					if (Double.isInfinite(gamma[ps][s]) || Double.isNaN(gamma[ps][s]))
+						throw new Exception("Output of the forward backward algorithm gives a NaN");
+					
+				}
+		}
+		return weight*lik;
+	}
+	
+	/**
+	 * the E step of one sequence for a discrete HMM in single precision.
+	 * The forward and backward vectors are each scaled to sum to one, 
+	 * so the transition and state posteriors of each step are normalised 
+	 * by their own sums rather than by the likelihood.
+	 * 
+	 * @param hmm the single precision copy of the current estimator
+	 * @param sequence the sequence
+	 * @param newEstimator the estimator that accumulates the counts
+	 * @param weight the weight of the sequence
+	 * @return the weighted log likelihood of the sequence, or NaN if it
+	 * is too unlikely to evaluate
+	 */
+	protected double expectationFloat(FloatDiscreteHMM hmm, Instances sequence, HMMEstimator newEstimator, double weight) throws Exception
+	{
+		int N = m_NumStates;
+		int T = sequence.numInstances();
+		float alpha[][] = new float[T][N];
+		float beta[][] = new float[T][N];
+		double scales[] = hmm.forward(sequence, alpha);
+		if (scales == null)
+			return Double.NaN;
+		hmm.backward(sequence, beta);
+		double lik = likelihoodFromScales(scales);
+		
+		float A[] = hmm.getTransitionTable();
+		float B[] = hmm.getOutputTable();
+		double gamma[] = new double[N*N];
+		
+		double value = sequence.instance(0).value(0);
+		double sumGamma = 0.0;
+		for (int s = 0; s < N; s++)
+		{
+			gamma[s] = (double)alpha[0][s]*beta[0][s];
+			sumGamma += gamma[s];
+		}
+		if (Double.isInfinite(sumGamma) || Double.isNaN(sumGamma))
+			throw new Exception("Output of the forward backward algorithm gives a NaN");
+		if (sumGamma > minScale)
+			for (int s = 0; s < N; s++)
+				newEstimator.addValue0(s, value, weight*gamma[s]/sumGamma);
+		
+		for (int t = 1; t < T; t++)
+		{
+			value = sequence.instance(t).value(0);
+			int base = (int)value*N;
+			float prev[] = alpha[t-1];
+			float cur[] = beta[t];
+			sumGamma = 0.0;
+			for (int ps = 0; ps < N; ps++)
 			{
-				if (sumGamma > minScale)
-					newEstimators[classNum].addValue0(s, output, gamma[0][s]/sumGamma);
-				
-				if (Double.isInfinite(gamma[0][s]) || Double.isNaN(gamma[0][s]))
-					throw new Exception("Output of the forward backward algorithm gives a NaN");
+				int row = ps*N;
+				double a = prev[ps];
+				for (int s = 0; s < N; s++)
+				{
+					gamma[row + s] = a*A[row + s]*B[base + s]*cur[s];
+					sumGamma += gamma[row + s];
+				}
 			}
+			if (Double.isInfinite(sumGamma) || Double.isNaN(sumGamma))
+				throw new Exception("Output of the forward backward algorithm gives a NaN");
+			if (sumGamma > minScale)
+				for (int s = 0; s < N; s++)
+					for (int ps = 0; ps < N; ps++)
+						newEstimator.addValue(ps, s, value, weight*gamma[ps*N + s]/sumGamma);
+		}
+		return weight*lik;
+	}
+	
+	/**
+	 * the E step for discrete outputs, run on the thread pool with one
+	 * worker for each execution slot, each taking a contiguous block of
+	 * the sequences. The workers either count into private estimators,
+	 * which are added to the new estimators in a fixed order at the end,
+	 * or, for models too large to copy for every worker, each count into
+	 * their own stripe of shared estimators which replace the new estimators.
+	 * 
+	 * @param data the training data
+	 * @param newEstimators the estimators that accumulate the counts, 
+	 * one per class
+	 * @return the log likelihood of the data, or NaN if no sequence 
+	 * could be used
+	 */
+	protected double parallelExpectation(final Instances data, HMMEstimator newEstimators[]) throws Exception
+	{
+		final int numClasses = data.numClasses();
+		int numWorkers = Math.max(1, Math.min(m_NumPoolSlots, data.numInstances()));
+		boolean shared = useSharedAccumulators(numClasses, numWorkers);
+		
+		// the parameters are normalised before the workers read them
+		for (int c = 0; c < numClasses; c++)
+			estimators[c].calculateParameters();
 		
-			for (int t = 1; t < sequence.numInstances(); t++)
+		final HMMEstimator workerEstimators[][] = new HMMEstimator[numWorkers][];
+		if (shared)
+		{
+			int numOutputStripes = getNumOutputStripes(numClasses, numWorkers);
+			for (int c = 0; c < numClasses; c++)
+				newEstimators[c] = new SharedDiscreteHMMEstimator(getNumStates(), getNumOutputs(), 
+						numWorkers, numOutputStripes);
+			// each worker adds to its own stripe of the counts
+			for (int w = 0; w < numWorkers; w++)
 			{
-				sumGamma = 0.0;
-				output = new DoubleVector(sequence.instance(t).numAttributes());
-				for (int a = 0; a < sequence.instance(t).numAttributes(); a++)
-					output.set(a, sequence.instance(t).value(a));
-				for (int s = 0; s < getNumStates(); s++)
-					for (int ps = 0; ps < getNumStates(); ps++)
-					{
-						gamma[ps][s] = alpha[t-1][ps]*hmm.getProbability(ps, s, output)*beta[t][s]*scales[t];
-						sumGamma += gamma[ps][s];
-					}
-				for (int s = 0; s < getNumStates(); s++)
-					for (int ps = 0; ps < getNumStates(); ps++)
+				workerEstimators[w] = new HMMEstimator[numClasses];
+				for (int c = 0; c < numClasses; c++)
+					workerEstimators[w][c] = ((SharedDiscreteHMMEstimator)newEstimators[c]).getStripe(w);
+			}
+		}
+		else
+		{
+			for (int w = 0; w < numWorkers; w++)
+			{
+				workerEstimators[w] = new HMMEstimator[numClasses];
+				for (int c = 0; c < numClasses; c++)
+					workerEstimators[w][c] = newDiscreteEstimator();
+			}
+		}
+		
+		final double liks[] = new double[numWorkers];
+		final boolean updated[] = new boolean[numWorkers];
+		int blockSize = (data.numInstances() + numWorkers - 1)/numWorkers;
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int w = 0; w < numWorkers; w++)
+		{
+			final int worker = w;
+			final int first = w*blockSize;
+			final int last = Math.min(data.numInstances(), first + blockSize);
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int i = first; i < last; i++)
 					{
-						if (sumGamma > minScale)
-						{
-							if (classNum == 0 && s == 1 && gamma[ps][s]/sumGamma > 0.01)
-							{
-								//System.out.println(classNum + " " + s + " " + output + " " + gamma[ps][s]/sumGamma);
-								numS1 += 1;
-							}
-							if (classNum == 0 && s == 0 && gamma[ps][s]/sumGamma > 0.01)
-							{
-								numS0 += 1;
-							}
-							newEstimators[classNum].addValue(ps, s, output, gamma[ps][s]/sumGamma);
-						}
-						
-						// check for undefined numerical values
-						if (Double.isInfinite(gamma[ps][s]) || Double.isNaN(gamma[ps][s]))
-							throw new Exception("Output of the forward backward algorithm gives a NaN");
+						Instance inst = data.instance(i);
+						if (inst.isMissing(m_SeqAttr) || inst.classIsMissing())
+							continue;
 						
+						int classNum = (int) inst.value(data.classIndex());
+						double PX = expectation(estimators[classNum], inst.relationalValue(m_SeqAttr), 
+								workerEstimators[worker][classNum], inst.weight());
+						if (Double.isNaN(PX))
+							continue;
+						liks[worker] += PX;
+						updated[worker] = true;
 					}
+					return null;
+				}
+			});
+		}
+		runTasks(tasks);
+		
+		double lik = 0.0;
+		boolean hasUpdated = false;
+		for (int w = 0; w < numWorkers; w++)
+		{
+			lik += liks[w];
+			hasUpdated |= updated[w];
+			if (!shared)
+				for (int c = 0; c < numClasses; c++)
+					((DiscreteHMMEstimator)newEstimators[c]).addStatistics((DiscreteHMMEstimator)workerEstimators[w][c]);
+		}
+		return hasUpdated ? lik : Double.NaN;
+	}
+	
+	protected double EMStep(Instances data) throws Exception
+	{
+		double lik = 0.0f;
+		boolean hasUpdated = false;
+		
+		HMMEstimator newEstimators[] = createEMEstimators(data.numClasses());
+		buildFloatEstimators();
+		
+		if (m_ExecutorPool != null && hasDiscreteOutputs() && m_MixtureCodebook == null)
+		{
+			lik = parallelExpectation(data, newEstimators);
+			hasUpdated = !Double.isNaN(lik);
+		}
+		else
+		{
+			for (int i = 0; i < data.numInstances(); i++)
+			{
+				Instance inst = data.instance(i);
+				
+				// skip if the relevant values are missing
+				if (inst.isMissing(m_SeqAttr) || inst.classIsMissing())
+					continue;
+				
+				int classNum = (int) inst.value(data.classIndex());
+				double PX = expectation(estimators[classNum], inst.relationalValue(m_SeqAttr), newEstimators[classNum], inst.weight());
+				if (Double.isNaN(PX))
+					continue;
+				lik += PX;
+				hasUpdated = true;
 			}
-			hasUpdated = true;
 		}
-		System.out.println("S0 " + numS0 + " S1 " + numS1);
 		System.out.println(newEstimators[0]);
 		// update the estimators
 		if (hasUpdated)
 		{
 			estimators = newEstimators;
-			for (int i = 0; i < estimators.length; i++)
-				estimators[i].calculateParameters();
+			calculateParameters(estimators);
 		}
 		else
 			throw new Exception("Failed to update on EM step");
-		return lik/data.numInstances();
+		return lik/data.sumOfWeights();
+	}
+	/**
+	 * starts the thread pool used in training if more than one
+	 * execution slot is requested
+	 */
+	protected void startExecutorPool()
+	{
+		if (m_ExecutorPool != null)
+			m_ExecutorPool.shutdownNow();
+		m_ExecutorPool = null;
+		
+		int numSlots = getNumExecutionSlots();
+		if (numSlots == 0)
+			numSlots = Runtime.getRuntime().availableProcessors();
+		if (numSlots > 1)
+			m_ExecutorPool = Executors.newFixedThreadPool(numSlots);
+		m_NumPoolSlots = numSlots;
+	}
+	
+	protected void stopExecutorPool()
+	{
+		if (m_ExecutorPool != null)
+			m_ExecutorPool.shutdown();
+		m_ExecutorPool = null;
+	}
+	
+	/**
+	 * runs a list of tasks on the thread pool and waits for all of them
+	 * to finish, rethrowing the first exception raised by a task
+	 */
+	protected void runTasks(List<Callable<Void>> tasks) throws Exception
+	{
+		if (m_ExecutorPool == null)
+		{
+			for (Callable<Void> task : tasks)
+				task.call();
+			return;
+		}
+		
+		List<Future<Void>> results = m_ExecutorPool.invokeAll(tasks);
+		for (Future<Void> result : results)
+		{
+			try
+			{
+				result.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (e.getCause() instanceof Exception)
+					throw (Exception)e.getCause();
+				throw e;
+			}
+		}
+	}
+	
+	/**
+	 * recalculates the parameters of all estimators from their sufficient 
+	 * statistics (the M step of EM). The gaussian outputs of each class and
+	 * state are calculated as separate tasks on the thread pool. Each task 
+	 * only writes to its own state and tied covariances are pooled in a fixed
+	 * order so the results do not depend on the number of threads.
+	 * 
+	 * @param ests the estimators to update
+	 */
+	protected void calculateParameters(final HMMEstimator ests[]) throws Exception
+	{
+		if (m_ExecutorPool == null)
+		{
+			for (int i = 0; i < ests.length; i++)
+				ests[i].calculateParameters();
+			return;
+		}
+		
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int i = 0; i < ests.length; i++)
+		{
+			final HMMEstimator est = ests[i];
+			if (est instanceof MultivariateNormalHMMEstimator)
+			{
+				for (int s = 0; s < getNumStates(); s++)
+				{
+					final int state = s;
+					tasks.add(new Callable<Void>() {
+						public Void call() throws Exception {
+							((MultivariateNormalHMMEstimator)est).calculateOutputParameters(state);
+							return null;
+						}
+					});
+				}
+			}
+			else
+			{
+				tasks.add(new Callable<Void>() {
+					public Void call() throws Exception {
+						est.calculateParameters();
+						return null;
+					}
+				});
+			}
+		}
+		runTasks(tasks);
+		
+		// tied covariances need the pooled variance before
+		// the derived parameters can be calculated
+		tasks.clear();
+		for (int i = 0; i < ests.length; i++)
+		{
+			if (ests[i] instanceof MultivariateNormalHMMEstimator 
+					&& ((MultivariateNormalHMMEstimator)ests[i]).isTied())
+			{
+				final MultivariateNormalHMMEstimator est = (MultivariateNormalHMMEstimator)ests[i];
+				est.calculateTiedVariance();
+				for (int s = 0; s < getNumStates(); s++)
+				{
+					final int state = s;
+					tasks.add(new Callable<Void>() {
+						public Void call() throws Exception {
+							est.calculateDerivedOutputParameters(state);
+							return null;
+						}
+					});
+				}
+			}
+		}
+		runTasks(tasks);
 	}
 	
 	/*
@@ -818,10 +2722,14 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 	 */
 	public void initEstimators(int numClasses, Instances data) throws Exception
 	{
-		if (isNumeric())
+		if (m_MixtureCodebook != null)
+			initEstimatorsSemiContinuous(numClasses, null, null, null);
+		else if (!hasDiscreteOutputs())
 			initEstimatorsMultivariateNormal(numClasses, null, null, null, null, data);
+		else if (isSparseOutputs())
+			initEstimatorsSparseDiscrete(numClasses, data);
 		else	
-			initEstimatorsUnivariateDiscrete(numClasses, null, null, null);
+			initEstimatorsUnivariateDiscrete(numClasses, null, null, initDiscreteOutputProbs(numClasses, data));
 	}
 	
 	protected double[][] initState0ProbsUniform(int numClasses)
@@ -900,25 +2808,81 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 			}
 		for (int i = 0; i < numClasses; i++)
 		{
-			for (int j = 0; j < getNumStates()-1; j++)
+			for (int j = 0; j < getNumStates()-1; j++)
+			{
+				stateProbs[i][j][j]   = 90;
+				stateProbs[i][j][j+1] = 10;
+			}
+			stateProbs[i][getNumStates()-1][getNumStates()-1]   = 100;	
+		}
+		return stateProbs;
+	}
+	
+	protected double[][][] initDiscreteOutputProbsRandom(int numClasses, Random rand)
+	{
+		double [][][] outputProbs = new double[numClasses][getNumStates()][getNumOutputs()];
+		for (int i = 0; i < numClasses; i++)
+			for (int j = 0; j < getNumStates(); j++)
+				for (int k = 0; k < getNumOutputs(); k++)
+				{
+					outputProbs[i][j][k] = rand.nextInt(100);
+				}
+		return outputProbs;
+	}
+	
+	/*
+	 * initialises the output probabilities of discrete HMMs from the data,
+	 * as set by the output initialization option
+	 * 
+	 * @return the output probabilities of each class and state, or null
+	 * for random initialization
+	 */
+	protected double[][][] initDiscreteOutputProbs(int numClasses, Instances data)
+	{
+		if (data == null || m_OutputInitialization == OUTPUT_INIT_RANDOM)
+			return null;
+		
+		// count the outputs of each class, or of each class and segment,
+		// starting from one so no output is impossible at the start of EM
+		double [][][] outputProbs = new double[numClasses][getNumStates()][getNumOutputs()];
+		for (int i = 0; i < numClasses; i++)
+			for (int j = 0; j < getNumStates(); j++)
+				Arrays.fill(outputProbs[i][j], 1.0);
+		for (int i = 0; i < data.numInstances(); i++)
+		{
+			Instance inst = data.instance(i);
+			if (inst.isMissing(m_SeqAttr) || inst.classIsMissing())
+				continue;
+			int classNum = (int)inst.classValue();
+			Instances sequence = inst.relationalValue(m_SeqAttr);
+			int T = sequence.numInstances();
+			for (int t = 0; t < T; t++)
 			{
-				stateProbs[i][j][j]   = 90;
-				stateProbs[i][j][j+1] = 10;
+				int o = (int)sequence.instance(t).value(0);
+				if (m_OutputInitialization == OUTPUT_INIT_SEGMENTAL)
+					outputProbs[classNum][(int)((long)t*getNumStates()/T)][o] += 1;
+				else
+					for (int j = 0; j < getNumStates(); j++)
+						outputProbs[classNum][j][o] += 1;
 			}
-			stateProbs[i][getNumStates()-1][getNumStates()-1]   = 100;	
 		}
-		return stateProbs;
-	}
-	
-	protected double[][][] initDiscreteOutputProbsRandom(int numClasses, Random rand)
-	{
-		double [][][] outputProbs = new double[numClasses][getNumStates()][getNumOutputs()];
+		
+		// the histograms are the same for every state, so they are
+		// perturbed to let EM tell the states apart
+		Random rand = new Random(getSeed());
 		for (int i = 0; i < numClasses; i++)
 			for (int j = 0; j < getNumStates(); j++)
+			{
+				double sum = 0.0;
 				for (int k = 0; k < getNumOutputs(); k++)
 				{
-					outputProbs[i][j][k] = rand.nextInt(100);
+					if (m_OutputInitialization == OUTPUT_INIT_HISTOGRAM)
+						outputProbs[i][j][k] *= 1 + HISTOGRAM_PERTURBATION*(2*rand.nextDouble() - 1);
+					sum += outputProbs[i][j][k];
 				}
+				for (int k = 0; k < getNumOutputs(); k++)
+					outputProbs[i][j][k] /= sum;
+			}
 		return outputProbs;
 	}
 	
@@ -998,11 +2962,7 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 			
 			for (int j = 0; j < sequence.numInstances(); j++)
 			{
-				DoubleVector output = new DoubleVector(sequence.instance(j).numAttributes());
-				for (int a = 0; a < sequence.instance(j).numAttributes(); a++)
-					output.set(a, sequence.instance(j).value(a));
-			
-				ests[classNum].addValue(output, 1.0);
+				ests[classNum].addValue(getOutput(sequence, j), 1.0);
 			}
 		}
 		for (int i = 0; i < numClasses; i++)
@@ -1169,6 +3129,148 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		}
 	}
 	
+	/*
+	 * Initialise sparse discrete estimators. Each state gets a random 
+	 * share of the counts of the outputs seen in the sequences of its 
+	 * class, so no storage is used for outputs that are never seen.
+	 * 
+	 * @param numClasses the number of classes (i.e. the number of estimators)
+	 * @param data the dataset that will be used for initialization
+	 */
+	public void initEstimatorsSparseDiscrete(int numClasses, Instances data) throws Exception
+	{
+		estimators = new HMMEstimator[numClasses];
+		
+		// random initialization
+		Random rand = new Random(getSeed());
+		double state0Probs[][];
+		double stateProbs[][][];
+		if (isLeftRight())
+			state0Probs = initState0ProbsLeftRight(numClasses);
+		else if (isRandomStateInitializers())
+			state0Probs = initState0ProbsRandom(numClasses, rand);
+		else
+			state0Probs = initState0ProbsUniform(numClasses);
+
+		if (isLeftRight())
+			stateProbs = initStateProbsLeftRight(numClasses);
+		else if (isRandomStateInitializers())
+			stateProbs = initStateProbsRandom(numClasses, rand);
+		else
+			stateProbs = initStateProbsUniform(numClasses);
+		
+		for (int i = 0; i < numClasses; i++)
+		{
+			DiscreteHMMEstimator est = newDiscreteEstimator();
+			estimators[i] = est;
+			est.setState0Probabilities(state0Probs[i]);
+			est.setStateProbabilities(stateProbs[i]);
+		}
+		
+		// count the outputs of each class
+		ArrayList<HashMap<Integer, double[]>> counts = new ArrayList<HashMap<Integer, double[]>>(numClasses);
+		for (int i = 0; i < numClasses; i++)
+			counts.add(new HashMap<Integer, double[]>());
+		for (int i = 0; i < data.numInstances(); i++)
+		{
+			Instance inst = data.instance(i);
+			if (inst.isMissing(m_SeqAttr) || inst.classIsMissing())
+				continue;
+			HashMap<Integer, double[]> classCounts = counts.get((int)inst.classValue());
+			Instances sequence = inst.relationalValue(m_SeqAttr);
+			for (int t = 0; t < sequence.numInstances(); t++)
+			{
+				int o = (int)sequence.instance(t).value(0);
+				double count[] = classCounts.get(o);
+				if (count == null)
+				{
+					count = new double[1];
+					classCounts.put(o, count);
+				}
+				count[0] += 1;
+			}
+		}
+		
+		for (int i = 0; i < numClasses; i++)
+		{
+			DiscreteHMMEstimator est = (DiscreteHMMEstimator)estimators[i];
+			for (Map.Entry<Integer, double[]> entry : counts.get(i).entrySet())
+				for (int s = 0; s < getNumStates(); s++)
+					est.addOutput(s, entry.getKey(), entry.getValue()[0]*(1 + HISTOGRAM_PERTURBATION*(2*rand.nextDouble() - 1)));
+		}
+	}
+	
+	/*
+	 * Initialise semi-continuous estimators, the shared gaussians must 
+	 * already have been fitted
+	 * 
+	 * @param numClasses the number of classes (i.e. the number of estimators)
+	 * @param state0Probs the initial state probabilities, random if null
+	 * @param stateProbs the transition probabilities, random if null
+	 * @param weights the mixture weights of each class and state, random if null
+	 */
+	public void initEstimatorsSemiContinuous(int numClasses, double state0Probs[][], double stateProbs[][][], double weights[][][]) throws Exception
+	{
+		estimators = new HMMEstimator[numClasses];
+		int numComponents = m_MixtureCodebook.getNumComponents();
+		
+		// random initialization
+		Random rand = new Random(getSeed());
+		if (state0Probs == null)
+		{
+			if (isLeftRight())
+				state0Probs = initState0ProbsLeftRight(numClasses);
+			else if (isRandomStateInitializers())
+				state0Probs = initState0ProbsRandom(numClasses, rand);
+			else
+				state0Probs = initState0ProbsUniform(numClasses);
+		}
+
+		if (stateProbs == null)
+		{
+			if (isLeftRight())
+				stateProbs = initStateProbsLeftRight(numClasses);
+			else if (isRandomStateInitializers())
+				stateProbs = initStateProbsRandom(numClasses, rand);
+			else
+				stateProbs = initStateProbsUniform(numClasses);
+		}
+		
+		if (weights == null)
+		{
+			weights = new double[numClasses][getNumStates()][numComponents];
+			for (int i = 0; i < numClasses; i++)
+				for (int s = 0; s < getNumStates(); s++)
+					for (int k = 0; k < numComponents; k++)
+						weights[i][s][k] = 1 + rand.nextInt(100);
+		}
+		
+		for (int i = 0; i < numClasses; i++)
+		{
+			SemiContinuousHMMEstimator est = new SemiContinuousHMMEstimator(getNumStates(), numComponents, false);
+			estimators[i] = est;
+			est.setState0Probabilities(state0Probs[i]);
+			est.setStateProbabilities(stateProbs[i]);
+			for (int s = 0; s < getNumStates(); s++)
+				est.setWeights(s, weights[i][s]);
+		}
+	}
+	
+	/*
+	 * creates an empty gaussian HMM estimator for the current output dimension.
+	 * One dimensional outputs use the cheaper univariate estimator. 
+	 */
+	protected MultivariateNormalHMMEstimator newNormalEstimator()
+	{
+		MultivariateNormalHMMEstimator est;
+		if (getOutputDimension() == 1)
+			est = new UnivariateNormalHMMEstimator(getNumStates(), false);
+		else
+			est = new MultivariateNormalHMMEstimator(getNumStates(), false);
+		est.setApproximateMath(isApproximateMath());
+		return est;
+	}
+	
 	public void initEstimatorsMultivariateNormal(int numClasses, double state0Probs[][], double stateProbs[][][], DoubleVector outputMeans[][], Matrix outputVars[][], Instances data) throws Exception
 	{
 		estimators = new HMMEstimator[numClasses];
@@ -1195,9 +3297,27 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 				stateProbs = initStateProbsUniform(numClasses);
 		}
 		
+		// the output dimension decides which gaussian estimator is used
+		// so make sure it matches the data or the means we are given
+		if (data != null)
+		{
+			for (int i = 0; i < data.numAttributes(); i++)
+			{
+				if (data.attribute(i).isRelationValued())
+				{
+					setOutputDimension(data.attribute(i).relation().numAttributes());
+					break;
+				}
+			}
+		}
+		else if (outputMeans != null)
+		{
+			setOutputDimension(outputMeans[0][0].size());
+		}
+		
 		for (int i = 0; i < numClasses; i++)
 		{
-			MultivariateNormalHMMEstimator est = new MultivariateNormalHMMEstimator(getNumStates(), false);
+			MultivariateNormalHMMEstimator est = newNormalEstimator();
 			estimators[i] = est;
 			est.setCovarianceType(m_CovarianceType);
 			est.setTied(isTied());
@@ -1240,6 +3360,11 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		}
 		System.out.println(data);
 
+		m_QuantizedEstimators = null;
+		m_SmallEstimators = null;
+		m_FloatEstimators = null;
+		m_EmissionCache = null;
+		
 		// find the sequence attribute and then use it to 
 		// find the number of outputs
 		m_SeqAttr = -1;
@@ -1268,6 +3393,43 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 			}
 		}
 		
+		// fit the projection and train on the projected sequences
+		m_Projection = null;
+		if (isNumeric() && getProjectionDimension() > 0 && getProjectionDimension() < m_OutputDimension)
+		{
+			m_Projection = new SequenceProjection(m_ProjectionType);
+			m_Projection.build(data, m_SeqAttr, getProjectionDimension(), new Random(getSeed()));
+			data = m_Projection.transform(data, m_SeqAttr);
+			m_OutputDimension = m_Projection.getOutputDimension();
+			if (estimators != null && estimators[0].getOutputDimension() != m_OutputDimension)
+				throw new Exception("The estimators were initialised for unprojected outputs");
+		}
+		
+		// quantize the outputs and train discrete HMMs on the codes
+		m_Codebook = null;
+		if (isNumeric() && m_OutputModel == OUTPUT_VECTOR_QUANTIZED)
+		{
+			m_Codebook = new Codebook();
+			m_Codebook.build(data, m_SeqAttr, getNumCodewords());
+			data = m_Codebook.transform(data, m_SeqAttr);
+			m_NumOutputs = m_Codebook.getNumCodewords();
+			if (estimators != null && estimators[0].getNumOutputs() != m_NumOutputs)
+				throw new Exception("The estimators were not initialised for quantized outputs");
+		}
+		
+		// evaluate the outputs against the shared gaussians once and
+		// train the mixture weights on the densities
+		m_MixtureCodebook = null;
+		if (isNumeric() && m_OutputModel == OUTPUT_SEMI_CONTINUOUS)
+		{
+			m_MixtureCodebook = new GaussianCodebook();
+			m_MixtureCodebook.setApproximateMath(isApproximateMath());
+			m_MixtureCodebook.build(data, m_SeqAttr, getNumCodewords());
+			data = m_MixtureCodebook.transform(data, m_SeqAttr);
+			if (estimators != null && estimators[0].getOutputDimension() != m_MixtureCodebook.getNumComponents())
+				throw new Exception("The estimators were not initialised for semi-continuous outputs");
+		}
+		
 		if (estimators == null)
 			initEstimators(data.numClasses(), data);
 		
@@ -1286,17 +3448,306 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 			return;
 		}
 			
+		m_NumMergedSequences = 0;
+		if (isDeduplicateSequences())
+		{
+			Instances unique = deduplicateSequences(data);
+			m_NumMergedSequences = data.numInstances() - unique.numInstances();
+			data = unique;
+		}
+		
 		double prevlik = -10000000.0;
-		for (int step = 0; step < 100; step++)
+		m_NumIterations = 0;
+		startExecutorPool();
+		try
 		{
-			double lik = EMStep(data);
-			//System.out.println("EM step "+ step + " lik " + lik + " lik change " + Math.abs((lik-prevlik)/lik) + " cutoff " + getIterationCutoff());
-			if (Math.abs((lik-prevlik)/lik) < getIterationCutoff())  
-				break;
-			prevlik = lik;
+			for (int step = 0; step < 100; step++)
+			{
+				double lik = EMStep(data);
+				m_NumIterations++;
+				//System.out.println("EM step "+ step + " lik " + lik + " lik change " + Math.abs((lik-prevlik)/lik) + " cutoff " + getIterationCutoff());
+				if (Math.abs((lik-prevlik)/lik) < getIterationCutoff())  
+					break;
+				prevlik = lik;
+			}
+		}
+		finally
+		{
+			stopExecutorPool();
 		}
 		for (int i = 0; i < estimators.length; i++)
 			System.out.println(i + " " + estimators[i]);
+		
+		buildQuantizedEstimators();
+		buildFloatEstimators();
+		buildSmallEstimators();
+		
+		m_ScoringKernel = SCORING_DEFAULT;
+		if (isAutoTune())
+			tuneKernels(data);
+		
+		// built last so that the caches start empty
+		buildEmissionCache();
+	}
+	
+	/**
+	 * a description of the shape of the model, which with the machine
+	 * decides which kernels are fastest. Sequence lengths are rounded
+	 * to a power of two.
+	 * 
+	 * @param meanLength the mean length of the sequences
+	 */
+	protected String getKernelShape(double meanLength)
+	{
+		int lengthBucket = 1 << Math.max(0, (int)Math.round(Math.log(Math.max(1.0, meanLength))/Math.log(2)));
+		return (isSparseOutputs() ? "sparse" : "discrete") + " N=" + m_NumStates + " M=" + getNumOutputs()
+			+ " classes=" + estimators.length + " T=" + lengthBucket + " slots=" + getNumExecutionSlots();
+	}
+	
+	/**
+	 * the kernels that can score single sequences with this model
+	 */
+	protected List<Integer> getCandidateKernels()
+	{
+		List<Integer> kernels = new ArrayList<Integer>();
+		if (m_SmallEstimators != null)
+			kernels.add(SCORING_UNROLLED);
+		kernels.add(SCORING_RUN_LENGTH);
+		if (getNumForwardWorkers() > 1)
+			kernels.add(SCORING_PARALLEL);
+		else
+			kernels.add(SCORING_STEPWISE);
+		return kernels;
+	}
+	
+	/** the number of training sequences kernels are benchmarked on */
+	protected static final int TUNING_SAMPLE_SIZE = 32;
+	
+	/**
+	 * chooses the kernel for single sequences and the batch scoring 
+	 * method of a discrete HMM, from the tuning profile if it has an 
+	 * entry for the shape of the model on this machine and otherwise 
+	 * by timing each on a sample of the training sequences
+	 */
+	protected void tuneKernels(Instances data) throws Exception
+	{
+		if (!(estimators[0] instanceof DiscreteHMMEstimator) || m_QuantizedEstimators != null 
+				|| m_FloatEstimators != null)
+			return;
+		
+		final List<Instances> sample = new ArrayList<Instances>();
+		double sumLength = 0.0;
+		for (int i = 0; i < data.numInstances() && sample.size() < TUNING_SAMPLE_SIZE; i++)
+		{
+			Instance inst = data.instance(i);
+			if (inst.isMissing(m_SeqAttr))
+				continue;
+			Instances seq = getSequence(inst);
+			sample.add(seq);
+			sumLength += seq.numInstances();
+		}
+		if (sample.isEmpty())
+			return;
+		
+		String shape = getKernelShape(sumLength/sample.size());
+		KernelProfile profile = new KernelProfile(getTuningProfileFile());
+		String choice = profile.get(shape);
+		if (choice != null)
+		{
+			String parts[] = choice.split(",");
+			if (parts.length == 2)
+			{
+				for (int kernel : getCandidateKernels())
+					if (TAGS_SCORING_KERNEL[kernel].getIDStr().equals(parts[0]))
+						m_ScoringKernel = kernel;
+				if (parts[1].equals("LANES"))
+					m_BatchScoring = BATCH_LANES;
+				else if (parts[1].equals("TRIE"))
+					m_BatchScoring = BATCH_TRIE;
+				return;
+			}
+		}
+		
+		// every sample sequence with every class
+		m_ScoringKernel = KernelTuner.fastest(new KernelTuner.Benchmark() {
+			public void run(int kernel) throws Exception {
+				for (Instances seq : sample)
+					for (int j = 0; j < estimators.length; j++)
+						scoreSequence(j, seq, kernel);
+			}
+		}, getCandidateKernels());
+		if (!isSparseOutputs())
+		{
+			final Instances sequences[] = sample.toArray(new Instances[sample.size()]);
+			m_BatchScoring = KernelTuner.fastest(new KernelTuner.Benchmark() {
+				public void run(int batchScoring) throws Exception {
+					BatchForwardKernel kernel = getBatchKernel(sequences, batchScoring);
+					for (int j = 0; j < estimators.length; j++)
+						kernel.logLikelihoods((DiscreteHMMEstimator)estimators[j]);
+				}
+			}, Arrays.asList(BATCH_TRIE, BATCH_LANES));
+		}
+		
+		profile.put(shape, TAGS_SCORING_KERNEL[m_ScoringKernel].getIDStr() + ","
+				+ (m_BatchScoring == BATCH_LANES ? "LANES" : "TRIE"));
+		profile.save();
+	}
+	
+	/** the scoring workspace of each thread */
+	protected transient ThreadLocal<ScoringWorkspace> m_Workspaces = null;
+	
+	/**
+	 * gets the scoring workspace of the calling thread, creating it 
+	 * if the thread has none or the number of states has changed
+	 */
+	protected ScoringWorkspace getWorkspace()
+	{
+		ThreadLocal<ScoringWorkspace> workspaces = m_Workspaces;
+		if (workspaces == null)
+			workspaces = createWorkspaces();
+		ScoringWorkspace workspace = workspaces.get();
+		if (workspace == null || workspace.getNumStates() != m_NumStates)
+		{
+			workspace = new ScoringWorkspace(m_NumStates);
+			workspaces.set(workspace);
+		}
+		return workspace;
+	}
+	
+	protected synchronized ThreadLocal<ScoringWorkspace> createWorkspaces()
+	{
+		if (m_Workspaces == null)
+			m_Workspaces = new ThreadLocal<ScoringWorkspace>();
+		return m_Workspaces;
+	}
+	
+	/**
+	 * a sequence and its class, used to find duplicate sequences
+	 */
+	protected static class SequenceKey
+	{
+		protected double m_Values[];
+		protected int m_Hash;
+		
+		public SequenceKey(Instances sequence, double classValue)
+		{
+			int dim = sequence.numAttributes();
+			m_Values = new double[sequence.numInstances()*dim + 1];
+			m_Values[0] = classValue;
+			for (int t = 0; t < sequence.numInstances(); t++)
+			{
+				Instance frame = sequence.instance(t);
+				for (int i = 0; i < dim; i++)
+					m_Values[1 + t*dim + i] = frame.value(i);
+			}
+			m_Hash = Arrays.hashCode(m_Values);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return m_Hash;
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof SequenceKey))
+				return false;
+			SequenceKey k = (SequenceKey)o;
+			return m_Hash == k.m_Hash && Arrays.equals(m_Values, k.m_Values);
+		}
+	}
+	
+	/**
+	 * merges identical sequences of the same class into one instance
+	 * whose weight is the sum of their weights. The instances are kept in
+	 * the order of their first occurrence. Instances with a missing 
+	 * sequence or class are dropped as training skips them anyway.
+	 * 
+	 * @param data the training data
+	 * @return the data without duplicates, or the data itself if it has none
+	 */
+	protected Instances deduplicateSequences(Instances data)
+	{
+		HashMap<SequenceKey, Instance> unique = new HashMap<SequenceKey, Instance>();
+		Instances result = new Instances(data, data.numInstances());
+		for (int i = 0; i < data.numInstances(); i++)
+		{
+			Instance inst = data.instance(i);
+			if (inst.isMissing(m_SeqAttr) || inst.classIsMissing())
+				continue;
+			
+			SequenceKey key = new SequenceKey(inst.relationalValue(m_SeqAttr), inst.classValue());
+			Instance first = unique.get(key);
+			if (first == null)
+			{
+				result.add(inst);
+				unique.put(key, result.lastInstance());
+			}
+			else
+				first.setWeight(first.weight() + inst.weight());
+		}
+		if (result.numInstances() == data.numInstances())
+			return data;
+		return result;
+	}
+	
+	/**
+	 * builds the quantized copies of the estimators used for 
+	 * classification if output quantization is on
+	 */
+	protected void buildQuantizedEstimators() throws Exception
+	{
+		m_QuantizedEstimators = null;
+		if (getOutputQuantizationBits() == 0 || !(estimators[0] instanceof DiscreteHMMEstimator))
+			return;
+		m_QuantizedEstimators = new QuantizedDiscreteHMM[estimators.length];
+		for (int i = 0; i < estimators.length; i++)
+			m_QuantizedEstimators[i] = new QuantizedDiscreteHMM((DiscreteHMMEstimator)estimators[i], getOutputQuantizationBits());
+	}
+	
+	/**
+	 * whether the estimators can have single precision copies, which
+	 * needs dense discrete estimators
+	 */
+	protected boolean useFloatEstimators()
+	{
+		return isSinglePrecision() && estimators != null && estimators[0] instanceof DiscreteHMMEstimator
+				&& !(estimators[0] instanceof SparseDiscreteHMMEstimator);
+	}
+	
+	/**
+	 * builds single precision copies of the current estimators if 
+	 * single precision is on, and otherwise removes them
+	 */
+	protected void buildFloatEstimators()
+	{
+		m_FloatEstimators = null;
+		if (m_QuantizedEstimators != null || !useFloatEstimators())
+			return;
+		m_FloatEstimators = new FloatDiscreteHMM[estimators.length];
+		for (int i = 0; i < estimators.length; i++)
+			m_FloatEstimators[i] = new FloatDiscreteHMM((DiscreteHMMEstimator)estimators[i]);
+	}
+	
+	/**
+	 * builds the unrolled copies of the estimators used for 
+	 * classification if they are discrete with few enough states. 
+	 * Quantized and single precision estimators take precedence, and
+	 * see useSmallEstimators for the sequences they score.
+	 */
+	protected void buildSmallEstimators()
+	{
+		m_SmallEstimators = null;
+		if (m_QuantizedEstimators != null || m_FloatEstimators != null 
+				|| !(estimators[0] instanceof DiscreteHMMEstimator)
+				|| estimators[0] instanceof SparseDiscreteHMMEstimator
+				|| m_NumStates < SmallDiscreteHMM.MIN_STATES || m_NumStates > SmallDiscreteHMM.MAX_STATES)
+			return;
+		m_SmallEstimators = new SmallDiscreteHMM[estimators.length];
+		for (int i = 0; i < estimators.length; i++)
+			m_SmallEstimators[i] = SmallDiscreteHMM.create((DiscreteHMMEstimator)estimators[i]);
 	}
 	
 	/*
@@ -1338,7 +3789,10 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		ArrayList<Attribute> seqAttrs = new ArrayList<Attribute>();
 		if (isNumeric())
 		{
-			for (int i = 0; i < getOutputDimension(); i++)
+			int dimension = getOutputDimension();
+			if (m_Projection != null)
+				dimension = m_Projection.getInputDimension();
+			for (int i = 0; i < dimension; i++)
 			{
 				seqAttrs.add(new Attribute("output_"+i));
 			}
@@ -1369,12 +3823,28 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 			HMMEstimator est = estimators[classId];
 			
 			Instances sequence = new Instances(seqIds.get(seq), seqAttrs, length);
-			int state = est.Sample0(sequence, generator);
+			
+			// sample codes or projected outputs and map them back to the outputs
+			Instances projected = sequence;
+			if (m_Projection != null)
+				projected = m_Projection.getHeader();
+			Instances quantized = projected;
+			if (m_Codebook != null)
+				quantized = m_Codebook.getHeader();
+			if (m_MixtureCodebook != null)
+				quantized = m_MixtureCodebook.getComponentHeader();
+			int state = est.Sample0(quantized, generator);
 			for (int i = 1; i < length; i++)
 			{
 				//System.out.println("sample point "+ i);
-				state = est.Sample(sequence, state, generator);
+				state = est.Sample(quantized, state, generator);
 			}
+			if (m_Codebook != null)
+				m_Codebook.decode(quantized, projected);
+			if (m_MixtureCodebook != null)
+				m_MixtureCodebook.decode(quantized, projected, generator);
+			if (m_Projection != null)
+				m_Projection.unproject(projected, sequence);
 			Attribute seqA = seqs.attribute(2);
 			inst.setValue(seqA, seqA.addRelation(sequence));
 		}
@@ -1391,6 +3861,16 @@ public class HMM extends weka.classifiers.RandomizableClassifier implements weka
 		else
 			text.append("\nNumber of Output Dimensions: "+m_OutputDimension);
 		text.append("\n");
+		if (m_Projection != null)
+			text.append(m_Projection);
+		if (m_Codebook != null)
+			text.append(m_Codebook);
+		if (m_MixtureCodebook != null)
+			text.append(m_MixtureCodebook);
+		if (m_NumMergedSequences > 0)
+			text.append("Merged duplicate sequences: " + m_NumMergedSequences + "\n");
+		if (m_EmissionCache != null)
+			text.append("Emission cache hit rate: " + getEmissionCacheHitRate() + "\n");
 		for (int i = 0; i < estimators.length; i++)
 			text.append("\nClass " + i + " " + estimators[i]);
 		return text.toString();
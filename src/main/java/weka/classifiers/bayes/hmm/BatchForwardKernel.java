@@ -0,0 +1,21 @@
+package weka.classifiers.bayes.hmm;
+
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * A way of calculating the likelihoods of a batch of sequences under a
+ * trained discrete HMM, sharing work between the sequences. The batch
+ * is given when the kernel is created, and is then scored under the HMM
+ * of each class in turn.
+ */
+public interface BatchForwardKernel {
+
+	/**
+	 * the log likelihood of each sequence of the batch
+	 *
+	 * @param hmm the estimator, whose parameters have been calculated
+	 * @return the log likelihoods in the order the sequences were given,
+	 * negative infinity for those too unlikely to evaluate
+	 */
+	double [] logLikelihoods(DiscreteHMMEstimator hmm);
+}
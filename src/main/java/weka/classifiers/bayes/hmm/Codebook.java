@@ -0,0 +1,204 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.ArrayList;
+
+import weka.clusterers.SimpleKMeans;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.EuclideanDistance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * A vector quantization codebook for numeric sequences. The codewords
+ * are the centroids of a k-means clustering of all training frames and
+ * each frame is replaced by the index of its nearest codeword, so numeric
+ * data can be modelled with discrete HMMs. Distances are euclidean on the
+ * raw attribute values, both in k-means and when quantizing.
+ */
+public class Codebook extends SequenceTransform {
+
+	private static final long serialVersionUID = -1969127508009305431L;
+
+	/** the codewords, one row per codeword */
+	protected double m_Centroids[][];
+	/** the standard deviations of the clusters of each codeword */
+	protected double m_StdDevs[][];
+	/** the number of training frames assigned to each codeword */
+	protected double m_ClusterSizes[];
+
+	/** the header of quantized sequences */
+	protected Instances m_Header;
+
+	/**
+	 * gets the number of codewords
+	 */
+	public int getNumCodewords()
+	{
+		return m_Centroids.length;
+	}
+
+	/**
+	 * gets the number of dimensions of the codewords
+	 */
+	public int getDimension()
+	{
+		return m_Centroids[0].length;
+	}
+
+	/**
+	 * gets a codeword
+	 *
+	 * @param code the index of the codeword
+	 */
+	public double [] getCentroid(int code)
+	{
+		return m_Centroids[code];
+	}
+
+	/**
+	 * gets the standard deviations of the training frames assigned to a codeword
+	 *
+	 * @param code the index of the codeword
+	 */
+	public double [] getStdDevs(int code)
+	{
+		return m_StdDevs[code];
+	}
+
+	/**
+	 * gets the number of training frames assigned to a codeword
+	 *
+	 * @param code the index of the codeword
+	 */
+	public double getClusterSize(int code)
+	{
+		return m_ClusterSizes[code];
+	}
+
+	/**
+	 * learns the codebook from the frames of all sequences in a data set
+	 *
+	 * @param data the training data
+	 * @param seqAttr the index of the relational attribute holding the sequences
+	 * @param numCodewords the number of codewords to learn
+	 */
+	public void build(Instances data, int seqAttr, int numCodewords) throws Exception
+	{
+		Instances flatdata = new Instances(data.attribute(seqAttr).relation(), 0);
+		for (int i = 0; i < data.numInstances(); i++)
+		{
+			Instance inst = data.instance(i);
+			if (inst.isMissing(seqAttr))
+				continue;
+			Instances sequence = inst.relationalValue(seqAttr);
+			for (int j = 0; j < sequence.numInstances(); j++)
+				flatdata.add(sequence.instance(j));
+		}
+
+		// cluster with the same unnormalised distance quantize uses,
+		// so frames are assigned to the codewords k-means gave them
+		EuclideanDistance distance = new EuclideanDistance();
+		distance.setDontNormalize(true);
+		SimpleKMeans kmeans = new SimpleKMeans();
+		kmeans.setDistanceFunction(distance);
+		kmeans.setNumClusters(numCodewords);
+		kmeans.setDisplayStdDevs(true);
+		kmeans.buildClusterer(flatdata);
+
+		// k-means may find fewer clusters than requested
+		Instances centroids = kmeans.getClusterCentroids();
+		Instances stdDevs = kmeans.getClusterStandardDevs();
+		double sizes[] = kmeans.getClusterSizes();
+		int n = centroids.numInstances();
+		int d = centroids.numAttributes();
+		m_Centroids = new double[n][d];
+		m_StdDevs = new double[n][d];
+		m_ClusterSizes = new double[n];
+		for (int c = 0; c < n; c++)
+		{
+			for (int a = 0; a < d; a++)
+			{
+				m_Centroids[c][a] = centroids.instance(c).value(a);
+				m_StdDevs[c][a] = stdDevs.instance(c).value(a);
+			}
+			m_ClusterSizes[c] = sizes[c];
+		}
+
+		ArrayList<String> codes = new ArrayList<String>();
+		for (int c = 0; c < n; c++)
+			codes.add("code_" + c);
+		ArrayList<Attribute> attrs = new ArrayList<Attribute>();
+		attrs.add(new Attribute("code", codes));
+		m_Header = new Instances(flatdata.relationName(), attrs, 0);
+	}
+
+	/**
+	 * finds the nearest codeword to a frame.
+	 * Distances are accumulated one attribute at a time and a codeword
+	 * is abandoned as soon as its partial distance exceeds the best so far.
+	 *
+	 * @param frame the frame to quantize
+	 * @return the index of the nearest codeword
+	 */
+	public int quantize(Instance frame)
+	{
+		int best = 0;
+		double bestDist = Double.MAX_VALUE;
+		for (int c = 0; c < m_Centroids.length; c++)
+		{
+			double centroid[] = m_Centroids[c];
+			double dist = 0.0;
+			for (int a = 0; a < centroid.length && dist < bestDist; a++)
+			{
+				double diff = frame.value(a) - centroid[a];
+				dist += diff*diff;
+			}
+			if (dist < bestDist)
+			{
+				bestDist = dist;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public Instances getHeader()
+	{
+		return new Instances(m_Header, 0);
+	}
+
+	@Override
+	public Instances transform(Instances sequence)
+	{
+		Instances result = new Instances(m_Header, sequence.numInstances());
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			double values[] = new double[1];
+			values[0] = quantize(sequence.instance(t));
+			result.add(new DenseInstance(1.0, values));
+		}
+		return result;
+	}
+
+	/**
+	 * replaces the codes of a quantized sequence by their codewords
+	 *
+	 * @param sequence the quantized sequence
+	 * @param header the sequence to add the codewords to
+	 */
+	public void decode(Instances sequence, Instances header)
+	{
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			int code = (int)sequence.instance(t).value(0);
+			header.add(new DenseInstance(1.0, m_Centroids[code].clone()));
+		}
+	}
+
+	public String toString()
+	{
+		return "Codebook of " + getNumCodewords() + " codewords of dimension " + getDimension() + "\n";
+	}
+}
@@ -0,0 +1,178 @@
+package weka.classifiers.bayes.hmm;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import weka.core.Instance;
+
+/**
+ * A bounded least recently used cache of the output densities of a
+ * trained model, keyed by the bit pattern of the frame. It pays off for
+ * quantized or low resolution readings, where the same frame recurs many
+ * times and each occurrence would otherwise evaluate every gaussian
+ * again. Each entry holds the densities of every state of every class
+ * for its frame, so the classifier looks a frame up once and all the
+ * classes read their densities from the one entry.
+ * <p>
+ * Lookups take a key owned by the calling thread, so hits allocate
+ * nothing. Entries are never changed once added and can be read without
+ * holding the lock, but finding, adding and evicting entries are
+ * synchronized on the cache, so threads classifying with one model at
+ * the same time contend for it once per frame. The cached densities are
+ * not serialized with the model.
+ */
+public class EmissionCache implements Serializable {
+
+	private static final long serialVersionUID = -2217690845537419128L;
+
+	/** the key of a frame, the bits of each of its values */
+	public static class FrameKey {
+		protected long m_Bits[] = new long[0];
+		protected int m_Hash;
+
+		/**
+		 * sets the key to that of a frame
+		 */
+		public void set(Instance frame)
+		{
+			if (m_Bits.length != frame.numAttributes())
+				m_Bits = new long[frame.numAttributes()];
+			for (int i = 0; i < m_Bits.length; i++)
+				m_Bits[i] = Double.doubleToLongBits(frame.value(i));
+			m_Hash = Arrays.hashCode(m_Bits);
+		}
+
+		protected FrameKey copy()
+		{
+			FrameKey key = new FrameKey();
+			key.m_Bits = m_Bits.clone();
+			key.m_Hash = m_Hash;
+			return key;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return m_Hash;
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			return o instanceof FrameKey && Arrays.equals(m_Bits, ((FrameKey)o).m_Bits);
+		}
+	}
+
+	protected int m_Capacity;
+
+	protected transient LinkedHashMap<FrameKey, double[]> m_Entries;
+
+	protected long m_Hits = 0;
+	protected long m_Misses = 0;
+
+	/**
+	 * @param capacity the largest number of frames kept
+	 */
+	public EmissionCache(int capacity)
+	{
+		m_Capacity = capacity;
+	}
+
+	public int getCapacity() {
+		return m_Capacity;
+	}
+
+	protected LinkedHashMap<FrameKey, double[]> getEntries()
+	{
+		if (m_Entries == null)
+		{
+			m_Entries = new LinkedHashMap<FrameKey, double[]>(16, 0.75f, true) {
+				private static final long serialVersionUID = 6254830317716204385L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<FrameKey, double[]> eldest)
+				{
+					return size() > m_Capacity;
+				}
+			};
+		}
+		return m_Entries;
+	}
+
+	/**
+	 * gets the cached densities of a frame
+	 *
+	 * @param key the key of the frame, set by the calling thread
+	 * @return the densities, which must not be changed, or null if the
+	 * frame is not in the cache
+	 */
+	public synchronized double [] get(FrameKey key)
+	{
+		double cached[] = getEntries().get(key);
+		if (cached == null)
+			m_Misses++;
+		else
+			m_Hits++;
+		return cached;
+	}
+
+	/**
+	 * adds the densities of a frame, evicting the least recently used
+	 * frame if the cache is full
+	 *
+	 * @param key the key of the frame, which is copied
+	 * @param densities the densities, kept by the cache and not to be
+	 * changed afterwards
+	 * @return the densities
+	 */
+	public synchronized double [] put(FrameKey key, double densities[])
+	{
+		getEntries().put(key.copy(), densities);
+		return densities;
+	}
+
+	/**
+	 * gets the number of frames in the cache
+	 */
+	public synchronized int size()
+	{
+		return m_Entries == null ? 0 : m_Entries.size();
+	}
+
+	public synchronized long getHits() {
+		return m_Hits;
+	}
+
+	public synchronized long getMisses() {
+		return m_Misses;
+	}
+
+	/**
+	 * gets the fraction of lookups that found their frame, 0 if there
+	 * have been none
+	 */
+	public synchronized double getHitRate()
+	{
+		long lookups = m_Hits + m_Misses;
+		return lookups == 0 ? 0.0 : (double)m_Hits/lookups;
+	}
+
+	/**
+	 * empties the cache and resets its counts
+	 */
+	public synchronized void clear()
+	{
+		if (m_Entries != null)
+			m_Entries.clear();
+		m_Hits = 0;
+		m_Misses = 0;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Emission cache: " + size() + " of " + m_Capacity + " frames, hit rate " + getHitRate() + "\n";
+	}
+}
@@ -0,0 +1,222 @@
+package weka.classifiers.bayes.hmm;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import weka.core.Instances;
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * A single precision copy of the tables of a discrete HMM, with forward
+ * and backward passes that store their vectors as floats. Every product
+ * is summed in double precision and only the result is rounded to float,
+ * and each forward and backward vector is divided by its sum before it
+ * is stored, so the stored values stay between 0 and 1 and lose no more
+ * than float rounding at each step. The scales of the forward pass are
+ * kept as doubles and the log likelihood is summed from them in double
+ * precision. The output probabilities are laid out symbol major so that
+ * the probabilities of all states for one output are adjacent.
+ */
+public class FloatDiscreteHMM implements Serializable {
+
+	private static final long serialVersionUID = 4410728395582163021L;
+
+	protected int m_NumStates;
+	protected int m_NumOutputs;
+
+	protected float m_State0Probs[];
+	/** the transition probabilities, row major */
+	protected float m_StateProbs[];
+	/** the output probabilities, indexed by output*numStates + state */
+	protected float m_OutputProbs[];
+
+	protected double minScale = 1.0E-200;
+
+	/**
+	 * copies the parameters of a trained estimator
+	 *
+	 * @param est the estimator
+	 */
+	public FloatDiscreteHMM(DiscreteHMMEstimator est)
+	{
+		m_NumStates = est.getNumStates();
+		m_NumOutputs = est.getNumOutputs();
+		int N = m_NumStates;
+
+		double pi[] = est.getState0Probabilities();
+		double A[] = est.getTransitionProbabilities();
+		m_State0Probs = new float[N];
+		for (int s = 0; s < N; s++)
+			m_State0Probs[s] = (float)pi[s];
+		m_StateProbs = new float[N*N];
+		for (int i = 0; i < N*N; i++)
+			m_StateProbs[i] = (float)A[i];
+
+		m_OutputProbs = new float[m_NumOutputs*N];
+		double column[] = new double[N];
+		for (int o = 0; o < m_NumOutputs; o++)
+		{
+			est.getOutputColumn(o, column);
+			for (int s = 0; s < N; s++)
+				m_OutputProbs[o*N + s] = (float)column[s];
+		}
+	}
+
+	public int getNumStates() {
+		return m_NumStates;
+	}
+
+	public int getNumOutputs() {
+		return m_NumOutputs;
+	}
+
+	/**
+	 * gets the transition probabilities, row major. The array is not copied.
+	 */
+	public float [] getTransitionTable() {
+		return m_StateProbs;
+	}
+
+	/**
+	 * gets the output probabilities, indexed by output*numStates + state.
+	 * The array is not copied.
+	 */
+	public float [] getOutputTable() {
+		return m_OutputProbs;
+	}
+
+	/**
+	 * calculates the forward vector of one step in double precision
+	 *
+	 * @param prev the forward vector of the previous step, or null for the first step
+	 * @param o the output symbol of the step
+	 * @param result the unscaled forward vector
+	 * @return the sum of the vector
+	 */
+	protected double forwardStep(float prev[], int o, double result[])
+	{
+		int N = m_NumStates;
+		int base = o*N;
+		if (prev == null)
+		{
+			for (int s = 0; s < N; s++)
+				result[s] = (double)m_State0Probs[s]*m_OutputProbs[base + s];
+		}
+		else
+		{
+			Arrays.fill(result, 0.0);
+			for (int ps = 0; ps < N; ps++)
+			{
+				double a = prev[ps];
+				if (a == 0.0)
+					continue;
+				int row = ps*N;
+				for (int s = 0; s < N; s++)
+					result[s] += a*m_StateProbs[row + s];
+			}
+			for (int s = 0; s < N; s++)
+				result[s] *= m_OutputProbs[base + s];
+		}
+		double scale = 0.0;
+		for (int s = 0; s < N; s++)
+			scale += result[s];
+		return scale;
+	}
+
+	/**
+	 * the scaled forward pass
+	 *
+	 * @param sequence the sequence of output symbols
+	 * @param alpha the forward vectors, one per frame, each divided by its sum
+	 * @return the sum of each forward vector before it was scaled, or null
+	 * if the sequence is too unlikely to evaluate
+	 */
+	public double [] forward(Instances sequence, float alpha[][])
+	{
+		int N = m_NumStates;
+		int T = sequence.numInstances();
+		double scales[] = new double[T];
+		double next[] = new double[N];
+		for (int t = 0; t < T; t++)
+		{
+			double scale = forwardStep(t == 0 ? null : alpha[t-1], (int)sequence.instance(t).value(0), next);
+			if (Math.abs(scale) <= minScale)
+				return null;
+			scales[t] = scale;
+			for (int s = 0; s < N; s++)
+				alpha[t][s] = (float)(next[s]/scale);
+		}
+		return scales;
+	}
+
+	/**
+	 * the backward pass, with each backward vector divided by its sum.
+	 * The scales differ from those of the forward pass, so only ratios of
+	 * products of forward and backward vectors at the same step are meaningful.
+	 *
+	 * @param sequence the sequence of output symbols
+	 * @param beta the backward vectors, one per frame
+	 */
+	public void backward(Instances sequence, float beta[][])
+	{
+		int N = m_NumStates;
+		int T = sequence.numInstances();
+		double next[] = new double[N];
+		Arrays.fill(beta[T-1], 1.0f/N);
+		for (int t = T - 2; t >= 0; t--)
+		{
+			int base = (int)sequence.instance(t + 1).value(0)*N;
+			float after[] = beta[t + 1];
+			double scale = 0.0;
+			for (int ps = 0; ps < N; ps++)
+			{
+				int row = ps*N;
+				double sum = 0.0;
+				for (int s = 0; s < N; s++)
+					sum += (double)m_StateProbs[row + s]*m_OutputProbs[base + s]*after[s];
+				next[ps] = sum;
+				scale += sum;
+			}
+			for (int ps = 0; ps < N; ps++)
+				beta[t][ps] = scale > 0 ? (float)(next[ps]/scale) : 0.0f;
+		}
+	}
+
+	/**
+	 * the log likelihood of a sequence, using the scaled forward algorithm
+	 *
+	 * @param sequence the sequence of output symbols
+	 * @return the log likelihood, or negative infinity if the sequence
+	 * is too unlikely to evaluate
+	 */
+	public double logLikelihood(Instances sequence)
+	{
+		return logLikelihood(sequence, new float[m_NumStates], new double[m_NumStates]);
+	}
+
+	/**
+	 * the log likelihood of a sequence, using space passed in by the
+	 * caller so that nothing is allocated
+	 *
+	 * @param sequence the sequence of output symbols
+	 * @param alpha space for a forward vector
+	 * @param next space for an unscaled forward vector
+	 * @return the log likelihood, or negative infinity if the sequence
+	 * is too unlikely to evaluate
+	 */
+	public double logLikelihood(Instances sequence, float alpha[], double next[])
+	{
+		int N = m_NumStates;
+		double lik = 0.0;
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			double scale = forwardStep(t == 0 ? null : alpha, (int)sequence.instance(t).value(0), next);
+			if (Math.abs(scale) <= minScale)
+				return Double.NEGATIVE_INFINITY;
+			for (int s = 0; s < N; s++)
+				alpha[s] = (float)(next[s]/scale);
+			lik += Math.log(Math.max(scale, 1.0E-32));
+		}
+		return lik;
+	}
+}
@@ -0,0 +1,26 @@
+package weka.classifiers.bayes.hmm;
+
+import weka.core.Instances;
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * A way of calculating the likelihood of a sequence under a trained
+ * discrete HMM. Kernels give the likelihood of the step by step forward
+ * pass, up to rounding, but differ in how the work is arranged, and the
+ * classifier chooses between them for each sequence. Kernels keep no
+ * state between calls other than their settings, so one can be used by
+ * several threads, each passing its own workspace.
+ */
+public interface ForwardKernel {
+
+	/**
+	 * the log likelihood of a sequence
+	 *
+	 * @param hmm the estimator, whose parameters have been calculated
+	 * @param sequence the sequence of symbols
+	 * @param workspace the arrays of the calling thread
+	 * @return the log likelihood, or negative infinity if the sequence
+	 * is too unlikely to evaluate
+	 */
+	double logLikelihood(DiscreteHMMEstimator hmm, Instances sequence, ScoringWorkspace workspace) throws Exception;
+}
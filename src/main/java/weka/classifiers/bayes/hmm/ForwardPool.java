@@ -0,0 +1,79 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The threads that help the calling thread with the parallel forward
+ * kernels. They are daemon threads, which do not stop the JVM exiting
+ * once classification is over. The pool starts a thread for every task
+ * that finds no idle one, so the tasks of forward passes called from
+ * several threads at once all run together and cannot wait at their
+ * barriers for threads held by each other. Idle threads are dropped
+ * after a minute.
+ */
+public class ForwardPool {
+
+	protected ExecutorService m_Executor;
+
+	public ForwardPool()
+	{
+		m_Executor = Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "HMM forward");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * starts a task on a thread of the pool
+	 */
+	public Future<Void> submit(Callable<Void> task)
+	{
+		return m_Executor.submit(task);
+	}
+
+	/**
+	 * runs tasks with the calling thread doing the first and threads
+	 * of the pool the rest, and rethrows the failure of the first task
+	 * that failed, rather than those of tasks whose barrier it broke
+	 */
+	public void run(List<Callable<Void>> tasks) throws Exception
+	{
+		List<Future<Void>> results = new ArrayList<Future<Void>>();
+		for (int i = 1; i < tasks.size(); i++)
+			results.add(submit(tasks.get(i)));
+		Exception failure = null;
+		try
+		{
+			tasks.get(0).call();
+		}
+		catch (Exception e)
+		{
+			failure = e;
+		}
+		for (Future<Void> result : results)
+		{
+			try
+			{
+				result.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (failure == null || failure instanceof BrokenBarrierException)
+					failure = e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+			}
+		}
+		if (failure != null)
+			throw failure;
+	}
+}
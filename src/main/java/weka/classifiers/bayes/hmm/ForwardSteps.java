@@ -0,0 +1,122 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.Arrays;
+
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * The vector and matrix operations the forward and backward passes of
+ * discrete HMMs are built from, shared by the classifier and the kernels.
+ */
+public class ForwardSteps {
+
+	/**
+	 * the smallest sum of a forward vector that can be scaled, the same
+	 * as the classifier's
+	 */
+	public static final double MIN_SCALE = 1.0E-200;
+
+	/**
+	 * HMMs with at least this many states use the unrolled
+	 * vector matrix kernels
+	 */
+	public static final int UNROLL_MIN_STATES = 8;
+
+	/**
+	 * multiplies a row vector by a square row major matrix. The inner
+	 * loop runs along a contiguous row of the matrix and the result,
+	 * which the JIT compiles to SIMD instructions. For larger matrices
+	 * two rows are added per pass, halving the loads and stores of the
+	 * result.
+	 *
+	 * @param v the vector
+	 * @param T the matrix
+	 * @param result the array to receive the product
+	 */
+	public static void vectorTimesMatrix(double v[], double T[], double result[])
+	{
+		int N = v.length;
+		Arrays.fill(result, 0.0);
+		int ps = 0;
+		if (N >= UNROLL_MIN_STATES)
+		{
+			for (; ps + 1 < N; ps += 2)
+			{
+				double a0 = v[ps];
+				double a1 = v[ps + 1];
+				int row0 = ps*N;
+				int row1 = row0 + N;
+				for (int s = 0; s < N; s++)
+					result[s] += a0*T[row0 + s] + a1*T[row1 + s];
+			}
+		}
+		for (; ps < N; ps++)
+		{
+			double a = v[ps];
+			if (a == 0.0)
+				continue;
+			int row = ps*N;
+			for (int s = 0; s < N; s++)
+				result[s] += a*T[row + s];
+		}
+	}
+
+	/**
+	 * multiplies a square row major matrix by a column vector, each entry
+	 * of the result being the dot product of a contiguous row with the
+	 * vector. For larger matrices each dot product is split over four
+	 * independent sums, so successive additions do not wait on each other.
+	 *
+	 * @param T the matrix
+	 * @param v the vector
+	 * @param result the array to receive the product
+	 */
+	public static void matrixTimesVector(double T[], double v[], double result[])
+	{
+		int N = v.length;
+		for (int s = 0; s < N; s++)
+		{
+			int row = s*N;
+			int ns = 0;
+			double sum = 0.0;
+			if (N >= UNROLL_MIN_STATES)
+			{
+				double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+				for (; ns + 3 < N; ns += 4)
+				{
+					sum0 += T[row + ns]*v[ns];
+					sum1 += T[row + ns + 1]*v[ns + 1];
+					sum2 += T[row + ns + 2]*v[ns + 2];
+					sum3 += T[row + ns + 3]*v[ns + 3];
+				}
+				sum = (sum0 + sum1) + (sum2 + sum3);
+			}
+			for (; ns < N; ns++)
+				sum += T[row + ns]*v[ns];
+			result[s] = sum;
+		}
+	}
+
+	/**
+	 * one unscaled forward step of a discrete HMM, a vector matrix
+	 * product with the cached matrix of the symbol, or with the
+	 * transitions followed by the outputs if it is not cached
+	 *
+	 * @param b space for the output probabilities of the symbol
+	 */
+	public static void forwardStep(DiscreteHMMEstimator hmm, int o, double prev[], double cur[], double b[])
+	{
+		double Mo[] = hmm.getSymbolMatrix(o);
+		if (Mo != null)
+		{
+			vectorTimesMatrix(prev, Mo, cur);
+		}
+		else
+		{
+			hmm.getOutputColumn(o, b);
+			vectorTimesMatrix(prev, hmm.getTransitionProbabilities(), cur);
+			for (int s = 0; s < cur.length; s++)
+				cur[s] *= b[s];
+		}
+	}
+}
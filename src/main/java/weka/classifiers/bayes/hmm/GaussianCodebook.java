@@ -0,0 +1,193 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.estimators.ApproximateMath;
+
+/**
+ * A pool of diagonal gaussians shared by all the states and classes of
+ * a semi-continuous HMM. The gaussians are fitted to the clusters of a
+ * k-means codebook. Each frame is replaced by the vector of its densities
+ * under every gaussian so that they are evaluated once per frame, however
+ * many classes and states use them.
+ * The densities of a frame are divided by their maximum to avoid underflow,
+ * which scales the likelihood of a sequence by the same amount for every class.
+ */
+public class GaussianCodebook extends SequenceTransform {
+
+	private static final long serialVersionUID = 3396232357913693113L;
+
+	protected Codebook m_Codebook;
+
+	protected double m_Means[][];
+	protected double m_Vars[][];
+	/** the log of the normalising coefficient of each gaussian */
+	protected double m_LogCoef[];
+
+	/** the header of density sequences */
+	protected Instances m_Header;
+
+	protected boolean m_ApproximateMath = false;
+
+	public boolean isApproximateMath()
+	{
+		return m_ApproximateMath;
+	}
+
+	/**
+	 * sets whether densities are evaluated with ApproximateMath.exp
+	 * rather than Math.exp
+	 */
+	public void setApproximateMath(boolean approximateMath)
+	{
+		m_ApproximateMath = approximateMath;
+	}
+
+	/**
+	 * gets the number of gaussians in the codebook
+	 */
+	public int getNumComponents()
+	{
+		return m_Means.length;
+	}
+
+	/**
+	 * fits the gaussians to the frames of all sequences in a data set
+	 *
+	 * @param data the training data
+	 * @param seqAttr the index of the relational attribute holding the sequences
+	 * @param numComponents the number of gaussians
+	 */
+	public void build(Instances data, int seqAttr, int numComponents) throws Exception
+	{
+		m_Codebook = new Codebook();
+		m_Codebook.build(data, seqAttr, numComponents);
+
+		int K = m_Codebook.getNumCodewords();
+		int d = m_Codebook.getDimension();
+		m_Means = new double[K][d];
+		m_Vars = new double[K][d];
+		m_LogCoef = new double[K];
+
+		// floor the variances of clusters with a single or
+		// constant value at a small fraction of the average variance
+		double floor[] = new double[d];
+		for (int k = 0; k < K; k++)
+			for (int a = 0; a < d; a++)
+				floor[a] += m_Codebook.getStdDevs(k)[a]*m_Codebook.getStdDevs(k)[a]/K;
+		for (int a = 0; a < d; a++)
+			floor[a] = Math.max(floor[a]*1.0E-3, 1.0E-10);
+
+		for (int k = 0; k < K; k++)
+		{
+			double logDet = 0.0;
+			for (int a = 0; a < d; a++)
+			{
+				double sd = m_Codebook.getStdDevs(k)[a];
+				m_Means[k][a] = m_Codebook.getCentroid(k)[a];
+				m_Vars[k][a] = Math.max(sd*sd, floor[a]);
+				logDet += Math.log(m_Vars[k][a]);
+			}
+			m_LogCoef[k] = -0.5*(d*Math.log(2*Math.PI) + logDet);
+		}
+
+		ArrayList<Attribute> attrs = new ArrayList<Attribute>();
+		for (int k = 0; k < K; k++)
+			attrs.add(new Attribute("density_" + k));
+		m_Header = new Instances(data.attribute(seqAttr).relation().relationName(), attrs, 0);
+	}
+
+	/**
+	 * calculates the densities of a frame under all gaussians,
+	 * relative to the largest of them
+	 *
+	 * @param frame the frame
+	 * @param result the array to receive the densities
+	 */
+	public void densities(Instance frame, double result[])
+	{
+		double max = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < m_Means.length; k++)
+		{
+			double mean[] = m_Means[k];
+			double var[] = m_Vars[k];
+			double product = 0.0;
+			for (int a = 0; a < mean.length; a++)
+			{
+				double diff = frame.value(a) - mean[a];
+				product += diff*diff/var[a];
+			}
+			result[k] = m_LogCoef[k] - 0.5*product;
+			if (result[k] > max)
+				max = result[k];
+		}
+		if (m_ApproximateMath)
+		{
+			for (int k = 0; k < m_Means.length; k++)
+				result[k] = ApproximateMath.exp(result[k] - max);
+		}
+		else
+		{
+			for (int k = 0; k < m_Means.length; k++)
+				result[k] = Math.exp(result[k] - max);
+		}
+	}
+
+	@Override
+	public Instances getHeader()
+	{
+		return new Instances(m_Header, 0);
+	}
+
+	/**
+	 * gets an empty sequence of component indices, as generated
+	 * when sampling from a semi-continuous HMM
+	 */
+	public Instances getComponentHeader()
+	{
+		return m_Codebook.getHeader();
+	}
+
+	@Override
+	public Instances transform(Instances sequence)
+	{
+		Instances result = new Instances(m_Header, sequence.numInstances());
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			double values[] = new double[m_Means.length];
+			densities(sequence.instance(t), values);
+			result.add(new DenseInstance(1.0, values));
+		}
+		return result;
+	}
+
+	/**
+	 * samples an output from the gaussian of each component in a sequence
+	 *
+	 * @param sequence the sequence of component indices
+	 * @param header the sequence to add the outputs to
+	 * @param generator the random number generator to use
+	 */
+	public void decode(Instances sequence, Instances header, Random generator)
+	{
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			int k = (int)sequence.instance(t).value(0);
+			double values[] = new double[m_Means[k].length];
+			for (int a = 0; a < values.length; a++)
+				values[a] = m_Means[k][a] + Math.sqrt(m_Vars[k][a])*generator.nextGaussian();
+			header.add(new DenseInstance(1.0, values));
+		}
+	}
+
+	public String toString()
+	{
+		return "Semi-continuous codebook of " + getNumComponents() + " gaussians of dimension "
+			+ m_Codebook.getDimension() + "\n";
+	}
+}
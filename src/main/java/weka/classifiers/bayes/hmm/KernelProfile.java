@@ -0,0 +1,118 @@
+package weka.classifiers.bayes.hmm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * A small file recording which scoring kernels were fastest for models of
+ * a given shape, so that they only need to be benchmarked once on each
+ * machine. Entries are keyed by a description of the model shape together
+ * with the processor architecture and number of processors, so one file
+ * can be shared between hosts. The file is a plain properties file.
+ */
+public class KernelProfile {
+
+	protected File m_File;
+	protected Properties m_Properties = new Properties();
+
+	/**
+	 * reads the profile from a file, starting empty if the file does not
+	 * exist or cannot be read
+	 *
+	 * @param file the profile file
+	 */
+	public KernelProfile(File file)
+	{
+		m_File = file;
+		if (!file.exists())
+			return;
+		InputStream in = null;
+		try
+		{
+			in = new FileInputStream(file);
+			m_Properties.load(in);
+		}
+		catch (IOException e)
+		{
+			System.err.println("could not read kernel profile " + file + ": " + e.getMessage());
+		}
+		finally
+		{
+			close(in);
+		}
+	}
+
+	protected static void close(java.io.Closeable stream)
+	{
+		if (stream == null)
+			return;
+		try
+		{
+			stream.close();
+		}
+		catch (IOException e)
+		{
+		}
+	}
+
+	/**
+	 * gets a description of the machine, part of the key of every entry
+	 */
+	public static String getHostKey()
+	{
+		return System.getProperty("os.arch") + "-" + Runtime.getRuntime().availableProcessors() + "cpu";
+	}
+
+	protected String getKey(String shape)
+	{
+		return (shape + "@" + getHostKey()).replace(' ', '_');
+	}
+
+	/**
+	 * gets the recorded choice for a model shape on this machine
+	 *
+	 * @return the choice, or null if there is none
+	 */
+	public String get(String shape)
+	{
+		return m_Properties.getProperty(getKey(shape));
+	}
+
+	/**
+	 * records the choice for a model shape on this machine
+	 */
+	public void put(String shape, String choice)
+	{
+		m_Properties.setProperty(getKey(shape), choice);
+	}
+
+	/**
+	 * writes the profile back to its file. Failures are reported but not
+	 * thrown, as the profile only saves benchmarking time.
+	 */
+	public void save()
+	{
+		OutputStream out = null;
+		try
+		{
+			File parent = m_File.getAbsoluteFile().getParentFile();
+			if (parent != null && !parent.exists())
+				parent.mkdirs();
+			out = new FileOutputStream(m_File);
+			m_Properties.store(out, "HMM scoring kernels");
+		}
+		catch (IOException e)
+		{
+			System.err.println("could not write kernel profile " + m_File + ": " + e.getMessage());
+		}
+		finally
+		{
+			close(out);
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.List;
+
+/**
+ * Chooses the fastest of several interchangeable ways of doing the same
+ * work by timing each of them. Each choice is run once to warm up and
+ * then timed over a few trials, keeping the shortest time so that a
+ * pause for garbage collection or compilation does not count against it.
+ * The choices are identified by ints, such as the scoring kernel tags of
+ * the classifier. Choices found this way are kept in a KernelProfile.
+ */
+public class KernelTuner {
+
+	/** the work to be timed */
+	public interface Benchmark {
+
+		/**
+		 * does the work one of the ways
+		 *
+		 * @param choice the way to do it
+		 */
+		void run(int choice) throws Exception;
+	}
+
+	/** the number of timed runs of each choice, after the warm up */
+	public static final int NUM_TRIALS = 3;
+
+	/**
+	 * the shortest time, over NUM_TRIALS runs after one to warm up,
+	 * to do the work one way
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public static long time(Benchmark benchmark, int choice) throws Exception
+	{
+		long best = Long.MAX_VALUE;
+		for (int trial = 0; trial <= NUM_TRIALS; trial++)
+		{
+			long start = System.nanoTime();
+			benchmark.run(choice);
+			if (trial > 0)
+				best = Math.min(best, System.nanoTime() - start);
+		}
+		return best;
+	}
+
+	/**
+	 * the fastest way to do the work, the first of the choices if two
+	 * are equally fast
+	 *
+	 * @param choices the ways to time, not empty
+	 */
+	public static int fastest(Benchmark benchmark, List<Integer> choices) throws Exception
+	{
+		int best = choices.get(0);
+		long bestTime = Long.MAX_VALUE;
+		for (int choice : choices)
+		{
+			long time = time(benchmark, choice);
+			if (time < bestTime)
+			{
+				bestTime = time;
+				best = choice;
+			}
+		}
+		return best;
+	}
+}
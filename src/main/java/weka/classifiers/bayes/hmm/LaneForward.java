@@ -0,0 +1,164 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.Arrays;
+
+import weka.core.Instances;
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * Scores a batch of discrete sequences by running groups of them
+ * through the forward pass together. The sequences are sorted by length
+ * and taken NUM_LANES at a time. The forward vectors of a group are
+ * stored state by state, with the sequences (lanes) of each state
+ * adjacent, so the inner loops of the transition step and the scaling
+ * run across the sequences. Sequences that are shorter than the longest
+ * in the group stop contributing once they end. Reads the dense output
+ * table of the estimator, so is not for sparse estimators.
+ */
+public class LaneForward implements BatchForwardKernel {
+
+	/** the number of sequences run side by side */
+	public static final int NUM_LANES = 32;
+
+	/** the symbols of each sequence */
+	protected int m_Sequences[][];
+	/** the indices of the sequences in order of increasing length */
+	protected int m_Order[];
+
+	/**
+	 * @param sequences the batch
+	 */
+	public LaneForward(Instances sequences[])
+	{
+		m_Sequences = new int[sequences.length][];
+		for (int i = 0; i < sequences.length; i++)
+		{
+			m_Sequences[i] = new int[sequences[i].numInstances()];
+			for (int t = 0; t < m_Sequences[i].length; t++)
+				m_Sequences[i][t] = (int)sequences[i].instance(t).value(0);
+		}
+		m_Order = sortByLength(m_Sequences);
+	}
+
+	/**
+	 * gets the indices of a set of sequences in order of increasing length
+	 */
+	public static int [] sortByLength(int seqs[][])
+	{
+		long keys[] = new long[seqs.length];
+		for (int i = 0; i < seqs.length; i++)
+			keys[i] = ((long)seqs[i].length << 32) | i;
+		Arrays.sort(keys);
+		int order[] = new int[seqs.length];
+		for (int i = 0; i < seqs.length; i++)
+			order[i] = (int)keys[i];
+		return order;
+	}
+
+	public double [] logLikelihoods(DiscreteHMMEstimator hmm)
+	{
+		double lik[] = new double[m_Sequences.length];
+		for (int from = 0; from < m_Sequences.length; from += NUM_LANES)
+			forwardLanes(hmm, from, Math.min(m_Sequences.length, from + NUM_LANES), lik);
+		return lik;
+	}
+
+	/**
+	 * the log likelihoods of one group of sequences
+	 *
+	 * @param hmm the estimator
+	 * @param from the position in the sorted order of the first sequence
+	 * of the group
+	 * @param to the position after the last sequence of the group
+	 * @param lik receives the log likelihood of each sequence, negative
+	 * infinity if it is too unlikely to evaluate
+	 */
+	protected void forwardLanes(DiscreteHMMEstimator hmm, int from, int to, double lik[])
+	{
+		int seqs[][] = m_Sequences;
+		int order[] = m_Order;
+		int N = hmm.getNumStates();
+		int M = hmm.getNumOutputs();
+		int B = to - from;
+		double pi[] = hmm.getState0Probabilities();
+		double A[] = hmm.getTransitionProbabilities();
+		double E[] = hmm.getOutputProbabilities();
+
+		double alpha[] = new double[N*B];
+		double next[] = new double[N*B];
+		double scale[] = new double[B];
+		double logLik[] = new double[B];
+		int length[] = new int[B];
+		int outputs[] = new int[B];
+		int T = 0;
+		for (int l = 0; l < B; l++)
+		{
+			length[l] = seqs[order[from + l]].length;
+			T = Math.max(T, length[l]);
+		}
+
+		for (int t = 0; t < T; t++)
+		{
+			// lanes that have ended emit symbol 0, their results are not used
+			for (int l = 0; l < B; l++)
+				outputs[l] = t < length[l] ? seqs[order[from + l]][t] : 0;
+
+			if (t == 0)
+			{
+				for (int s = 0; s < N; s++)
+					for (int l = 0; l < B; l++)
+						next[s*B + l] = pi[s]*E[s*M + outputs[l]];
+			}
+			else
+			{
+				Arrays.fill(next, 0.0);
+				for (int ps = 0; ps < N; ps++)
+				{
+					int prev = ps*B;
+					for (int s = 0; s < N; s++)
+					{
+						double a = A[ps*N + s];
+						if (a == 0.0)
+							continue;
+						int cur = s*B;
+						for (int l = 0; l < B; l++)
+							next[cur + l] += a*alpha[prev + l];
+					}
+				}
+				for (int s = 0; s < N; s++)
+				{
+					int cur = s*B;
+					int row = s*M;
+					for (int l = 0; l < B; l++)
+						next[cur + l] *= E[row + outputs[l]];
+				}
+			}
+
+			Arrays.fill(scale, 0.0);
+			for (int s = 0; s < N; s++)
+				for (int l = 0; l < B; l++)
+					scale[l] += next[s*B + l];
+			for (int l = 0; l < B; l++)
+			{
+				if (t < length[l] && logLik[l] != Double.NEGATIVE_INFINITY)
+				{
+					if (Math.abs(scale[l]) <= ForwardSteps.MIN_SCALE)
+						logLik[l] = Double.NEGATIVE_INFINITY;
+					else
+						logLik[l] += Math.log(Math.max(scale[l], 1.0E-32));
+				}
+				scale[l] = scale[l] > 0 ? 1.0/scale[l] : 1.0;
+			}
+			for (int s = 0; s < N; s++)
+				for (int l = 0; l < B; l++)
+					next[s*B + l] *= scale[l];
+
+			double tmp[] = alpha;
+			alpha = next;
+			next = tmp;
+		}
+
+		for (int l = 0; l < B; l++)
+			lik[order[from + l]] = logLik[l];
+	}
+}
@@ -0,0 +1,183 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import weka.core.Instances;
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * The forward pass of a discrete HMM with each time step split between
+ * threads by blocks of destination states. Each thread calculates its
+ * block of the forward vector from the whole of the previous one and the
+ * threads then meet at a barrier, whose action adds up the block sums
+ * (in a fixed order) to give the scale. Rather than a second barrier for
+ * dividing by the scale, each step is multiplied by the inverse scale of
+ * the step before, and the forward vectors are divided by their scales
+ * once the pass is over. The calling thread works on the first block. A
+ * thread that fails sets a flag and still meets the others at the
+ * barrier, so they all see the flag and stop at the same step.
+ * Only worth it for HMMs with hundreds of states, where a step has
+ * enough work to pay for the barrier.
+ */
+public class ParallelForward implements ForwardKernel {
+
+	protected ForwardPool m_Pool;
+	protected int m_NumWorkers;
+
+	/**
+	 * @param pool the threads that help the calling one
+	 * @param numWorkers the number of threads, including the calling one
+	 */
+	public ParallelForward(ForwardPool pool, int numWorkers)
+	{
+		m_Pool = pool;
+		m_NumWorkers = numWorkers;
+	}
+
+	public int getNumWorkers() {
+		return m_NumWorkers;
+	}
+
+	/**
+	 * the forward pass of a sequence. If the probability of a step is too
+	 * small to scale the pass stops there: the scale of that step is at
+	 * most MIN_SCALE, those after it are 0, and the forward vectors are
+	 * not divided by their scales.
+	 *
+	 * @param hmm the estimator
+	 * @param sequence the sequence of symbols
+	 * @param alpha receives the scaled forward vector of each step
+	 * @return the scale of each step
+	 */
+	public double [] forward(final DiscreteHMMEstimator hmm, final Instances sequence,
+			final double alpha[][]) throws Exception
+	{
+		final int N = hmm.getNumStates();
+		final int T = sequence.numInstances();
+		final int numWorkers = m_NumWorkers;
+		final double scales[] = new double[T];
+		final double pi[] = hmm.getState0Probabilities();
+		final double A[] = hmm.getTransitionProbabilities();
+		final int outputs[] = new int[T];
+		for (int t = 0; t < T; t++)
+			outputs[t] = (int)sequence.instance(t).value(0);
+		// normalise the outputs before the threads read them
+		hmm.getOutputProbability(0, 0);
+
+		final double blockSums[] = new double[numWorkers];
+		// the current step, and the step whose scale is too small, or -1
+		final int step[] = {0, -1};
+		final AtomicBoolean abort = new AtomicBoolean(false);
+		final CyclicBarrier barrier = new CyclicBarrier(numWorkers, new Runnable() {
+			public void run() {
+				double scale = 0.0;
+				for (int w = 0; w < blockSums.length; w++)
+					scale += blockSums[w];
+				scales[step[0]] = scale;
+				if (Math.abs(scale) <= ForwardSteps.MIN_SCALE)
+					step[1] = step[0];
+				step[0]++;
+			}
+		});
+
+		List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+		for (int w = 0; w < numWorkers; w++)
+		{
+			final int worker = w;
+			final int lo = (int)((long)w*N/numWorkers);
+			final int hi = (int)((long)(w + 1)*N/numWorkers);
+			workers.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					for (int t = 0; t < T; t++)
+					{
+						try
+						{
+							double cur[] = alpha[t];
+							int o = outputs[t];
+							double sum = 0.0;
+							if (t == 0)
+							{
+								for (int s = lo; s < hi; s++)
+								{
+									cur[s] = pi[s]*hmm.getOutputProbability(s, o);
+									sum += cur[s];
+								}
+							}
+							else
+							{
+								double prev[] = alpha[t-1];
+								double inv = 1.0/scales[t-1];
+								Arrays.fill(cur, lo, hi, 0.0);
+								for (int ps = 0; ps < N; ps++)
+								{
+									double a = prev[ps];
+									if (a == 0.0)
+										continue;
+									int row = ps*N;
+									for (int s = lo; s < hi; s++)
+										cur[s] += a*A[row + s];
+								}
+								for (int s = lo; s < hi; s++)
+								{
+									cur[s] *= inv*hmm.getOutputProbability(s, o);
+									sum += cur[s];
+								}
+							}
+							blockSums[worker] = sum;
+						}
+						catch (Exception e)
+						{
+							// meet the others at this step's barrier so they see the flag
+							abort.set(true);
+							try
+							{
+								barrier.await();
+							}
+							catch (BrokenBarrierException ignored)
+							{
+							}
+							throw e;
+						}
+						// a broken barrier stays broken, so every thread leaves through it
+						barrier.await();
+						if (step[1] >= 0 || abort.get())
+							return null;
+					}
+					return null;
+				}
+			});
+		}
+		m_Pool.run(workers);
+		if (step[1] >= 0)
+			return scales;
+
+		for (int t = 0; t < T; t++)
+			for (int s = 0; s < N; s++)
+				alpha[t][s] /= scales[t];
+		return scales;
+	}
+
+	/**
+	 * the log likelihood of a sequence, running the pass over the
+	 * forward vectors of the workspace
+	 */
+	public double logLikelihood(DiscreteHMMEstimator hmm, Instances sequence, ScoringWorkspace workspace) throws Exception
+	{
+		int T = sequence.numInstances();
+		double scales[] = forward(hmm, sequence, workspace.getAlpha(T));
+		double lik = 0.0;
+		for (int t = 0; t < T; t++)
+		{
+			if (Math.abs(scales[t]) <= ForwardSteps.MIN_SCALE)
+				return Double.NEGATIVE_INFINITY;
+			lik += Math.log(Math.max(scales[t], 1.0E-32));
+		}
+		return lik;
+	}
+}
@@ -0,0 +1,261 @@
+package weka.classifiers.bayes.hmm;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import weka.core.Instances;
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * A compact, inference only copy of a trained discrete HMM. The output
+ * probabilities are stored as 8 or 16 bit codes of their logs, with a
+ * separate offset and step for each state, and laid out symbol major so
+ * that the probabilities of all states for one output are adjacent.
+ * The codes are decoded with small per-state lookup tables while the
+ * forward pass runs, so much more of the model stays in cache than with
+ * a table of doubles. The transition probabilities are kept as doubles.
+ */
+public class QuantizedDiscreteHMM implements Serializable {
+
+	private static final long serialVersionUID = 6024593301961862262L;
+
+	protected int m_NumStates;
+	protected int m_NumOutputs;
+	protected int m_Bits;
+
+	protected double m_State0Probs[];
+	protected double m_StateProbs[];
+
+	/** the codes of the output probabilities, indexed by output*numStates + state */
+	protected byte m_Codes8[];
+	protected short m_Codes16[];
+
+	/**
+	 * decoding tables, the probability of a code is the product of the
+	 * entries for its high and low bytes. Only the low byte is used for
+	 * 8 bit codes.
+	 */
+	protected double m_DecodeHigh[];
+	protected double m_DecodeLow[];
+
+	/** the code of a zero probability */
+	protected int m_ZeroCode;
+
+	protected double minScale = 1.0E-200;
+
+	/**
+	 * quantizes the output probabilities of a trained estimator
+	 *
+	 * @param est the estimator
+	 * @param bits the number of bits of each code, 8 or 16
+	 */
+	public QuantizedDiscreteHMM(DiscreteHMMEstimator est, int bits) throws Exception
+	{
+		if (bits != 8 && bits != 16)
+			throw new Exception("Output probabilities can only be quantized to 8 or 16 bits");
+
+		m_Bits = bits;
+		m_NumStates = est.getNumStates();
+		m_NumOutputs = est.getNumOutputs();
+		m_State0Probs = est.getState0Probabilities().clone();
+		m_StateProbs = est.getTransitionProbabilities().clone();
+
+		int N = m_NumStates;
+		m_ZeroCode = (1 << bits) - 1;
+		int maxCode = m_ZeroCode - 1;
+		if (bits == 8)
+			m_Codes8 = new byte[m_NumOutputs*N];
+		else
+			m_Codes16 = new short[m_NumOutputs*N];
+		m_DecodeHigh = new double[N*256];
+		m_DecodeLow = new double[N*256];
+
+		double column[] = new double[N];
+		double maxLog[] = new double[N];
+		double minLog[] = new double[N];
+		Arrays.fill(maxLog, Double.NEGATIVE_INFINITY);
+		Arrays.fill(minLog, Double.POSITIVE_INFINITY);
+		for (int o = 0; o < m_NumOutputs; o++)
+		{
+			est.getOutputColumn(o, column);
+			for (int s = 0; s < N; s++)
+			{
+				if (column[s] <= 0)
+					continue;
+				double l = Math.log(column[s]);
+				maxLog[s] = Math.max(maxLog[s], l);
+				minLog[s] = Math.min(minLog[s], l);
+			}
+		}
+
+		// the log probability of code c in state s is offset[s] + c*step[s]
+		double offset[] = new double[N];
+		double step[] = new double[N];
+		for (int s = 0; s < N; s++)
+		{
+			if (maxLog[s] == Double.NEGATIVE_INFINITY)
+				continue;
+			offset[s] = maxLog[s];
+			step[s] = (minLog[s] - maxLog[s])/maxCode;
+		}
+
+		for (int o = 0; o < m_NumOutputs; o++)
+		{
+			est.getOutputColumn(o, column);
+			for (int s = 0; s < N; s++)
+			{
+				int code = m_ZeroCode;
+				if (column[s] > 0)
+					code = step[s] == 0 ? 0 : (int)Math.round((Math.log(column[s]) - offset[s])/step[s]);
+				if (bits == 8)
+					m_Codes8[o*N + s] = (byte)code;
+				else
+					m_Codes16[o*N + s] = (short)code;
+			}
+		}
+
+		for (int s = 0; s < N; s++)
+		{
+			for (int c = 0; c < 256; c++)
+			{
+				if (bits == 8)
+				{
+					m_DecodeHigh[s*256 + c] = 1.0;
+					m_DecodeLow[s*256 + c] = Math.exp(offset[s] + c*step[s]);
+				}
+				else
+				{
+					m_DecodeHigh[s*256 + c] = Math.exp(offset[s] + c*256*step[s]);
+					m_DecodeLow[s*256 + c] = Math.exp(c*step[s]);
+				}
+			}
+		}
+	}
+
+	public int getNumStates() {
+		return m_NumStates;
+	}
+
+	public int getNumOutputs() {
+		return m_NumOutputs;
+	}
+
+	public int getBits() {
+		return m_Bits;
+	}
+
+	/**
+	 * gets the decoded probability of a state emitting an output
+	 *
+	 * @param state the state
+	 * @param output the output symbol
+	 */
+	public double getOutputProbability(int state, int output)
+	{
+		int code;
+		if (m_Bits == 8)
+			code = m_Codes8[output*m_NumStates + state] & 0xFF;
+		else
+			code = m_Codes16[output*m_NumStates + state] & 0xFFFF;
+		if (code == m_ZeroCode)
+			return 0.0;
+		return m_DecodeHigh[state*256 + (code >>> 8)]*m_DecodeLow[state*256 + (code & 0xFF)];
+	}
+
+	/**
+	 * decodes the probabilities of all states emitting an output
+	 */
+	protected void getOutputColumn(int output, double result[])
+	{
+		int N = m_NumStates;
+		int base = output*N;
+		for (int s = 0; s < N; s++)
+		{
+			int code = m_Bits == 8 ? m_Codes8[base + s] & 0xFF : m_Codes16[base + s] & 0xFFFF;
+			result[s] = code == m_ZeroCode ? 0.0
+				: m_DecodeHigh[s*256 + (code >>> 8)]*m_DecodeLow[s*256 + (code & 0xFF)];
+		}
+	}
+
+	/**
+	 * the log likelihood of a sequence, using the scaled forward algorithm
+	 *
+	 * @param sequence the sequence of output symbols
+	 * @return the log likelihood, or negative infinity if the sequence
+	 * is too unlikely to evaluate
+	 */
+	public double logLikelihood(Instances sequence)
+	{
+		int N = m_NumStates;
+		return logLikelihood(sequence, new double[N], new double[N], new double[N]);
+	}
+
+	/**
+	 * the log likelihood of a sequence, using space passed in by the
+	 * caller so that nothing is allocated
+	 *
+	 * @param sequence the sequence of output symbols
+	 * @param alpha space for a forward vector
+	 * @param next space for a forward vector
+	 * @param b space for the output probabilities of a frame
+	 * @return the log likelihood, or negative infinity if the sequence
+	 * is too unlikely to evaluate
+	 */
+	public double logLikelihood(Instances sequence, double alpha[], double next[], double b[])
+	{
+		int N = m_NumStates;
+		double lik = 0.0;
+
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			getOutputColumn((int)sequence.instance(t).value(0), b);
+			if (t == 0)
+			{
+				for (int s = 0; s < N; s++)
+					next[s] = m_State0Probs[s]*b[s];
+			}
+			else
+			{
+				Arrays.fill(next, 0.0);
+				for (int ps = 0; ps < N; ps++)
+				{
+					double a = alpha[ps];
+					if (a == 0.0)
+						continue;
+					int row = ps*N;
+					for (int s = 0; s < N; s++)
+						next[s] += a*m_StateProbs[row + s];
+				}
+				for (int s = 0; s < N; s++)
+					next[s] *= b[s];
+			}
+
+			double scale = 0.0;
+			for (int s = 0; s < N; s++)
+				scale += next[s];
+			if (Math.abs(scale) <= minScale)
+				return Double.NEGATIVE_INFINITY;
+			for (int s = 0; s < N; s++)
+				next[s] /= scale;
+			lik += Math.log(Math.max(scale, 1.0E-32));
+
+			double tmp[] = alpha;
+			alpha = next;
+			next = tmp;
+		}
+		return lik;
+	}
+
+	/**
+	 * gets the number of bytes used by the output codes
+	 */
+	public long getCodeBytes()
+	{
+		return (long)m_NumOutputs*m_NumStates*m_Bits/8;
+	}
+
+	public String toString()
+	{
+		return m_Bits + " bit quantized outputs, " + getCodeBytes() + " bytes\n";
+	}
+}
@@ -0,0 +1,117 @@
+package weka.classifiers.bayes.hmm;
+
+import weka.core.Instances;
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * The log likelihood of a sequence under a discrete HMM, evaluating
+ * runs of the same symbol o of length k as alpha*(A*diag(b_o))^k.
+ * The power is applied as a product of the cached powers of two of the
+ * symbol matrix, each of which is kept normalised with its log scale, so
+ * a run costs a number of vector matrix products logarithmic in its length.
+ * Shorter runs are evaluated step by step. The likelihood is the same as
+ * that of the step by step pass, except that the lower bound on each
+ * step's scale is applied to a whole run.
+ */
+public class RunLengthForward implements ForwardKernel {
+
+	/**
+	 * runs of at least this many identical symbols are evaluated
+	 * with powers of their symbol matrix rather than step by step
+	 */
+	public static final int MIN_RUN_LENGTH = 8;
+
+	/**
+	 * whether a sequence has a run of at least MIN_RUN_LENGTH identical symbols
+	 */
+	public static boolean hasLongRuns(Instances sequence)
+	{
+		int run = 0;
+		double prev = Double.NaN;
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			double o = sequence.instance(t).value(0);
+			run = o == prev ? run + 1 : 1;
+			if (run >= MIN_RUN_LENGTH)
+				return true;
+			prev = o;
+		}
+		return false;
+	}
+
+	/**
+	 * divides a forward vector by its sum
+	 *
+	 * @return the log of the sum, or negative infinity if it is too
+	 * small to divide by
+	 */
+	protected static double scaleForward(double v[])
+	{
+		double scale = 0.0;
+		for (int s = 0; s < v.length; s++)
+			scale += v[s];
+		if (Math.abs(scale) <= ForwardSteps.MIN_SCALE)
+			return Double.NEGATIVE_INFINITY;
+		for (int s = 0; s < v.length; s++)
+			v[s] /= scale;
+		return Math.log(Math.max(scale, 1.0E-32));
+	}
+
+	/**
+	 * the log likelihood of a sequence, using the vectors of the
+	 * workspace so that nothing is allocated
+	 */
+	public double logLikelihood(DiscreteHMMEstimator hmm, Instances sequence, ScoringWorkspace workspace)
+	{
+		int N = hmm.getNumStates();
+		int T = sequence.numInstances();
+		double pi[] = hmm.getState0Probabilities();
+		double alpha[] = workspace.m_Vector;
+		double next[] = workspace.m_Next;
+
+		int o = (int)sequence.instance(0).value(0);
+		hmm.getOutputColumn(o, alpha);
+		for (int s = 0; s < N; s++)
+			alpha[s] *= pi[s];
+		double lik = scaleForward(alpha);
+
+		int t = 1;
+		while (t < T && lik != Double.NEGATIVE_INFINITY)
+		{
+			o = (int)sequence.instance(t).value(0);
+			int run = 1;
+			while (t + run < T && (int)sequence.instance(t + run).value(0) == o)
+				run++;
+
+			int highestBit = 31 - Integer.numberOfLeadingZeros(run);
+			if (run >= MIN_RUN_LENGTH && hmm.getSymbolMatrixPower(o, highestBit) != null)
+			{
+				for (int j = 0; j <= highestBit && lik != Double.NEGATIVE_INFINITY; j++)
+				{
+					if (((run >> j) & 1) == 0)
+						continue;
+					ForwardSteps.vectorTimesMatrix(alpha, hmm.getSymbolMatrixPower(o, j), next);
+					lik += hmm.getSymbolMatrixPowerLogScale(o, j);
+					double tmp[] = alpha;
+					alpha = next;
+					next = tmp;
+					lik += scaleForward(alpha);
+				}
+			}
+			else
+			{
+				for (int i = 0; i < run && lik != Double.NEGATIVE_INFINITY; i++)
+				{
+					ForwardSteps.forwardStep(hmm, o, alpha, next, workspace.m_Column);
+					double tmp[] = alpha;
+					alpha = next;
+					next = tmp;
+					lik += scaleForward(alpha);
+				}
+			}
+			t += run;
+		}
+
+		return lik;
+	}
+}
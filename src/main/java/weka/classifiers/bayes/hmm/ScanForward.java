@@ -0,0 +1,190 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import weka.core.Instances;
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * The log likelihood of a long discrete sequence, computed in parallel
+ * over time. Each step of the forward pass multiplies the forward
+ * vector by the transition matrix and then by the output probabilities
+ * of the frame, which is a linear operator, and operators compose
+ * associatively. So the frames after the first are split into chunks
+ * and each chunk's operator, the product of its frames' operators, is
+ * calculated on its own thread, normalised after every frame with the
+ * log of the normalising sums kept separately. The chunk operators are
+ * then combined pairwise in a tree, each level in parallel, and the
+ * result applied to the first frame. Only the likelihood is needed,
+ * not the forward vectors at every frame, so the scan reduces to this
+ * tree and no downward pass is needed.
+ * Multiplying operators costs N^3 rather than the N^2 of multiplying
+ * a vector, so this only pays for HMMs with few states, with sequences
+ * long enough that the chain of the serial forward pass is the limit.
+ */
+public class ScanForward implements ForwardKernel {
+
+	protected ForwardPool m_Pool;
+	protected int m_NumChunks;
+
+	/**
+	 * @param pool the threads that help the calling one
+	 * @param numChunks the number of chunks, and threads, to use
+	 */
+	public ScanForward(ForwardPool pool, int numChunks)
+	{
+		m_Pool = pool;
+		m_NumChunks = numChunks;
+	}
+
+	public int getNumChunks() {
+		return m_NumChunks;
+	}
+
+	/**
+	 * multiplies two square row major matrices
+	 */
+	public static void matrixTimesMatrix(double X[], double Y[], double result[], int N)
+	{
+		Arrays.fill(result, 0.0);
+		for (int i = 0; i < N; i++)
+		{
+			int row = i*N;
+			for (int k = 0; k < N; k++)
+			{
+				double x = X[row + k];
+				if (x == 0.0)
+					continue;
+				int yRow = k*N;
+				for (int j = 0; j < N; j++)
+					result[row + j] += x*Y[yRow + j];
+			}
+		}
+	}
+
+	/**
+	 * divides a matrix by the sum of its entries
+	 *
+	 * @return the log of the sum, or negative infinity if the sum is
+	 * too small to divide by, when the matrix is unchanged
+	 */
+	protected static double normaliseOperator(double M[])
+	{
+		double sum = 0.0;
+		for (int i = 0; i < M.length; i++)
+			sum += M[i];
+		if (Math.abs(sum) <= ForwardSteps.MIN_SCALE)
+			return Double.NEGATIVE_INFINITY;
+		double inv = 1.0/sum;
+		for (int i = 0; i < M.length; i++)
+			M[i] *= inv;
+		return Math.log(sum);
+	}
+
+	/**
+	 * the log likelihood of a sequence. The workspace is not used, as
+	 * each chunk runs on its own thread.
+	 */
+	public double logLikelihood(final DiscreteHMMEstimator hmm, Instances sequence,
+			ScoringWorkspace workspace) throws Exception
+	{
+		final int N = hmm.getNumStates();
+		int T = sequence.numInstances();
+		final double A[] = hmm.getTransitionProbabilities();
+		final int outputs[] = new int[T];
+		for (int t = 0; t < T; t++)
+			outputs[t] = (int)sequence.instance(t).value(0);
+		hmm.getOutputProbability(0, 0);
+
+		// the first frame
+		double v[] = new double[N];
+		double pi[] = hmm.getState0Probabilities();
+		double sum = 0.0;
+		for (int s = 0; s < N; s++)
+		{
+			v[s] = pi[s]*hmm.getOutputProbability(s, outputs[0]);
+			sum += v[s];
+		}
+		if (Math.abs(sum) <= ForwardSteps.MIN_SCALE)
+			return Double.NEGATIVE_INFINITY;
+		double lik = Math.log(sum);
+		for (int s = 0; s < N; s++)
+			v[s] /= sum;
+		if (T == 1)
+			return lik;
+
+		// the operators of the chunks of the remaining frames
+		int numChunks = Math.min(m_NumChunks, T - 1);
+		final double operators[][] = new double[numChunks][];
+		final double logScales[] = new double[numChunks];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int c = 0; c < numChunks; c++)
+		{
+			final int chunk = c;
+			final int from = 1 + (int)((long)c*(T - 1)/numChunks);
+			final int to = 1 + (int)((long)(c + 1)*(T - 1)/numChunks);
+			tasks.add(new Callable<Void>() {
+				public Void call() throws Exception {
+					double M[] = new double[N*N];
+					double next[] = new double[N*N];
+					double b[] = new double[N];
+					double logScale = 0.0;
+					for (int t = from; t < to && logScale != Double.NEGATIVE_INFINITY; t++)
+					{
+						for (int s = 0; s < N; s++)
+							b[s] = hmm.getOutputProbability(s, outputs[t]);
+						if (t == from)
+							System.arraycopy(A, 0, next, 0, N*N);
+						else
+							matrixTimesMatrix(M, A, next, N);
+						for (int i = 0; i < N; i++)
+							for (int j = 0; j < N; j++)
+								next[i*N + j] *= b[j];
+						logScale += normaliseOperator(next);
+						double swap[] = M;
+						M = next;
+						next = swap;
+					}
+					operators[chunk] = M;
+					logScales[chunk] = logScale;
+					return null;
+				}
+			});
+		}
+		m_Pool.run(tasks);
+
+		// combine neighbouring operators until one is left
+		for (int stride = 1; stride < numChunks; stride *= 2)
+		{
+			tasks.clear();
+			for (int c = 0; c + stride < numChunks; c += 2*stride)
+			{
+				final int left = c;
+				final int right = c + stride;
+				tasks.add(new Callable<Void>() {
+					public Void call() throws Exception {
+						double M[] = new double[N*N];
+						matrixTimesMatrix(operators[left], operators[right], M, N);
+						logScales[left] += logScales[right] + normaliseOperator(M);
+						operators[left] = M;
+						operators[right] = null;
+						return null;
+					}
+				});
+			}
+			m_Pool.run(tasks);
+		}
+
+		if (logScales[0] == Double.NEGATIVE_INFINITY)
+			return Double.NEGATIVE_INFINITY;
+		double M[] = operators[0];
+		sum = 0.0;
+		for (int i = 0; i < N; i++)
+			for (int j = 0; j < N; j++)
+				sum += v[i]*M[i*N + j];
+		return lik + logScales[0] + Math.log(sum);
+	}
+}
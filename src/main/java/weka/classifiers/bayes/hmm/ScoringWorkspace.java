@@ -0,0 +1,108 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.Arrays;
+
+import weka.core.matrix.DoubleVector;
+
+/**
+ * The arrays used to score a sequence, kept between calls so that
+ * scoring does not allocate once the longest sequence has been seen.
+ * Each thread has its own.
+ */
+public class ScoringWorkspace {
+
+	protected int m_NumStates;
+	/** the forward vectors of a whole sequence, grown as needed */
+	protected double m_Alpha[][] = new double[0][];
+	protected double m_Scales[] = new double[0];
+	/** the current and next forward vectors of a single pass */
+	protected double m_Vector[];
+	protected double m_Next[];
+	protected float m_FloatVector[];
+	/** the output probabilities of a frame */
+	protected double m_Column[];
+	protected DoubleVector m_Output = null;
+	/** the key of the frame being looked up in the emission cache */
+	protected EmissionCache.FrameKey m_FrameKey = new EmissionCache.FrameKey();
+	/** the emission cache entry of each frame of a sequence, grown as needed */
+	protected double m_Emissions[][] = new double[0][];
+
+	public ScoringWorkspace(int numStates)
+	{
+		m_NumStates = numStates;
+		m_Vector = new double[numStates];
+		m_Next = new double[numStates];
+		m_FloatVector = new float[numStates];
+		m_Column = new double[numStates];
+	}
+
+	public int getNumStates() {
+		return m_NumStates;
+	}
+
+	public double [] getVector() {
+		return m_Vector;
+	}
+
+	public double [] getNext() {
+		return m_Next;
+	}
+
+	public float [] getFloatVector() {
+		return m_FloatVector;
+	}
+
+	public double [] getColumn() {
+		return m_Column;
+	}
+
+	public EmissionCache.FrameKey getFrameKey() {
+		return m_FrameKey;
+	}
+
+	/**
+	 * gets space for the emission cache entries of a sequence of at
+	 * least the given length
+	 */
+	public double [][] getEmissions(int length)
+	{
+		if (m_Emissions.length < length)
+			m_Emissions = new double[Math.max(length, 2*m_Emissions.length)][];
+		return m_Emissions;
+	}
+
+	/**
+	 * gets forward vectors for a sequence of at least the given length
+	 */
+	public double [][] getAlpha(int length)
+	{
+		if (m_Alpha.length < length)
+		{
+			double alpha[][] = Arrays.copyOf(m_Alpha, Math.max(length, 2*m_Alpha.length));
+			for (int t = m_Alpha.length; t < alpha.length; t++)
+				alpha[t] = new double[m_NumStates];
+			m_Alpha = alpha;
+		}
+		return m_Alpha;
+	}
+
+	/**
+	 * gets scales for a sequence of at least the given length
+	 */
+	public double [] getScales(int length)
+	{
+		if (m_Scales.length < length)
+			m_Scales = new double[Math.max(length, 2*m_Scales.length)];
+		return m_Scales;
+	}
+
+	/**
+	 * gets a vector for a frame of the given dimension
+	 */
+	public DoubleVector getOutput(int dimension)
+	{
+		if (m_Output == null || m_Output.size() != dimension)
+			m_Output = new DoubleVector(dimension);
+		return m_Output;
+	}
+}
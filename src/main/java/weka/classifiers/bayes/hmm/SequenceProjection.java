@@ -0,0 +1,225 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.matrix.EigenvalueDecomposition;
+import weka.core.matrix.Matrix;
+
+/**
+ * A linear projection of the frames of numeric sequences to a lower
+ * number of dimensions. The projection is either onto the principal
+ * components of the training frames or a gaussian random projection.
+ * It is fitted once on the training data and stored with the HMM so that
+ * training, classification and sampling all work in the reduced space.
+ */
+public class SequenceProjection extends SequenceTransform {
+
+	private static final long serialVersionUID = -3170373526542049113L;
+
+	/** Projection Type: principal component analysis */
+	public static final int PROJECTION_PCA = 0;
+	/** Projection Type: gaussian random projection */
+	public static final int PROJECTION_RANDOM = 1;
+
+	protected int m_Type = PROJECTION_PCA;
+
+	/** the mean of the training frames, subtracted before projecting */
+	protected double m_Mean[];
+	/** the projection, one row per output dimension */
+	protected double m_Basis[][];
+	/** maps projected frames back to the original space (pseudo-inverse of the basis) */
+	protected double m_Inverse[][];
+
+	/** the header of projected sequences */
+	protected Instances m_Header;
+	/** the header of sequences in the original space */
+	protected Instances m_InputHeader;
+
+	public SequenceProjection(int type)
+	{
+		m_Type = type;
+	}
+
+	public int getType() {
+		return m_Type;
+	}
+
+	/**
+	 * gets the number of dimensions of the original frames
+	 */
+	public int getInputDimension()
+	{
+		return m_Mean.length;
+	}
+
+	/**
+	 * gets the number of dimensions of the projected frames
+	 */
+	public int getOutputDimension()
+	{
+		return m_Basis.length;
+	}
+
+	/**
+	 * fits the projection to the frames of all sequences in a data set
+	 *
+	 * @param data the training data
+	 * @param seqAttr the index of the relational attribute holding the sequences
+	 * @param numDimensions the number of dimensions to project to
+	 * @param rand the random number generator used by random projections
+	 */
+	public void build(Instances data, int seqAttr, int numDimensions, Random rand) throws Exception
+	{
+		m_InputHeader = new Instances(data.attribute(seqAttr).relation(), 0);
+		int d = m_InputHeader.numAttributes();
+		if (numDimensions < 1 || numDimensions > d)
+			throw new Exception("Cannot project " + d + " dimensional outputs to " + numDimensions + " dimensions");
+
+		// mean and scatter of all training frames
+		m_Mean = new double[d];
+		double scatter[][] = new double[d][d];
+		double n = 0;
+		for (int i = 0; i < data.numInstances(); i++)
+		{
+			Instance inst = data.instance(i);
+			if (inst.isMissing(seqAttr))
+				continue;
+			Instances sequence = inst.relationalValue(seqAttr);
+			for (int t = 0; t < sequence.numInstances(); t++)
+			{
+				Instance frame = sequence.instance(t);
+				for (int a = 0; a < d; a++)
+				{
+					double x = frame.value(a);
+					m_Mean[a] += x;
+					if (m_Type == PROJECTION_PCA)
+						for (int b = 0; b <= a; b++)
+							scatter[a][b] += x*frame.value(b);
+				}
+				n += 1;
+			}
+		}
+		if (n == 0)
+			throw new Exception("No frames to fit the projection to");
+		for (int a = 0; a < d; a++)
+			m_Mean[a] /= n;
+
+		m_Basis = new double[numDimensions][d];
+		if (m_Type == PROJECTION_PCA)
+		{
+			Matrix cov = new Matrix(d, d);
+			for (int a = 0; a < d; a++)
+				for (int b = 0; b <= a; b++)
+				{
+					double c = scatter[a][b]/n - m_Mean[a]*m_Mean[b];
+					cov.set(a, b, c);
+					cov.set(b, a, c);
+				}
+			EigenvalueDecomposition eig = cov.eig();
+			double values[] = eig.getRealEigenvalues();
+			Matrix V = eig.getV();
+
+			// take the eigenvectors with the largest eigenvalues
+			boolean used[] = new boolean[d];
+			for (int j = 0; j < numDimensions; j++)
+			{
+				int best = -1;
+				for (int a = 0; a < d; a++)
+					if (!used[a] && (best < 0 || values[a] > values[best]))
+						best = a;
+				used[best] = true;
+				for (int a = 0; a < d; a++)
+					m_Basis[j][a] = V.get(a, best);
+			}
+		}
+		else
+		{
+			double scale = 1.0/Math.sqrt(numDimensions);
+			for (int j = 0; j < numDimensions; j++)
+				for (int a = 0; a < d; a++)
+					m_Basis[j][a] = rand.nextGaussian()*scale;
+		}
+
+		// the pseudo-inverse B^T (B B^T)^-1 is the transpose
+		// for PCA but not for random projections
+		Matrix B = new Matrix(m_Basis);
+		m_Inverse = B.transpose().times(B.times(B.transpose()).inverse()).getArray();
+
+		ArrayList<Attribute> attrs = new ArrayList<Attribute>();
+		for (int j = 0; j < numDimensions; j++)
+			attrs.add(new Attribute("projection_" + j));
+		m_Header = new Instances(m_InputHeader.relationName(), attrs, 0);
+	}
+
+	@Override
+	public Instances getHeader()
+	{
+		return new Instances(m_Header, 0);
+	}
+
+	/**
+	 * projects a single frame
+	 *
+	 * @param frame the frame in the original space
+	 * @param result the array to receive the projected values
+	 */
+	public void project(Instance frame, double result[])
+	{
+		for (int j = 0; j < m_Basis.length; j++)
+		{
+			double v = 0.0;
+			double basis[] = m_Basis[j];
+			for (int a = 0; a < basis.length; a++)
+				v += basis[a]*(frame.value(a) - m_Mean[a]);
+			result[j] = v;
+		}
+	}
+
+	@Override
+	public Instances transform(Instances sequence)
+	{
+		Instances result = new Instances(m_Header, sequence.numInstances());
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			double values[] = new double[m_Basis.length];
+			project(sequence.instance(t), values);
+			result.add(new DenseInstance(1.0, values));
+		}
+		return result;
+	}
+
+	/**
+	 * maps a projected sequence back to the original space
+	 *
+	 * @param sequence the projected sequence
+	 * @param header the sequence to add the reconstructed frames to
+	 */
+	public void unproject(Instances sequence, Instances header)
+	{
+		for (int t = 0; t < sequence.numInstances(); t++)
+		{
+			Instance frame = sequence.instance(t);
+			double values[] = new double[m_Mean.length];
+			for (int a = 0; a < m_Mean.length; a++)
+			{
+				double v = m_Mean[a];
+				for (int j = 0; j < m_Basis.length; j++)
+					v += m_Inverse[a][j]*frame.value(j);
+				values[a] = v;
+			}
+			header.add(new DenseInstance(1.0, values));
+		}
+	}
+
+	public String toString()
+	{
+		String s = (m_Type == PROJECTION_PCA ? "PCA" : "Random") + " projection from "
+			+ getInputDimension() + " to " + getOutputDimension() + " dimensions\n";
+		return s;
+	}
+}
@@ -0,0 +1,64 @@
+package weka.classifiers.bayes.hmm;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+/**
+ * Base class of the transformations the HMM classifier applies to 
+ * sequences before they are passed to the estimators. A transformation 
+ * is fitted to the training data and stored with the model.
+ */
+public abstract class SequenceTransform implements Serializable {
+
+	private static final long serialVersionUID = 6013622186413545264L;
+
+	/**
+	 * gets an empty sequence with the attributes of transformed sequences
+	 */
+	public abstract Instances getHeader();
+
+	/**
+	 * transforms all the frames of a sequence
+	 *
+	 * @param sequence the sequence to transform
+	 * @return the transformed sequence
+	 */
+	public abstract Instances transform(Instances sequence);
+
+	/**
+	 * transforms the sequences of a whole data set
+	 *
+	 * @param data the data set
+	 * @param seqAttr the index of the relational attribute holding the sequences
+	 * @return a copy of the data set with transformed sequences
+	 */
+	public Instances transform(Instances data, int seqAttr)
+	{
+		ArrayList<Attribute> attrs = new ArrayList<Attribute>();
+		for (int i = 0; i < data.numAttributes(); i++)
+		{
+			if (i == seqAttr)
+				attrs.add(new Attribute(data.attribute(i).name(), getHeader()));
+			else
+				attrs.add((Attribute)data.attribute(i).copy());
+		}
+		Instances result = new Instances(data.relationName(), attrs, data.numInstances());
+		result.setClassIndex(data.classIndex());
+
+		Attribute seqA = result.attribute(seqAttr);
+		for (int i = 0; i < data.numInstances(); i++)
+		{
+			Instance inst = data.instance(i);
+			double values[] = inst.toDoubleArray();
+			if (!inst.isMissing(seqAttr))
+				values[seqAttr] = seqA.addRelation(transform(inst.relationalValue(seqAttr)));
+			result.add(new DenseInstance(inst.weight(), values));
+		}
+		return result;
+	}
+}
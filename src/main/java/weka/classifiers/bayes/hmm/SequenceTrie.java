@@ -0,0 +1,130 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import weka.core.Instances;
+
+/**
+ * A trie of discrete sequences, used to score a batch of sequences that
+ * share prefixes. Every distinct prefix is one node, so a recursion that
+ * only depends on the prefix (such as the forward pass of an HMM) can be
+ * run once per node rather than once per frame of every sequence.
+ * Node 0 is the root, the empty prefix. The children of a node are kept
+ * as a linked list and nodes are numbered in the order they are added,
+ * so a parent always has a lower number than its children.
+ */
+public class SequenceTrie {
+
+	/** the last symbol of the prefix of each node */
+	protected int m_Symbol[];
+	/** the length of the prefix of each node */
+	protected int m_Depth[];
+	protected int m_FirstChild[];
+	protected int m_NextSibling[];
+	protected int m_NumNodes;
+	protected int m_MaxDepth;
+
+	/** the node of each child, indexed by parent*numOutputs + symbol */
+	protected HashMap<Long, Integer> m_Children = new HashMap<Long, Integer>();
+	protected long m_NumOutputs;
+
+	/**
+	 * @param numOutputs the number of symbols sequences are made of
+	 */
+	public SequenceTrie(int numOutputs)
+	{
+		m_NumOutputs = numOutputs;
+		m_Symbol = new int[16];
+		m_Depth = new int[16];
+		m_FirstChild = new int[16];
+		m_NextSibling = new int[16];
+		m_FirstChild[0] = -1;
+		m_NextSibling[0] = -1;
+		m_NumNodes = 1;
+	}
+
+	/**
+	 * adds a sequence, whose first attribute holds the symbols
+	 *
+	 * @return the node of the whole sequence
+	 */
+	public int add(Instances sequence)
+	{
+		int node = 0;
+		for (int t = 0; t < sequence.numInstances(); t++)
+			node = child(node, (int)sequence.instance(t).value(0));
+		return node;
+	}
+
+	/**
+	 * gets the child of a node for a symbol, adding it if it is not there
+	 */
+	protected int child(int parent, int symbol)
+	{
+		Long key = parent*m_NumOutputs + symbol;
+		Integer node = m_Children.get(key);
+		if (node != null)
+			return node;
+
+		if (m_NumNodes == m_Symbol.length)
+		{
+			int size = 2*m_NumNodes;
+			m_Symbol = Arrays.copyOf(m_Symbol, size);
+			m_Depth = Arrays.copyOf(m_Depth, size);
+			m_FirstChild = Arrays.copyOf(m_FirstChild, size);
+			m_NextSibling = Arrays.copyOf(m_NextSibling, size);
+		}
+		int n = m_NumNodes++;
+		m_Symbol[n] = symbol;
+		m_Depth[n] = m_Depth[parent] + 1;
+		m_FirstChild[n] = -1;
+		m_NextSibling[n] = m_FirstChild[parent];
+		m_FirstChild[parent] = n;
+		m_MaxDepth = Math.max(m_MaxDepth, m_Depth[n]);
+		m_Children.put(key, n);
+		return n;
+	}
+
+	/**
+	 * gets the number of nodes, including the root
+	 */
+	public int numNodes()
+	{
+		return m_NumNodes;
+	}
+
+	/**
+	 * gets the length of the longest sequence
+	 */
+	public int maxDepth()
+	{
+		return m_MaxDepth;
+	}
+
+	public int symbol(int node)
+	{
+		return m_Symbol[node];
+	}
+
+	public int depth(int node)
+	{
+		return m_Depth[node];
+	}
+
+	/**
+	 * gets the first child of a node, or -1 if it has none
+	 */
+	public int firstChild(int node)
+	{
+		return m_FirstChild[node];
+	}
+
+	/**
+	 * gets the next child of a node's parent, or -1 if there are no more
+	 */
+	public int nextSibling(int node)
+	{
+		return m_NextSibling[node];
+	}
+}
@@ -0,0 +1,463 @@
+package weka.classifiers.bayes.hmm;
+
+import java.io.Serializable;
+
+import weka.core.Instances;
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * An inference only copy of a trained discrete HMM with few states, whose
+ * forward pass is written out in full for its number of states. The
+ * forward vector is held in local variables rather than an array and
+ * every sum over states is unrolled, so there are no inner loops and no
+ * calls to an estimator while a sequence is scored. There is one subclass
+ * for each number of states from MIN_STATES to MAX_STATES, chosen by
+ * create. The output probabilities are laid out symbol major so that the
+ * probabilities of all states for one output are adjacent.
+ */
+public abstract class SmallDiscreteHMM implements Serializable {
+
+	private static final long serialVersionUID = -5190263348276410927L;
+
+	/** the smallest and largest numbers of states that have a kernel */
+	public static final int MIN_STATES = 2;
+	public static final int MAX_STATES = 8;
+
+	protected int m_NumStates;
+	protected int m_NumOutputs;
+
+	protected double m_State0Probs[];
+	/** the transition probabilities, row major */
+	protected double m_StateProbs[];
+	/** the output probabilities, indexed by output*numStates + state */
+	protected double m_OutputProbs[];
+
+	protected double minScale = 1.0E-200;
+
+	protected SmallDiscreteHMM(DiscreteHMMEstimator est)
+	{
+		m_NumStates = est.getNumStates();
+		m_NumOutputs = est.getNumOutputs();
+		m_State0Probs = est.getState0Probabilities().clone();
+		m_StateProbs = est.getTransitionProbabilities().clone();
+
+		int N = m_NumStates;
+		m_OutputProbs = new double[m_NumOutputs*N];
+		double column[] = new double[N];
+		for (int o = 0; o < m_NumOutputs; o++)
+		{
+			est.getOutputColumn(o, column);
+			System.arraycopy(column, 0, m_OutputProbs, o*N, N);
+		}
+	}
+
+	/**
+	 * copies a trained estimator into the kernel for its number of states
+	 *
+	 * @param est the estimator
+	 * @return the copy, or null if there is no kernel for the number of states
+	 */
+	public static SmallDiscreteHMM create(DiscreteHMMEstimator est)
+	{
+		switch (est.getNumStates())
+		{
+			case 2:
+				return new States2(est);
+			case 3:
+				return new States3(est);
+			case 4:
+				return new States4(est);
+			case 5:
+				return new States5(est);
+			case 6:
+				return new States6(est);
+			case 7:
+				return new States7(est);
+			case 8:
+				return new States8(est);
+			default:
+				return null;
+		}
+	}
+
+	public int getNumStates() {
+		return m_NumStates;
+	}
+
+	public int getNumOutputs() {
+		return m_NumOutputs;
+	}
+
+	/**
+	 * the log likelihood of a sequence, using the scaled forward algorithm
+	 *
+	 * @param sequence the sequence of output symbols
+	 * @return the log likelihood, or negative infinity if the sequence
+	 * is too unlikely to evaluate
+	 */
+	public abstract double logLikelihood(Instances sequence);
+
+	protected static class States2 extends SmallDiscreteHMM {
+
+		private static final long serialVersionUID = 2250632855685025610L;
+
+		public States2(DiscreteHMMEstimator est)
+		{
+			super(est);
+		}
+
+		public double logLikelihood(Instances sequence)
+		{
+			final double A[] = m_StateProbs;
+			final double B[] = m_OutputProbs;
+			final double pi[] = m_State0Probs;
+			int T = sequence.numInstances();
+			if (T == 0)
+				return 0.0;
+
+			int o = (int)sequence.instance(0).value(0)*2;
+			double a0 = pi[0]*B[o];
+			double a1 = pi[1]*B[o + 1];
+			double lik = 0.0;
+			int t = 0;
+			while (true)
+			{
+				double scale = a0 + a1;
+				if (Math.abs(scale) <= minScale)
+					return Double.NEGATIVE_INFINITY;
+				lik += Math.log(Math.max(scale, 1.0E-32));
+				if (++t == T)
+					return lik;
+				double inv = 1.0/scale;
+				a0 *= inv;
+				a1 *= inv;
+
+				o = (int)sequence.instance(t).value(0)*2;
+				double n0 = (a0*A[0] + a1*A[2])*B[o];
+				double n1 = (a0*A[1] + a1*A[3])*B[o + 1];
+				a0 = n0; a1 = n1;
+			}
+		}
+	}
+
+	protected static class States3 extends SmallDiscreteHMM {
+
+		private static final long serialVersionUID = 1398226831197735802L;
+
+		public States3(DiscreteHMMEstimator est)
+		{
+			super(est);
+		}
+
+		public double logLikelihood(Instances sequence)
+		{
+			final double A[] = m_StateProbs;
+			final double B[] = m_OutputProbs;
+			final double pi[] = m_State0Probs;
+			int T = sequence.numInstances();
+			if (T == 0)
+				return 0.0;
+
+			int o = (int)sequence.instance(0).value(0)*3;
+			double a0 = pi[0]*B[o];
+			double a1 = pi[1]*B[o + 1];
+			double a2 = pi[2]*B[o + 2];
+			double lik = 0.0;
+			int t = 0;
+			while (true)
+			{
+				double scale = a0 + a1 + a2;
+				if (Math.abs(scale) <= minScale)
+					return Double.NEGATIVE_INFINITY;
+				lik += Math.log(Math.max(scale, 1.0E-32));
+				if (++t == T)
+					return lik;
+				double inv = 1.0/scale;
+				a0 *= inv;
+				a1 *= inv;
+				a2 *= inv;
+
+				o = (int)sequence.instance(t).value(0)*3;
+				double n0 = (a0*A[0] + a1*A[3] + a2*A[6])*B[o];
+				double n1 = (a0*A[1] + a1*A[4] + a2*A[7])*B[o + 1];
+				double n2 = (a0*A[2] + a1*A[5] + a2*A[8])*B[o + 2];
+				a0 = n0; a1 = n1; a2 = n2;
+			}
+		}
+	}
+
+	protected static class States4 extends SmallDiscreteHMM {
+
+		private static final long serialVersionUID = 333579892245864746L;
+
+		public States4(DiscreteHMMEstimator est)
+		{
+			super(est);
+		}
+
+		public double logLikelihood(Instances sequence)
+		{
+			final double A[] = m_StateProbs;
+			final double B[] = m_OutputProbs;
+			final double pi[] = m_State0Probs;
+			int T = sequence.numInstances();
+			if (T == 0)
+				return 0.0;
+
+			int o = (int)sequence.instance(0).value(0)*4;
+			double a0 = pi[0]*B[o];
+			double a1 = pi[1]*B[o + 1];
+			double a2 = pi[2]*B[o + 2];
+			double a3 = pi[3]*B[o + 3];
+			double lik = 0.0;
+			int t = 0;
+			while (true)
+			{
+				double scale = a0 + a1 + a2 + a3;
+				if (Math.abs(scale) <= minScale)
+					return Double.NEGATIVE_INFINITY;
+				lik += Math.log(Math.max(scale, 1.0E-32));
+				if (++t == T)
+					return lik;
+				double inv = 1.0/scale;
+				a0 *= inv;
+				a1 *= inv;
+				a2 *= inv;
+				a3 *= inv;
+
+				o = (int)sequence.instance(t).value(0)*4;
+				double n0 = (a0*A[0] + a1*A[4] + a2*A[8] + a3*A[12])*B[o];
+				double n1 = (a0*A[1] + a1*A[5] + a2*A[9] + a3*A[13])*B[o + 1];
+				double n2 = (a0*A[2] + a1*A[6] + a2*A[10] + a3*A[14])*B[o + 2];
+				double n3 = (a0*A[3] + a1*A[7] + a2*A[11] + a3*A[15])*B[o + 3];
+				a0 = n0; a1 = n1; a2 = n2; a3 = n3;
+			}
+		}
+	}
+
+	protected static class States5 extends SmallDiscreteHMM {
+
+		private static final long serialVersionUID = 529597629744760713L;
+
+		public States5(DiscreteHMMEstimator est)
+		{
+			super(est);
+		}
+
+		public double logLikelihood(Instances sequence)
+		{
+			final double A[] = m_StateProbs;
+			final double B[] = m_OutputProbs;
+			final double pi[] = m_State0Probs;
+			int T = sequence.numInstances();
+			if (T == 0)
+				return 0.0;
+
+			int o = (int)sequence.instance(0).value(0)*5;
+			double a0 = pi[0]*B[o];
+			double a1 = pi[1]*B[o + 1];
+			double a2 = pi[2]*B[o + 2];
+			double a3 = pi[3]*B[o + 3];
+			double a4 = pi[4]*B[o + 4];
+			double lik = 0.0;
+			int t = 0;
+			while (true)
+			{
+				double scale = a0 + a1 + a2 + a3 + a4;
+				if (Math.abs(scale) <= minScale)
+					return Double.NEGATIVE_INFINITY;
+				lik += Math.log(Math.max(scale, 1.0E-32));
+				if (++t == T)
+					return lik;
+				double inv = 1.0/scale;
+				a0 *= inv;
+				a1 *= inv;
+				a2 *= inv;
+				a3 *= inv;
+				a4 *= inv;
+
+				o = (int)sequence.instance(t).value(0)*5;
+				double n0 = (a0*A[0] + a1*A[5] + a2*A[10] + a3*A[15] + a4*A[20])*B[o];
+				double n1 = (a0*A[1] + a1*A[6] + a2*A[11] + a3*A[16] + a4*A[21])*B[o + 1];
+				double n2 = (a0*A[2] + a1*A[7] + a2*A[12] + a3*A[17] + a4*A[22])*B[o + 2];
+				double n3 = (a0*A[3] + a1*A[8] + a2*A[13] + a3*A[18] + a4*A[23])*B[o + 3];
+				double n4 = (a0*A[4] + a1*A[9] + a2*A[14] + a3*A[19] + a4*A[24])*B[o + 4];
+				a0 = n0; a1 = n1; a2 = n2; a3 = n3; a4 = n4;
+			}
+		}
+	}
+
+	protected static class States6 extends SmallDiscreteHMM {
+
+		private static final long serialVersionUID = 542824779523216879L;
+
+		public States6(DiscreteHMMEstimator est)
+		{
+			super(est);
+		}
+
+		public double logLikelihood(Instances sequence)
+		{
+			final double A[] = m_StateProbs;
+			final double B[] = m_OutputProbs;
+			final double pi[] = m_State0Probs;
+			int T = sequence.numInstances();
+			if (T == 0)
+				return 0.0;
+
+			int o = (int)sequence.instance(0).value(0)*6;
+			double a0 = pi[0]*B[o];
+			double a1 = pi[1]*B[o + 1];
+			double a2 = pi[2]*B[o + 2];
+			double a3 = pi[3]*B[o + 3];
+			double a4 = pi[4]*B[o + 4];
+			double a5 = pi[5]*B[o + 5];
+			double lik = 0.0;
+			int t = 0;
+			while (true)
+			{
+				double scale = a0 + a1 + a2 + a3 + a4 + a5;
+				if (Math.abs(scale) <= minScale)
+					return Double.NEGATIVE_INFINITY;
+				lik += Math.log(Math.max(scale, 1.0E-32));
+				if (++t == T)
+					return lik;
+				double inv = 1.0/scale;
+				a0 *= inv;
+				a1 *= inv;
+				a2 *= inv;
+				a3 *= inv;
+				a4 *= inv;
+				a5 *= inv;
+
+				o = (int)sequence.instance(t).value(0)*6;
+				double n0 = (a0*A[0] + a1*A[6] + a2*A[12] + a3*A[18] + a4*A[24] + a5*A[30])*B[o];
+				double n1 = (a0*A[1] + a1*A[7] + a2*A[13] + a3*A[19] + a4*A[25] + a5*A[31])*B[o + 1];
+				double n2 = (a0*A[2] + a1*A[8] + a2*A[14] + a3*A[20] + a4*A[26] + a5*A[32])*B[o + 2];
+				double n3 = (a0*A[3] + a1*A[9] + a2*A[15] + a3*A[21] + a4*A[27] + a5*A[33])*B[o + 3];
+				double n4 = (a0*A[4] + a1*A[10] + a2*A[16] + a3*A[22] + a4*A[28] + a5*A[34])*B[o + 4];
+				double n5 = (a0*A[5] + a1*A[11] + a2*A[17] + a3*A[23] + a4*A[29] + a5*A[35])*B[o + 5];
+				a0 = n0; a1 = n1; a2 = n2; a3 = n3; a4 = n4; a5 = n5;
+			}
+		}
+	}
+
+	protected static class States7 extends SmallDiscreteHMM {
+
+		private static final long serialVersionUID = 3428653858991951263L;
+
+		public States7(DiscreteHMMEstimator est)
+		{
+			super(est);
+		}
+
+		public double logLikelihood(Instances sequence)
+		{
+			final double A[] = m_StateProbs;
+			final double B[] = m_OutputProbs;
+			final double pi[] = m_State0Probs;
+			int T = sequence.numInstances();
+			if (T == 0)
+				return 0.0;
+
+			int o = (int)sequence.instance(0).value(0)*7;
+			double a0 = pi[0]*B[o];
+			double a1 = pi[1]*B[o + 1];
+			double a2 = pi[2]*B[o + 2];
+			double a3 = pi[3]*B[o + 3];
+			double a4 = pi[4]*B[o + 4];
+			double a5 = pi[5]*B[o + 5];
+			double a6 = pi[6]*B[o + 6];
+			double lik = 0.0;
+			int t = 0;
+			while (true)
+			{
+				double scale = a0 + a1 + a2 + a3 + a4 + a5 + a6;
+				if (Math.abs(scale) <= minScale)
+					return Double.NEGATIVE_INFINITY;
+				lik += Math.log(Math.max(scale, 1.0E-32));
+				if (++t == T)
+					return lik;
+				double inv = 1.0/scale;
+				a0 *= inv;
+				a1 *= inv;
+				a2 *= inv;
+				a3 *= inv;
+				a4 *= inv;
+				a5 *= inv;
+				a6 *= inv;
+
+				o = (int)sequence.instance(t).value(0)*7;
+				double n0 = (a0*A[0] + a1*A[7] + a2*A[14] + a3*A[21] + a4*A[28] + a5*A[35] + a6*A[42])*B[o];
+				double n1 = (a0*A[1] + a1*A[8] + a2*A[15] + a3*A[22] + a4*A[29] + a5*A[36] + a6*A[43])*B[o + 1];
+				double n2 = (a0*A[2] + a1*A[9] + a2*A[16] + a3*A[23] + a4*A[30] + a5*A[37] + a6*A[44])*B[o + 2];
+				double n3 = (a0*A[3] + a1*A[10] + a2*A[17] + a3*A[24] + a4*A[31] + a5*A[38] + a6*A[45])*B[o + 3];
+				double n4 = (a0*A[4] + a1*A[11] + a2*A[18] + a3*A[25] + a4*A[32] + a5*A[39] + a6*A[46])*B[o + 4];
+				double n5 = (a0*A[5] + a1*A[12] + a2*A[19] + a3*A[26] + a4*A[33] + a5*A[40] + a6*A[47])*B[o + 5];
+				double n6 = (a0*A[6] + a1*A[13] + a2*A[20] + a3*A[27] + a4*A[34] + a5*A[41] + a6*A[48])*B[o + 6];
+				a0 = n0; a1 = n1; a2 = n2; a3 = n3; a4 = n4; a5 = n5; a6 = n6;
+			}
+		}
+	}
+
+	protected static class States8 extends SmallDiscreteHMM {
+
+		private static final long serialVersionUID = -2882015796411580236L;
+
+		public States8(DiscreteHMMEstimator est)
+		{
+			super(est);
+		}
+
+		public double logLikelihood(Instances sequence)
+		{
+			final double A[] = m_StateProbs;
+			final double B[] = m_OutputProbs;
+			final double pi[] = m_State0Probs;
+			int T = sequence.numInstances();
+			if (T == 0)
+				return 0.0;
+
+			int o = (int)sequence.instance(0).value(0)*8;
+			double a0 = pi[0]*B[o];
+			double a1 = pi[1]*B[o + 1];
+			double a2 = pi[2]*B[o + 2];
+			double a3 = pi[3]*B[o + 3];
+			double a4 = pi[4]*B[o + 4];
+			double a5 = pi[5]*B[o + 5];
+			double a6 = pi[6]*B[o + 6];
+			double a7 = pi[7]*B[o + 7];
+			double lik = 0.0;
+			int t = 0;
+			while (true)
+			{
+				double scale = a0 + a1 + a2 + a3 + a4 + a5 + a6 + a7;
+				if (Math.abs(scale) <= minScale)
+					return Double.NEGATIVE_INFINITY;
+				lik += Math.log(Math.max(scale, 1.0E-32));
+				if (++t == T)
+					return lik;
+				double inv = 1.0/scale;
+				a0 *= inv;
+				a1 *= inv;
+				a2 *= inv;
+				a3 *= inv;
+				a4 *= inv;
+				a5 *= inv;
+				a6 *= inv;
+				a7 *= inv;
+
+				o = (int)sequence.instance(t).value(0)*8;
+				double n0 = (a0*A[0] + a1*A[8] + a2*A[16] + a3*A[24] + a4*A[32] + a5*A[40] + a6*A[48] + a7*A[56])*B[o];
+				double n1 = (a0*A[1] + a1*A[9] + a2*A[17] + a3*A[25] + a4*A[33] + a5*A[41] + a6*A[49] + a7*A[57])*B[o + 1];
+				double n2 = (a0*A[2] + a1*A[10] + a2*A[18] + a3*A[26] + a4*A[34] + a5*A[42] + a6*A[50] + a7*A[58])*B[o + 2];
+				double n3 = (a0*A[3] + a1*A[11] + a2*A[19] + a3*A[27] + a4*A[35] + a5*A[43] + a6*A[51] + a7*A[59])*B[o + 3];
+				double n4 = (a0*A[4] + a1*A[12] + a2*A[20] + a3*A[28] + a4*A[36] + a5*A[44] + a6*A[52] + a7*A[60])*B[o + 4];
+				double n5 = (a0*A[5] + a1*A[13] + a2*A[21] + a3*A[29] + a4*A[37] + a5*A[45] + a6*A[53] + a7*A[61])*B[o + 5];
+				double n6 = (a0*A[6] + a1*A[14] + a2*A[22] + a3*A[30] + a4*A[38] + a5*A[46] + a6*A[54] + a7*A[62])*B[o + 6];
+				double n7 = (a0*A[7] + a1*A[15] + a2*A[23] + a3*A[31] + a4*A[39] + a5*A[47] + a6*A[55] + a7*A[63])*B[o + 7];
+				a0 = n0; a1 = n1; a2 = n2; a3 = n3; a4 = n4; a5 = n5; a6 = n6; a7 = n7;
+			}
+		}
+	}
+}
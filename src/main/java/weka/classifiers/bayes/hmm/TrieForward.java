@@ -0,0 +1,98 @@
+package weka.classifiers.bayes.hmm;
+
+import java.util.Arrays;
+
+import weka.core.Instances;
+import weka.estimators.DiscreteHMMEstimator;
+
+/**
+ * Scores a batch of discrete sequences with a trie of their prefixes.
+ * The trie is walked depth first and the scaled forward vector of each
+ * node is calculated once from that of its parent, so prefixes shared by
+ * several sequences are only evaluated once. The likelihoods are the
+ * same as those of the step by step forward pass.
+ */
+public class TrieForward implements BatchForwardKernel {
+
+	protected SequenceTrie m_Trie;
+	/** the node of each sequence */
+	protected int m_Nodes[];
+
+	/**
+	 * @param sequences the batch
+	 * @param numOutputs the number of symbols
+	 */
+	public TrieForward(Instances sequences[], int numOutputs)
+	{
+		m_Trie = new SequenceTrie(numOutputs);
+		m_Nodes = new int[sequences.length];
+		for (int i = 0; i < sequences.length; i++)
+			m_Nodes[i] = m_Trie.add(sequences[i]);
+	}
+
+	/**
+	 * the log likelihoods of all the prefixes in the trie
+	 *
+	 * @return the log likelihood of each node, negative infinity if the
+	 * prefix is too unlikely to evaluate
+	 */
+	public double [] nodeLogLikelihoods(DiscreteHMMEstimator hmm)
+	{
+		SequenceTrie trie = m_Trie;
+		int N = hmm.getNumStates();
+		double pi[] = hmm.getState0Probabilities();
+		double lik[] = new double[trie.numNodes()];
+		Arrays.fill(lik, Double.NEGATIVE_INFINITY);
+		lik[0] = 0.0;
+
+		// the forward vectors and log likelihoods of the current path, by depth
+		double alpha[][] = new double[trie.maxDepth() + 1][N];
+		double pathLik[] = new double[trie.maxDepth() + 1];
+		double b[] = new double[N];
+		int stack[] = new int[trie.numNodes()];
+		int top = 0;
+		for (int c = trie.firstChild(0); c >= 0; c = trie.nextSibling(c))
+			stack[top++] = c;
+		while (top > 0)
+		{
+			int node = stack[--top];
+			int d = trie.depth(node);
+			int o = trie.symbol(node);
+			double cur[] = alpha[d];
+			if (d == 1)
+			{
+				hmm.getOutputColumn(o, cur);
+				for (int s = 0; s < N; s++)
+					cur[s] *= pi[s];
+			}
+			else
+			{
+				ForwardSteps.forwardStep(hmm, o, alpha[d-1], cur, b);
+			}
+
+			double scale = 0.0;
+			for (int s = 0; s < N; s++)
+				scale += cur[s];
+			// the whole subtree is too unlikely 
+			if (Math.abs(scale) <= ForwardSteps.MIN_SCALE)
+				continue;
+			for (int s = 0; s < N; s++)
+				cur[s] /= scale;
+			pathLik[d] = pathLik[d-1] + Math.log(Math.max(scale, 1.0E-32));
+			lik[node] = pathLik[d];
+
+			for (int c = trie.firstChild(node); c >= 0; c = trie.nextSibling(c))
+				stack[top++] = c;
+		}
+		return lik;
+	}
+
+	public double [] logLikelihoods(DiscreteHMMEstimator hmm)
+	{
+		double nodeLik[] = nodeLogLikelihoods(hmm);
+		double lik[] = new double[m_Nodes.length];
+		for (int i = 0; i < m_Nodes.length; i++)
+			lik[i] = nodeLik[m_Nodes[i]];
+		return lik;
+	}
+}
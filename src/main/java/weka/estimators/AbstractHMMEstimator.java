@@ -1,37 +1,60 @@
 package weka.estimators;
 
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+import weka.core.Utils;
 
 public class AbstractHMMEstimator implements Serializable {
 
-	private static final long serialVersionUID = -4206735703010212439L;
+	private static final long serialVersionUID = 2982680214635367883L;
+
+	/**
+	 * the counts of the initial states and of the transitions.
+	 * Transitions are stored row major, the row being the previous state.
+	 */
+	protected double m_State0Counts[];
+	protected double m_StateCounts[];
+	protected double m_SumOfState0Counts;
+	protected double m_SumOfStateCounts[];
+
+	/** the normalised probabilities, only valid if m_StatesDirty is false */
+	protected double m_State0Probs[];
+	protected double m_StateProbs[];
+	protected boolean m_StatesDirty;
 	
-	protected Estimator m_state0Estimator;
-	protected Estimator m_stateEstimators[];
+	/** 
+	 * alias tables for sampling the initial state and the next state
+	 * from each previous state, built on first use
+	 */
+	protected transient AliasTable m_State0Sampler;
+	protected transient AliasTable m_StateSamplers[];
+
 	protected int m_NumStates;
 	protected boolean m_Laplace;
 
 	public AbstractHMMEstimator(){
 		this(6, false);
 	}
-	
+
 	public AbstractHMMEstimator(int numStates, boolean laplace) {
 		super();
-		
+
 		m_Laplace = laplace;
 		setNumStates(numStates);
 	}
-	
+
 	public AbstractHMMEstimator(AbstractHMMEstimator a) throws Exception
-	{	
+	{
+		m_Laplace = a.m_Laplace;
 		setNumStates(a.getNumStates());
-		
-		m_state0Estimator = Estimator.makeCopy(a.m_state0Estimator);
-		
-		for (int s = 0; s < a.getNumStates(); s++)
-		{
-			m_stateEstimators[s] = Estimator.makeCopy(a.m_stateEstimators[s]);
-		}
+
+		m_State0Counts = a.m_State0Counts.clone();
+		m_StateCounts = a.m_StateCounts.clone();
+		m_SumOfState0Counts = a.m_SumOfState0Counts;
+		m_SumOfStateCounts = a.m_SumOfStateCounts.clone();
+		m_StatesDirty = true;
 	}
 
 	public int getNumStates() {
@@ -40,15 +63,22 @@ public class AbstractHMMEstimator implements Serializable {
 
 	public void setNumStates(int NumStates) {
 		this.m_NumStates = NumStates;
-		
-		m_state0Estimator = new DiscreteEstimator(getNumStates(), m_Laplace);
-		m_stateEstimators = new Estimator[getNumStates()];
-		for (int s = 0; s < getNumStates(); s++)
-		{
-			m_stateEstimators[s] = new DiscreteEstimator(getNumStates(), m_Laplace);
-		}
+
+		// laplace estimators start with a count of one for every value
+		double prior = m_Laplace ? 1.0 : 0.0;
+		m_State0Counts = new double[NumStates];
+		m_StateCounts = new double[NumStates*NumStates];
+		m_SumOfStateCounts = new double[NumStates];
+		Arrays.fill(m_State0Counts, prior);
+		Arrays.fill(m_StateCounts, prior);
+		Arrays.fill(m_SumOfStateCounts, prior*NumStates);
+		m_SumOfState0Counts = prior*NumStates;
+
+		m_State0Probs = new double[NumStates];
+		m_StateProbs = new double[NumStates*NumStates];
+		m_StatesDirty = true;
 	}
-	
+
 	public int getNumOutputs() {
 		return -1;
 	}
@@ -62,14 +92,195 @@ public class AbstractHMMEstimator implements Serializable {
 		return 1;
 	}
 
+	/**
+	 * adds a weighted count to an initial state
+	 *
+	 * @param state the state
+	 * @param weight the weight to add
+	 */
+	protected void addState0(int state, double weight)
+	{
+		m_State0Counts[state] += weight;
+		m_SumOfState0Counts += weight;
+		m_StatesDirty = true;
+	}
+
+	/**
+	 * adds a weighted count to a transition
+	 *
+	 * @param prevState the previous state
+	 * @param state the current state
+	 * @param weight the weight to add
+	 */
+	protected void addTransition(int prevState, int state, double weight)
+	{
+		m_StateCounts[prevState*m_NumStates + state] += weight;
+		m_SumOfStateCounts[prevState] += weight;
+		m_StatesDirty = true;
+	}
+
+	public void setState0Probabilities(double probs[])
+	{
+		for (int i = 0; i < probs.length; i++)
+			addState0(i, probs[i]);
+	}
+
+	public void setStateProbabilities(double probs[][])
+	{
+		for (int ps = 0; ps < probs.length; ps++)
+			for (int s = 0; s < probs[ps].length; s++)
+				addTransition(ps, s, probs[ps][s]);
+	}
+
+	/**
+	 * adds the initial state and transition counts of another estimator 
+	 * with the same number of states to those of this one
+	 * 
+	 * @param a the other estimator
+	 */
+	protected void addStateStatistics(AbstractHMMEstimator a)
+	{
+		for (int i = 0; i < m_State0Counts.length; i++)
+			m_State0Counts[i] += a.m_State0Counts[i];
+		for (int i = 0; i < m_StateCounts.length; i++)
+			m_StateCounts[i] += a.m_StateCounts[i];
+		for (int i = 0; i < m_SumOfStateCounts.length; i++)
+			m_SumOfStateCounts[i] += a.m_SumOfStateCounts[i];
+		m_SumOfState0Counts += a.m_SumOfState0Counts;
+		m_StatesDirty = true;
+	}
+
+	/**
+	 * normalises the initial state and transition counts into probabilities.
+	 * This is done when the parameters are calculated, or on the first
+	 * lookup after counts have been added.
+	 */
+	protected synchronized void calculateStateParameters()
+	{
+		normalise(m_State0Counts, 0, m_NumStates, m_SumOfState0Counts, m_State0Probs);
+		for (int ps = 0; ps < m_NumStates; ps++)
+			normalise(m_StateCounts, ps*m_NumStates, m_NumStates, m_SumOfStateCounts[ps], m_StateProbs);
+		m_StatesDirty = false;
+		m_State0Sampler = null;
+		m_StateSamplers = null;
+	}
+
+	/**
+	 * divides a row of counts by their sum, an empty row gives zero probabilities
+	 */
+	protected static void normalise(double counts[], int offset, int length, double sum, double probs[])
+	{
+		for (int i = offset; i < offset + length; i++)
+			probs[i] = sum > 0 ? counts[i]/sum : 0.0;
+	}
+
+	/**
+	 * gets the probability of starting in a state
+	 *
+	 * @param state the state
+	 */
+	public double getState0Probability(int state)
+	{
+		if (m_StatesDirty)
+			calculateStateParameters();
+		return m_State0Probs[state];
+	}
+
+	/**
+	 * gets the probability of a transition
+	 *
+	 * @param prevState the previous state
+	 * @param state the current state
+	 */
+	public double getTransitionProbability(int prevState, int state)
+	{
+		if (m_StatesDirty)
+			calculateStateParameters();
+		return m_StateProbs[prevState*m_NumStates + state];
+	}
+
+	/**
+	 * gets the initial state probabilities. The array is owned
+	 * by the estimator and must not be modified.
+	 */
+	public double [] getState0Probabilities()
+	{
+		if (m_StatesDirty)
+			calculateStateParameters();
+		return m_State0Probs;
+	}
+
+	/**
+	 * gets the transition probabilities as a row major array, the row
+	 * being the previous state. The array is owned by the estimator and
+	 * must not be modified.
+	 */
+	public double [] getTransitionProbabilities()
+	{
+		if (m_StatesDirty)
+			calculateStateParameters();
+		return m_StateProbs;
+	}
+
+	/**
+	 * draws an initial state
+	 * 
+	 * @param generator the random number generator to use
+	 */
+	protected synchronized int sampleState0(Random generator)
+	{
+		if (m_StatesDirty)
+			calculateStateParameters();
+		if (m_State0Sampler == null)
+			m_State0Sampler = new AliasTable(m_State0Probs);
+		return m_State0Sampler.sample(generator);
+	}
+	
+	/**
+	 * draws the state following a state
+	 * 
+	 * @param prevState the previous state
+	 * @param generator the random number generator to use
+	 */
+	protected synchronized int sampleState(int prevState, Random generator)
+	{
+		if (m_StatesDirty)
+			calculateStateParameters();
+		if (m_StateSamplers == null)
+			m_StateSamplers = new AliasTable[m_NumStates];
+		if (m_StateSamplers[prevState] == null)
+			m_StateSamplers[prevState] = new AliasTable(m_StateProbs, prevState*m_NumStates, m_NumStates);
+		return m_StateSamplers[prevState].sample(generator);
+	}
+
+	/**
+	 * prints a row of counts in the style of a DiscreteEstimator
+	 */
+	protected static String countsToString(double counts[], int offset, int length, double sum)
+	{
+		StringBuffer result = new StringBuffer("Discrete Estimator. Counts = ");
+		for (int i = offset; i < offset + length; i++)
+			result.append(" " + Utils.doubleToString(counts[i], 2));
+		result.append("  (Total = " + Utils.doubleToString(sum, 2) + ")\n");
+		return result.toString();
+	}
+
 	public String toString() {
+		return statesToString();
+	}
+
+	/**
+	 * prints the initial state and transition counts
+	 */
+	protected String statesToString() {
 		String s = "";
 
-		s = s + "Step 0 state estimator " + m_state0Estimator.toString();
-	    
-		for (int i = 0; i < m_stateEstimators.length; i++)
-			s = s + "State Estimator, previous state " + i + " " + m_stateEstimators[i].toString();
-	    
+		s = s + "Step 0 state estimator " + countsToString(m_State0Counts, 0, m_NumStates, m_SumOfState0Counts);
+
+		for (int i = 0; i < m_NumStates; i++)
+			s = s + "State Estimator, previous state " + i + " "
+				+ countsToString(m_StateCounts, i*m_NumStates, m_NumStates, m_SumOfStateCounts[i]);
+
 		return s;
 	}
 }
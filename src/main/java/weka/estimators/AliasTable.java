@@ -0,0 +1,105 @@
+package weka.estimators;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * Samples from a discrete distribution in constant time with Walker's
+ * alias method (in Vose's formulation). Each of the n values gets a bucket
+ * of equal probability, holding the value itself with some probability
+ * and otherwise one other value, its alias. A sample picks a bucket
+ * uniformly and then one of its two values, so it needs no search over
+ * the distribution however many values it has.
+ */
+public class AliasTable implements Serializable {
+
+	private static final long serialVersionUID = 2847195302846615832L;
+
+	/** the probability of keeping the value of each bucket */
+	protected double m_Keep[];
+	/** the other value of each bucket */
+	protected int m_Alias[];
+
+	/**
+	 * builds the table for a distribution given by unnormalised weights
+	 *
+	 * @param weights the weights of the values
+	 * @param offset the index in weights of the first value
+	 * @param length the number of values
+	 */
+	public AliasTable(double weights[], int offset, int length)
+	{
+		m_Keep = new double[length];
+		m_Alias = new int[length];
+
+		double sum = 0.0;
+		for (int i = 0; i < length; i++)
+			sum += weights[offset + i];
+
+		// scale the weights so that the average bucket holds 1
+		double scaled[] = new double[length];
+		int small[] = new int[length];
+		int large[] = new int[length];
+		int numSmall = 0;
+		int numLarge = 0;
+		for (int i = 0; i < length; i++)
+		{
+			m_Alias[i] = i;
+			scaled[i] = sum > 0 ? weights[offset + i]*length/sum : 1.0;
+			if (scaled[i] < 1.0)
+				small[numSmall++] = i;
+			else
+				large[numLarge++] = i;
+		}
+
+		// fill each small bucket up to 1 from a large one
+		while (numSmall > 0 && numLarge > 0)
+		{
+			int s = small[--numSmall];
+			int l = large[--numLarge];
+			m_Keep[s] = scaled[s];
+			m_Alias[s] = l;
+			scaled[l] = (scaled[l] + scaled[s]) - 1.0;
+			if (scaled[l] < 1.0)
+				small[numSmall++] = l;
+			else
+				large[numLarge++] = l;
+		}
+
+		// the rest are full, up to rounding error
+		while (numLarge > 0)
+			m_Keep[large[--numLarge]] = 1.0;
+		while (numSmall > 0)
+			m_Keep[small[--numSmall]] = 1.0;
+	}
+
+	/**
+	 * builds the table for a distribution given by unnormalised weights
+	 *
+	 * @param weights the weights of the values
+	 */
+	public AliasTable(double weights[])
+	{
+		this(weights, 0, weights.length);
+	}
+
+	/**
+	 * gets the number of values of the distribution
+	 */
+	public int size()
+	{
+		return m_Keep.length;
+	}
+
+	/**
+	 * draws a value from the distribution
+	 *
+	 * @param generator the random number generator to use
+	 * @return the index of the value, from 0 to size()-1
+	 */
+	public int sample(Random generator)
+	{
+		int i = generator.nextInt(m_Keep.length);
+		return generator.nextDouble() < m_Keep[i] ? i : m_Alias[i];
+	}
+}
@@ -0,0 +1,75 @@
+package weka.estimators;
+
+/**
+ * Fast approximations of exp and log for scoring with gaussian outputs,
+ * where they are called for every state of every frame. Both reduce the
+ * argument with its binary exponent and evaluate a short polynomial with
+ * no branches or table lookups in the common case, so the JIT can inline
+ * them and unroll the loops that call them.
+ * <p>
+ * Error bounds, for arguments where the result is a normal double:
+ * <ul>
+ * <li>exp: relative error below 1.0E-8. x is split into k*ln(2) + r with
+ * |r| &lt;= ln(2)/2 and exp(r) is a degree 7 Taylor polynomial, whose
+ * truncation error is at most (ln(2)/2)^8/8! = 5.2E-9.</li>
+ * <li>log: absolute error below 1.0E-9. x is split into m*2^e with m in
+ * [sqrt(1/2), sqrt(2)) and log(m) = 2*atanh(s), s = (m-1)/(m+1), is the
+ * atanh series up to s^9, whose truncation error is at most
+ * 2*|s|^11/(11*(1-s^2)) = 7.1E-10.</li>
+ * </ul>
+ * Arguments outside those ranges (overflow, underflow to subnormals,
+ * zero, negative, infinite or NaN) are passed to Math.
+ */
+public class ApproximateMath {
+
+	/** the relative error bound of exp */
+	public static final double EXP_RELATIVE_ERROR = 1.0E-8;
+	/** the absolute error bound of log */
+	public static final double LOG_ABSOLUTE_ERROR = 1.0E-9;
+
+	protected static final double LN2 = 0.6931471805599453;
+	protected static final double INV_LN2 = 1.4426950408889634;
+	protected static final double SQRT2 = 1.4142135623730951;
+
+	/** arguments of exp whose results are normal doubles */
+	protected static final double EXP_MIN = -708.0;
+	protected static final double EXP_MAX = 709.0;
+
+	/**
+	 * an approximation of Math.exp(x) with relative error below EXP_RELATIVE_ERROR
+	 */
+	public static double exp(double x)
+	{
+		if (!(x > EXP_MIN && x < EXP_MAX))
+			return Math.exp(x);
+
+		double k = Math.floor(x*INV_LN2 + 0.5);
+		double r = x - k*LN2;
+		// Horner form of the Taylor series of exp(r) to degree 7
+		double p = 1.0 + r*(1.0 + r*(1.0/2 + r*(1.0/6 + r*(1.0/24
+				+ r*(1.0/120 + r*(1.0/720 + r*(1.0/5040)))))));
+		return p*Double.longBitsToDouble(((long)k + 1023) << 52);
+	}
+
+	/**
+	 * an approximation of Math.log(x) with absolute error below LOG_ABSOLUTE_ERROR
+	 */
+	public static double log(double x)
+	{
+		if (!(x >= Double.MIN_NORMAL && x <= Double.MAX_VALUE))
+			return Math.log(x);
+
+		long bits = Double.doubleToRawLongBits(x);
+		int e = (int)(bits >>> 52) - 1023;
+		double m = Double.longBitsToDouble((bits & 0x000FFFFFFFFFFFFFL) | 0x3FF0000000000000L);
+		if (m >= SQRT2)
+		{
+			m *= 0.5;
+			e++;
+		}
+		double s = (m - 1.0)/(m + 1.0);
+		double s2 = s*s;
+		double atanh = s*(1.0 + s2*(1.0/3 + s2*(1.0/5 + s2*(1.0/7 + s2*(1.0/9)))));
+		return e*LN2 + 2.0*atanh;
+	}
+}
@@ -1,6 +1,8 @@
 package weka.estimators;
 
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import weka.core.DenseInstance;
 import weka.core.Instance;
@@ -9,18 +11,48 @@ import weka.core.matrix.DoubleVector;
 
 public class DiscreteHMMEstimator extends AbstractHMMEstimator implements HMMEstimator, java.io.Serializable {
 	
-	private static final long serialVersionUID = 4585903204046324781L;
+	private static final long serialVersionUID = 3934317174306521960L;
 
-	protected Estimator m_outputEstimators[];
+	/** the output counts, stored row major by state */
+	protected double m_OutputCounts[];
+	protected double m_SumOfOutputCounts[];
+	/** the normalised output probabilities, only valid if m_OutputsDirty is false */
+	protected double m_OutputProbs[];
+	protected boolean m_OutputsDirty;
 	protected int m_NumOutputs;
 	
+	/** 
+	 * the largest number of values kept in the symbol matrix cache, 
+	 * symbols beyond it are evaluated from the probability tables 
+	 */
+	public static final int MAX_CACHED_SYMBOL_VALUES = 1 << 20;
+	
+	/** 
+	 * the transition matrix multiplied by the output probabilities of 
+	 * each symbol, built the first time the symbol is seen. Matrices 
+	 * already built are read without locking. 
+	 */
+	protected transient volatile AtomicReferenceArray<double[]> m_SymbolMatrices;
+	/** 
+	 * the symbol matrices raised to successive powers of two, each
+	 * divided by a scale factor to keep it in range 
+	 */
+	protected transient double m_SymbolPowers[][][];
+	protected transient double m_SymbolPowerLogScales[][];
+	protected transient int m_NumCachedValues;
+	
+	/** alias tables for sampling the output of each state, built on first use */
+	protected transient AliasTable m_OutputSamplers[];
+	
 	protected void setupOutputs()
 	{
-		m_outputEstimators = new Estimator[getNumStates()];
-		for (int s = 0; s < getNumStates(); s++)
-		{
-			m_outputEstimators[s] = new DiscreteEstimator(getNumOutputs(), m_Laplace);
-		}
+		double prior = m_Laplace ? 1.0 : 0.0;
+		m_OutputCounts = new double[getNumStates()*getNumOutputs()];
+		m_SumOfOutputCounts = new double[getNumStates()];
+		Arrays.fill(m_OutputCounts, prior);
+		Arrays.fill(m_SumOfOutputCounts, prior*getNumOutputs());
+		m_OutputProbs = new double[getNumStates()*getNumOutputs()];
+		m_OutputsDirty = true;
 	}
 	
 	public int getNumOutputs() {
@@ -52,10 +84,266 @@ public class DiscreteHMMEstimator extends AbstractHMMEstimator implements HMMEst
 
 		setNumOutputs(e.getNumOutputs());
 		
+		copyOutputCounts(e);
+	}
+	
+	protected void copyOutputCounts(DiscreteHMMEstimator e)
+	{
+		m_OutputCounts = e.m_OutputCounts.clone();
+		m_SumOfOutputCounts = e.m_SumOfOutputCounts.clone();
+	}
+	
+	/**
+	 * adds a weighted count to the output of a state without
+	 * changing the transitions
+	 * 
+	 * @param state the state
+	 * @param output the output symbol
+	 * @param weight the weight to add
+	 */
+	public void addOutput(int state, int output, double weight)
+	{
+		m_OutputCounts[state*m_NumOutputs + output] += weight;
+		m_SumOfOutputCounts[state] += weight;
+		m_OutputsDirty = true;
+	}
+	
+	/**
+	 * adds all the counts of another estimator of the same size to those 
+	 * of this one, e.g. to merge statistics gathered by separate threads
+	 * 
+	 * @param e the other estimator
+	 */
+	public void addStatistics(DiscreteHMMEstimator e)
+	{
+		addStateStatistics(e);
+		for (int i = 0; i < m_OutputCounts.length; i++)
+			m_OutputCounts[i] += e.m_OutputCounts[i];
+		for (int i = 0; i < m_SumOfOutputCounts.length; i++)
+			m_SumOfOutputCounts[i] += e.m_SumOfOutputCounts[i];
+		m_OutputsDirty = true;
+	}
+	
+	/**
+	 * normalises the output counts into probabilities
+	 */
+	protected synchronized void calculateOutputParameters()
+	{
 		for (int s = 0; s < getNumStates(); s++)
+			normalise(m_OutputCounts, s*m_NumOutputs, m_NumOutputs, m_SumOfOutputCounts[s], m_OutputProbs);
+		m_OutputsDirty = false;
+		m_OutputSamplers = null;
+		clearSymbolMatrices();
+	}
+	
+	@Override
+	protected synchronized void calculateStateParameters()
+	{
+		super.calculateStateParameters();
+		clearSymbolMatrices();
+	}
+	
+	protected void clearSymbolMatrices()
+	{
+		m_SymbolMatrices = null;
+		m_SymbolPowers = null;
+		m_SymbolPowerLogScales = null;
+		m_NumCachedValues = 0;
+	}
+	
+	/**
+	 * multiplies the transition matrix by the output probabilities of a symbol
+	 */
+	protected double [] buildSymbolMatrix(int output)
+	{
+		int N = getNumStates();
+		double b[] = new double[N];
+		getOutputColumn(output, b);
+		double M[] = new double[N*N];
+		for (int ps = 0; ps < N; ps++)
+			for (int s = 0; s < N; s++)
+				M[ps*N + s] = m_StateProbs[ps*N + s]*b[s];
+		return M;
+	}
+	
+	/**
+	 * gets the transition matrix multiplied by the output probabilities
+	 * of a symbol, i.e. the matrix M[ps*N + s] = A[ps][s]*B[s][output]
+	 * that takes the forward probabilities of one time step to the next
+	 * when the symbol is observed. The array is owned by the estimator 
+	 * and must not be modified.
+	 * 
+	 * The forward and backward passes call this every frame, from 
+	 * several threads in a parallel E step, so matrices that have 
+	 * already been built are returned without taking the lock.
+	 * 
+	 * @param output the output symbol
+	 * @return the matrix in row major order, or null if the cache is full
+	 */
+	public double [] getSymbolMatrix(int output)
+	{
+		AtomicReferenceArray<double[]> matrices = m_SymbolMatrices;
+		if (matrices != null && !m_StatesDirty && !m_OutputsDirty)
 		{
-			m_outputEstimators[s] = Estimator.makeCopy(e.m_outputEstimators[s]);
+			double M[] = matrices.get(output);
+			if (M != null)
+				return M;
 		}
+		return cacheSymbolMatrix(output);
+	}
+	
+	/**
+	 * builds and caches the symbol matrix of an output, or gets it if 
+	 * another thread has just built it
+	 */
+	protected synchronized double [] cacheSymbolMatrix(int output)
+	{
+		if (m_StatesDirty)
+			calculateStateParameters();
+		if (m_OutputsDirty)
+			calculateOutputParameters();
+		if (m_SymbolMatrices == null)
+		{
+			m_SymbolMatrices = new AtomicReferenceArray<double[]>(m_NumOutputs);
+			m_NumCachedValues = 0;
+		}
+		
+		double M[] = m_SymbolMatrices.get(output);
+		if (M == null)
+		{
+			int N = getNumStates();
+			if ((long)m_NumCachedValues + N*N > MAX_CACHED_SYMBOL_VALUES)
+				return null;
+			M = buildSymbolMatrix(output);
+			m_SymbolMatrices.set(output, M);
+			m_NumCachedValues += N*N;
+		}
+		return M;
+	}
+	
+	/**
+	 * gets the symbol matrix of an output raised to the power 2^j, 
+	 * divided by exp(getSymbolMatrixPowerLogScale(output, j)) so that
+	 * its largest value is one. Powers are built by repeated squaring
+	 * and cached with the symbol matrices. The array is owned by the 
+	 * estimator and must not be modified.
+	 * 
+	 * @param output the output symbol
+	 * @param j the log2 of the power
+	 * @return the matrix in row major order, or null if the cache is full
+	 */
+	public synchronized double [] getSymbolMatrixPower(int output, int j)
+	{
+		double M[] = getSymbolMatrix(output);
+		if (M == null)
+			return null;
+		if (m_SymbolPowers == null)
+		{
+			m_SymbolPowers = new double[m_NumOutputs][][];
+			m_SymbolPowerLogScales = new double[m_NumOutputs][];
+		}
+		if (m_SymbolPowers[output] == null)
+		{
+			m_SymbolPowers[output] = new double[][] {M};
+			m_SymbolPowerLogScales[output] = new double[] {0.0};
+		}
+		
+		int N = getNumStates();
+		while (m_SymbolPowers[output].length <= j)
+		{
+			if ((long)m_NumCachedValues + N*N > MAX_CACHED_SYMBOL_VALUES)
+				return null;
+			double powers[][] = m_SymbolPowers[output];
+			double P[] = powers[powers.length - 1];
+			double square[] = new double[N*N];
+			double max = 0.0;
+			for (int r = 0; r < N; r++)
+				for (int k = 0; k < N; k++)
+				{
+					double a = P[r*N + k];
+					if (a == 0.0)
+						continue;
+					for (int c = 0; c < N; c++)
+						square[r*N + c] += a*P[k*N + c];
+				}
+			for (int i = 0; i < square.length; i++)
+				max = Math.max(max, square[i]);
+			if (max > 0.0)
+				for (int i = 0; i < square.length; i++)
+					square[i] /= max;
+			else
+				max = 1.0;
+			
+			double logScales[] = m_SymbolPowerLogScales[output];
+			powers = Arrays.copyOf(powers, powers.length + 1);
+			powers[powers.length - 1] = square;
+			logScales = Arrays.copyOf(logScales, logScales.length + 1);
+			logScales[logScales.length - 1] = 2*logScales[logScales.length - 2] + Math.log(max);
+			m_SymbolPowers[output] = powers;
+			m_SymbolPowerLogScales[output] = logScales;
+			m_NumCachedValues += N*N;
+		}
+		return m_SymbolPowers[output][j];
+	}
+	
+	/**
+	 * gets the log of the factor the power 2^j of a symbol matrix 
+	 * was divided by, getSymbolMatrixPower must have been called first
+	 * 
+	 * @param output the output symbol
+	 * @param j the log2 of the power
+	 */
+	public synchronized double getSymbolMatrixPowerLogScale(int output, int j)
+	{
+		return m_SymbolPowerLogScales[output][j];
+	}
+	
+	/**
+	 * gets the probability of a state emitting an output
+	 * 
+	 * @param state the state
+	 * @param output the output symbol
+	 */
+	public double getOutputProbability(int state, int output)
+	{
+		if (m_OutputsDirty)
+			calculateOutputParameters();
+		return m_OutputProbs[state*m_NumOutputs + output];
+	}
+	
+	/**
+	 * gets the probabilities of every state emitting an output
+	 * 
+	 * @param output the output symbol
+	 * @param result the array to receive the probability of each state
+	 */
+	public void getOutputColumn(int output, double result[])
+	{
+		if (m_OutputsDirty)
+			calculateOutputParameters();
+		for (int s = 0; s < result.length; s++)
+			result[s] = m_OutputProbs[s*m_NumOutputs + output];
+	}
+	
+	/**
+	 * whether the estimator stores its output probabilities as a dense
+	 * table, so that getOutputProbabilities is cheap
+	 */
+	public boolean hasDenseOutputTable()
+	{
+		return true;
+	}
+	
+	/**
+	 * gets the output probabilities as a row major array, the row 
+	 * being the state. The array is owned by the estimator and must
+	 * not be modified.
+	 */
+	public double [] getOutputProbabilities()
+	{
+		if (m_OutputsDirty)
+			calculateOutputParameters();
+		return m_OutputProbs;
 	}
 	
 	@Override
@@ -80,24 +368,24 @@ public class DiscreteHMMEstimator extends AbstractHMMEstimator implements HMMEst
 	
 	@Override
 	public void addValue(double prevState, double state, double output, double weight) {
-		m_stateEstimators[(int)prevState].addValue(state, weight);
-		m_outputEstimators[(int)state].addValue(output, weight);
+		addTransition((int)prevState, (int)state, weight);
+		addOutput((int)state, (int)output, weight);
 	}
 
 	@Override
 	public void addValue0(double state, double output, double weight) {
-		m_state0Estimator.addValue(state, weight);
-		m_outputEstimators[(int)state].addValue(output, weight);
+		addState0((int)state, weight);
+		addOutput((int)state, (int)output, weight);
 	}
 
 	@Override
 	public double getProbability(double prevState, double state, double output) {
-		return m_stateEstimators[(int)prevState].getProbability(state) * m_outputEstimators[(int)state].getProbability(output);
+		return getTransitionProbability((int)prevState, (int)state) * getOutputProbability((int)state, (int)output);
 	}
 
 	@Override
 	public double getProbability0(double state, double output) {
-		return m_state0Estimator.getProbability(state) * m_outputEstimators[(int)state].getProbability(output);
+		return getState0Probability((int)state) * getOutputProbability((int)state, (int)output);
 	}
 
 	@Override
@@ -106,38 +394,43 @@ public class DiscreteHMMEstimator extends AbstractHMMEstimator implements HMMEst
 		return null;
 	}
 
+	/**
+	 * Draw an output from the output distribution of a state
+	 *
+	 * @param state the HMM state emitting the output
+	 * @param generator the random number generator to use
+	 */
+	protected synchronized int sampleOutput(int state, Random generator)
+	{
+		if (m_OutputsDirty)
+			calculateOutputParameters();
+		if (m_OutputSamplers == null)
+			m_OutputSamplers = new AliasTable[getNumStates()];
+		if (m_OutputSamplers[state] == null)
+			m_OutputSamplers[state] = new AliasTable(m_OutputProbs, state*m_NumOutputs, m_NumOutputs);
+		return m_OutputSamplers[state].sample(generator);
+	}
+	
 	@Override
 	public int Sample0(Instances sequence, Random generator) {
-		int state;
-		int output;
-		
-		do {
-			state = generator.nextInt(getNumStates());
-			output = generator.nextInt(getNumOutputs());
-		} while (generator.nextDouble() > getProbability0((double)state, (double)output));
+		int state = sampleState0(generator);
 		
 		sequence.add(new DenseInstance(1));
 		Instance frame = sequence.lastInstance();
 		
-		frame.setValue(0, output);
+		frame.setValue(0, sampleOutput(state, generator));
 		
 		return state;
 	}
 	
 	@Override
 	public int Sample(Instances sequence, int prevState,  Random generator) {
-		int state;
-		int output;
-		
-		do {
-			state = generator.nextInt(getNumStates());
-			output = generator.nextInt(getNumOutputs());
-		} while (generator.nextDouble() > getProbability((double)prevState, (double)state, (double)output));
+		int state = sampleState(prevState, generator);
 		
 		sequence.add(new DenseInstance(1));
 		Instance frame = sequence.lastInstance();
 		
-		frame.setValue(0, output);
+		frame.setValue(0, sampleOutput(state, generator));
 		
 		return state;
 	}
@@ -145,16 +438,17 @@ public class DiscreteHMMEstimator extends AbstractHMMEstimator implements HMMEst
 	public String toString() {
 		String s = "DiscreteHMMEstimator\n" + super.toString();
 	    
-		for (int i = 0; i < m_outputEstimators.length; i++)
-			s = s + "Output Estimator, state " + i + " " + m_outputEstimators[i].toString();
+		for (int i = 0; i < getNumStates(); i++)
+			s = s + "Output Estimator, state " + i + " " 
+				+ countsToString(m_OutputCounts, i*m_NumOutputs, m_NumOutputs, m_SumOfOutputCounts[i]);
 	    
 		return s;
 	}
 
 	@Override
 	public void calculateParameters() {
-		// do nothing, as discrete estimators use the sufficient
-		// statistics directly without calculating parameters
+		calculateStateParameters();
+		calculateOutputParameters();
 	}
 
 }
@@ -36,6 +36,20 @@ public class MultivariateNormalEstimator implements Serializable {
 	public void setCovarianceType(int Type) {
 		this.m_CovarianceType = Type;
 	}
+	
+	protected boolean m_ApproximateMath = false;
+	
+	public boolean isApproximateMath() {
+		return m_ApproximateMath;
+	}
+
+	/**
+	 * sets whether densities are evaluated with ApproximateMath.exp
+	 * rather than Math.exp
+	 */
+	public void setApproximateMath(boolean approximateMath) {
+		m_ApproximateMath = approximateMath;
+	}
 
 	boolean m_Dirty = false;
 	
@@ -54,6 +68,7 @@ public class MultivariateNormalEstimator implements Serializable {
 		m_CholeskyL = e.m_CholeskyL.copy();
 		m_DetVar = e.m_DetVar;
 		m_CovarianceType = e.m_CovarianceType;
+		m_ApproximateMath = e.m_ApproximateMath;
 		m_Dirty = false;
 	}
 	
@@ -119,6 +134,19 @@ public class MultivariateNormalEstimator implements Serializable {
 	}
 	
 	public void calculateParameters() throws Exception
+	{
+		if (calculateMeanAndVariance())
+			calculateDerivedParameters();
+	}
+	
+	/**
+	 * Calculates the mean and covariance from the sufficient statistics
+	 * without the derived parameters (inverse, determinant and Cholesky
+	 * factor) which are computed by calculateDerivedParameters.
+	 * 
+	 * @return true if there was enough data to update the parameters
+	 */
+	public boolean calculateMeanAndVariance() throws Exception
 	{
 		m_Dirty = false; 
 		if (m_SumOfWeights > 0.00001) {
@@ -138,8 +166,9 @@ public class MultivariateNormalEstimator implements Serializable {
 				default:
 					throw new Exception("Unhandled covariance type");
 			}
-			calculateDerivedParameters();
+			return true;
 		}
+		return false;
 	}
 	
 	public void calculateDerivedParameters()  throws Exception
@@ -155,6 +184,22 @@ public class MultivariateNormalEstimator implements Serializable {
 	}
 	
 	public static void calculateTiedParameters(MultivariateNormalEstimator ests[]) throws Exception
+	{
+		for(int i = 0; i < ests.length; i++)
+			ests[i].calculateMeanAndVariance();
+		calculateTiedVariance(ests);
+		for(int i = 0; i < ests.length; i++)
+			ests[i].calculateDerivedParameters();
+	}
+	
+	/**
+	 * Replaces the covariances of a set of estimators with their pooled
+	 * covariance. The means and covariances must already have been calculated
+	 * and the derived parameters still need to be calculated afterwards.
+	 * 
+	 * @param ests the estimators whose covariances are tied
+	 */
+	public static void calculateTiedVariance(MultivariateNormalEstimator ests[])
 	{
 		if (ests.length == 0)
 			return;
@@ -162,7 +207,6 @@ public class MultivariateNormalEstimator implements Serializable {
 		double M = 0;
 		for(int i = 0; i < ests.length; i++)
 		{
-			ests[i].calculateParameters();
 			Sigma.plusEquals(ests[i].m_Var.times(ests[i].m_SumOfWeights));
 			M += ests[i].m_SumOfWeights;
 		}
@@ -170,7 +214,6 @@ public class MultivariateNormalEstimator implements Serializable {
 		for(int i = 0; i < ests.length; i++)
 		{
 			ests[i].m_Var = Sigma.copy();
-			ests[i].calculateDerivedParameters();
 		}
 	}
 	
@@ -234,7 +277,7 @@ public class MultivariateNormalEstimator implements Serializable {
 			for (int j = 0; j < m_Mean.size(); j++)
 				product += (data.get(i)-m_Mean.get(i)) * m_InvVar.get(i, j) * (data.get(j)-m_Mean.get(j));
 		  
-		double p = coef*Math.exp(-0.5*product);
+		double p = coef*(m_ApproximateMath ? ApproximateMath.exp(-0.5*product) : Math.exp(-0.5*product));
 		if (Double.isInfinite(p) || Double.isNaN(p))
 			throw new Exception("Calculated probability is NaN");
 		return p;
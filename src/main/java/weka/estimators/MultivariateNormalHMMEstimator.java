@@ -40,6 +40,27 @@ public class MultivariateNormalHMMEstimator extends AbstractHMMEstimator
 		}
 	}
 	
+	protected boolean m_ApproximateMath = false;
+	
+	public boolean isApproximateMath() {
+		return m_ApproximateMath;
+	}
+
+	/**
+	 * sets whether output densities are evaluated with ApproximateMath
+	 * rather than Math
+	 */
+	public void setApproximateMath(boolean approximateMath) {
+		m_ApproximateMath = approximateMath;
+		if (m_outputEstimators != null)
+		{
+			for (int s = 0; s < getNumStates(); s++)
+			{
+				m_outputEstimators[s].setApproximateMath(approximateMath);
+			}
+		}
+	}
+	
 	@Override
 	public int getOutputDimension() {
 		// TODO Auto-generated method stub
@@ -55,56 +76,43 @@ public class MultivariateNormalHMMEstimator extends AbstractHMMEstimator
 	public MultivariateNormalHMMEstimator(int numStates, boolean laplace) {
 		super(numStates, laplace);
 		
-		m_outputEstimators = new MultivariateNormalEstimator[numStates];
-		for (int s = 0; s < numStates; s++)
-		{
-			m_outputEstimators[s] = new MultivariateNormalEstimator();
-			m_outputEstimators[s].setCovarianceType(getCovarianceType());
-		}
+		setupOutputs();
 	}
 	
 	public MultivariateNormalHMMEstimator(MultivariateNormalHMMEstimator a) throws Exception
 	{
 		super(a);
 		
-		m_outputEstimators = new MultivariateNormalEstimator[a.getNumStates()];
-		for (int i = 0; i < m_outputEstimators.length; i++)
-			m_outputEstimators[i] = new MultivariateNormalEstimator(a.m_outputEstimators[i]);
+		copyOutputParameters(a);
 	}
 	
 	public void copyOutputParameters(MultivariateNormalHMMEstimator a) throws Exception
 	{
 		setCovarianceType(a.getCovarianceType());
+		setApproximateMath(a.isApproximateMath());
 		setTied(a.isTied());
 		m_outputEstimators = new MultivariateNormalEstimator[a.getNumStates()];
 		for (int i = 0; i < m_outputEstimators.length; i++)
 			m_outputEstimators[i] = new MultivariateNormalEstimator(a.m_outputEstimators[i]);
 	}
 	
-	@Override
-	public void setNumStates(int NumStates) {
-		super.setNumStates(NumStates);
-		m_outputEstimators = new MultivariateNormalEstimator[m_NumStates];
-		for (int s = 0; s < m_NumStates; s++)
+	protected void setupOutputs()
+	{
+		m_outputEstimators = new MultivariateNormalEstimator[getNumStates()];
+		for (int s = 0; s < getNumStates(); s++)
 		{
 			m_outputEstimators[s] = new MultivariateNormalEstimator();
 			m_outputEstimators[s].setCovarianceType(getCovarianceType());
+			m_outputEstimators[s].setApproximateMath(isApproximateMath());
 		}
 	}
 	
-	public void setState0Probabilities(double probs[])
-	{
-		for (int i = 0; i < probs.length; i++)
-			m_state0Estimator.addValue(i, probs[i]);
+	@Override
+	public void setNumStates(int NumStates) {
+		super.setNumStates(NumStates);
+		setupOutputs();
 	}
 	
-	public void setStateProbabilities(double probs[][])
-	{
-		for (int ps = 0; ps < probs.length; ps++)
-			for (int s = 0; s < probs[ps].length; s++)
-				m_stateEstimators[ps].addValue(s, probs[ps][s]);
-	}
-
 	public void setOutputMeans(DoubleVector means[])
 	{
 		for (int i = 0; i < means.length; i++)
@@ -127,16 +135,23 @@ public class MultivariateNormalHMMEstimator extends AbstractHMMEstimator
 		m_outputEstimators[state].setVariance(var);
 	}
 	
+	/**
+	 * Draw an output vector from the output distribution of a state
+	 *
+	 * @param state the HMM state emitting the output
+	 * @param generator the random number generator to use
+	 */
+	protected DoubleVector sampleOutput(int state, Random generator)
+	{
+		return m_outputEstimators[state].sample();
+	}
+	
 	@Override
 	public int Sample(Instances sequence, int prevState, Random generator) {
-		int state;
+		int state = sampleState(prevState, generator);
 		DoubleVector output;
 		
-		do {
-			state = generator.nextInt(getNumStates());
-		} while (generator.nextDouble() > m_stateEstimators[prevState].getProbability(state));
-		
-		output = m_outputEstimators[state].sample();
+		output = sampleOutput(state, generator);
 		
 		sequence.add(new DenseInstance(output.size()));
 		Instance frame = sequence.lastInstance();
@@ -149,15 +164,10 @@ public class MultivariateNormalHMMEstimator extends AbstractHMMEstimator
 
 	@Override
 	public int Sample0(Instances sequence, Random generator) {
-		int state;
+		int state = sampleState0(generator);
 		DoubleVector output;
 		
-		do {
-			state = generator.nextInt(getNumStates());
-			//System.out.println("state "+ state + " prob " + m_state0Estimator.getProbability(state));
-		} while (generator.nextDouble() > m_state0Estimator.getProbability(state));
-		
-		output = m_outputEstimators[state].sample();
+		output = sampleOutput(state, generator);
 		
 		sequence.add(new DenseInstance(output.size()));
 		Instance frame = sequence.lastInstance();
@@ -170,19 +180,30 @@ public class MultivariateNormalHMMEstimator extends AbstractHMMEstimator
 
 	@Override
 	public void addValue(double prevState, double state, DoubleVector output, double weight) {
-		m_stateEstimators[(int)prevState].addValue(state, weight);
+		addTransition((int)prevState, (int)state, weight);
 		m_outputEstimators[(int)state].addValue(output, weight);
 	}
 
 	@Override
 	public void addValue0(double state, DoubleVector output, double weight) {
-		m_state0Estimator.addValue(state, weight);
+		addState0((int)state, weight);
 		m_outputEstimators[(int)state].addValue(output, weight);
 	}
 
+	/**
+	 * Get the output density of a state
+	 *
+	 * @param state the HMM state
+	 * @param output the HMM output
+	 */
+	public double getOutputProbability(int state, DoubleVector output) throws Exception
+	{
+		return m_outputEstimators[state].getProbability(output);
+	}
+
 	@Override
 	public double getProbability(double prevState, double state, DoubleVector output) throws Exception {
-		double ps = m_stateEstimators[(int)prevState].getProbability(state);
+		double ps = getTransitionProbability((int)prevState, (int)state);
 		double po = m_outputEstimators[(int)state].getProbability(output);
 		double p = ps*po;
 		if (Double.isInfinite(p) || Double.isNaN(p))
@@ -192,7 +213,7 @@ public class MultivariateNormalHMMEstimator extends AbstractHMMEstimator
 
 	@Override
 	public double getProbability0(double state, DoubleVector output) throws Exception {
-		return m_state0Estimator.getProbability(state) * m_outputEstimators[(int)state].getProbability(output);
+		return getState0Probability((int)state) * m_outputEstimators[(int)state].getProbability(output);
 	}
 	
 	@Override
@@ -243,11 +264,16 @@ public class MultivariateNormalHMMEstimator extends AbstractHMMEstimator
 			throw new Exception("Trying to get the probability of a multivariate output with a single value");
 	}
 
+	protected String outputToString(int state)
+	{
+		return m_outputEstimators[state].toString();
+	}
+
 	public String toString() {
-		String s = "MultivariateNormalHMMEstimator\n" + super.toString();
+		String s = getClass().getSimpleName() + "\n" + super.toString();
 	    
-		for (int i = 0; i < m_outputEstimators.length; i++)
-			s = s + "Output Estimator, state " + i + "\n" +  m_outputEstimators[i].toString();
+		for (int i = 0; i < getNumStates(); i++)
+			s = s + "Output Estimator, state " + i + "\n" +  outputToString(i);
 	    
 		return s;
 	}
@@ -260,11 +286,52 @@ public class MultivariateNormalHMMEstimator extends AbstractHMMEstimator
 
 	@Override
 	public void calculateParameters() throws Exception {
+		calculateStateParameters();
+		for (int s = 0; s < getNumStates(); s++)
+			calculateOutputParameters(s);
 		if (isTied())
-			MultivariateNormalEstimator.calculateTiedParameters(m_outputEstimators);
+		{
+			calculateTiedVariance();
+			for (int s = 0; s < getNumStates(); s++)
+				calculateDerivedOutputParameters(s);
+		}
+	}
+	
+	/**
+	 * Calculates the output parameters of a single state. 
+	 * If the covariances are tied only the mean and the state's own 
+	 * covariance are calculated, calculateTiedVariance and 
+	 * calculateDerivedOutputParameters must then be called to complete them.
+	 * Different states can be calculated concurrently.
+	 * 
+	 * @param state the state to calculate
+	 */
+	public void calculateOutputParameters(int state) throws Exception
+	{
+		if (isTied())
+			m_outputEstimators[state].calculateMeanAndVariance();
 		else
-			for (int i = 0; i < m_outputEstimators.length; i++)
-				m_outputEstimators[i].calculateParameters();
+			m_outputEstimators[state].calculateParameters();
+	}
+	
+	/**
+	 * Pools the covariances of all states when they are tied
+	 */
+	public void calculateTiedVariance() throws Exception
+	{
+		MultivariateNormalEstimator.calculateTiedVariance(m_outputEstimators);
+	}
+	
+	/**
+	 * Calculates the derived parameters of a state once its 
+	 * tied covariance is known. 
+	 * Different states can be calculated concurrently.
+	 * 
+	 * @param state the state to calculate
+	 */
+	public void calculateDerivedOutputParameters(int state) throws Exception
+	{
+		m_outputEstimators[state].calculateDerivedParameters();
 	}
 
 }
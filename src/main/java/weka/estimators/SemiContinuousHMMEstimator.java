@@ -0,0 +1,278 @@
+package weka.estimators;
+
+import java.io.Serializable;
+import java.util.Random;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+import weka.core.matrix.DoubleVector;
+
+/**
+ * A semi-continuous (tied mixture) HMM estimator. The outputs of every
+ * state are a mixture of a pool of gaussians shared by all states and
+ * classes, and each state only stores its mixture weights.
+ * The outputs passed to this estimator are not the observations themselves
+ * but the vector of densities of an observation under each of the shared
+ * gaussians, so that they can be computed once per observation.
+ * The gaussians themselves are not re-estimated.
+ */
+public class SemiContinuousHMMEstimator extends AbstractHMMEstimator
+	implements HMMEstimator, Serializable {
+
+	private static final long serialVersionUID = -5839606390425016613L;
+
+	/** the sufficient statistics of the mixture weights */
+	protected Estimator m_weightEstimators[];
+	/** the mixture weights of each state */
+	protected double m_Weights[][];
+	protected int m_NumComponents;
+
+	protected void setupWeights()
+	{
+		m_weightEstimators = new Estimator[getNumStates()];
+		m_Weights = new double[getNumStates()][getNumComponents()];
+		for (int s = 0; s < getNumStates(); s++)
+		{
+			m_weightEstimators[s] = new DiscreteEstimator(getNumComponents(), m_Laplace);
+			for (int k = 0; k < getNumComponents(); k++)
+				m_Weights[s][k] = 1.0/getNumComponents();
+		}
+	}
+
+	public SemiContinuousHMMEstimator() {
+		this(6, 16, false);
+	}
+
+	public SemiContinuousHMMEstimator(int numStates, int numComponents, boolean laplace) {
+		super(numStates, laplace);
+		setNumComponents(numComponents);
+	}
+
+	public SemiContinuousHMMEstimator(SemiContinuousHMMEstimator e) throws Exception {
+		super(e);
+
+		setNumComponents(e.getNumComponents());
+
+		for (int s = 0; s < getNumStates(); s++)
+		{
+			m_weightEstimators[s] = Estimator.makeCopy(e.m_weightEstimators[s]);
+		}
+		copyOutputParameters(e);
+	}
+
+	/**
+	 * copies the mixture weights (but not their statistics) of another estimator.
+	 * The posterior probabilities of the components are calculated from the 
+	 * current weights when values are added, so a new estimator used to 
+	 * accumulate statistics must start with the weights of the previous one.
+	 * 
+	 * @param e the estimator to copy from
+	 */
+	public void copyOutputParameters(SemiContinuousHMMEstimator e)
+	{
+		for (int s = 0; s < getNumStates(); s++)
+			m_Weights[s] = e.m_Weights[s].clone();
+	}
+
+	/**
+	 * gets the number of shared gaussians
+	 */
+	public int getNumComponents() {
+		return m_NumComponents;
+	}
+
+	public void setNumComponents(int numComponents) {
+		m_NumComponents = numComponents;
+		setupWeights();
+	}
+
+	@Override
+	public void setNumStates(int NumStates) {
+		super.setNumStates(NumStates);
+		if (getNumComponents() > 0)
+			setupWeights();
+	}
+
+	@Override
+	public int getOutputDimension() {
+		return getNumComponents();
+	}
+
+	/**
+	 * sets the mixture weights of a state
+	 *
+	 * @param state the HMM state
+	 * @param weights the weight of each shared gaussian, which will be normalised
+	 */
+	public void setWeights(int state, double weights[])
+	{
+		double sum = 0.0;
+		for (int k = 0; k < getNumComponents(); k++)
+			sum += weights[k];
+		for (int k = 0; k < getNumComponents(); k++)
+			m_Weights[state][k] = weights[k]/sum;
+	}
+
+	/**
+	 * gets the mixture weight of a component in a state
+	 *
+	 * @param state the HMM state
+	 * @param component the shared gaussian
+	 */
+	public double getWeight(int state, int component)
+	{
+		return m_Weights[state][component];
+	}
+
+	/**
+	 * gets the output density of a state
+	 *
+	 * @param state the HMM state
+	 * @param densities the densities of the output under each shared gaussian
+	 */
+	public double getOutputProbability(int state, DoubleVector densities)
+	{
+		double weights[] = m_Weights[state];
+		double p = 0.0;
+		for (int k = 0; k < weights.length; k++)
+			p += weights[k]*densities.get(k);
+		return p;
+	}
+
+	protected void addOutputValue(int state, DoubleVector densities, double weight)
+	{
+		// split the weight between components by their posterior probabilities
+		double p = getOutputProbability(state, densities);
+		if (p <= 0.0)
+			return;
+		for (int k = 0; k < getNumComponents(); k++)
+		{
+			double w = getWeight(state, k)*densities.get(k)/p;
+			if (w > 0)
+				m_weightEstimators[state].addValue(k, w*weight);
+		}
+	}
+
+	@Override
+	public void addValue(double prevState, double state, DoubleVector output, double weight) {
+		addTransition((int)prevState, (int)state, weight);
+		addOutputValue((int)state, output, weight);
+	}
+
+	@Override
+	public void addValue0(double state, DoubleVector output, double weight) {
+		addState0((int)state, weight);
+		addOutputValue((int)state, output, weight);
+	}
+
+	@Override
+	public void addValue(double prevState, double state, double output, double weight) throws Exception {
+		throw new Exception("Semi-continuous HMM outputs are vectors of densities");
+	}
+
+	@Override
+	public void addValue0(double state, double output, double weight) throws Exception {
+		throw new Exception("Semi-continuous HMM outputs are vectors of densities");
+	}
+
+	@Override
+	public double getProbability(double prevState, double state, DoubleVector output) {
+		return getTransitionProbability((int)prevState, (int)state) * getOutputProbability((int)state, output);
+	}
+
+	@Override
+	public double getProbability0(double state, DoubleVector output) {
+		return getState0Probability((int)state) * getOutputProbability((int)state, output);
+	}
+
+	@Override
+	public double getProbability(double prevState, double state, double output) throws Exception {
+		throw new Exception("Semi-continuous HMM outputs are vectors of densities");
+	}
+
+	@Override
+	public double getProbability0(double state, double output) throws Exception {
+		throw new Exception("Semi-continuous HMM outputs are vectors of densities");
+	}
+
+	protected int sampleComponent(int state, Random generator)
+	{
+		double r = generator.nextDouble();
+		int k = 0;
+		for (; k < getNumComponents()-1; k++)
+		{
+			r -= getWeight(state, k);
+			if (r < 0)
+				break;
+		}
+		return k;
+	}
+
+	/**
+	 * Samples the next state and the index of the shared gaussian it emits from.
+	 * The index is added to the sequence in place of an output.
+	 */
+	@Override
+	public int Sample0(Instances sequence, Random generator) {
+		int state = sampleState0(generator);
+
+		sequence.add(new DenseInstance(1));
+		Instance frame = sequence.lastInstance();
+
+		frame.setValue(0, sampleComponent(state, generator));
+
+		return state;
+	}
+
+	/**
+	 * Samples the next state and the index of the shared gaussian it emits from.
+	 * The index is added to the sequence in place of an output.
+	 */
+	@Override
+	public int Sample(Instances sequence, int prevState, Random generator) {
+		int state = sampleState(prevState, generator);
+
+		sequence.add(new DenseInstance(1));
+		Instance frame = sequence.lastInstance();
+
+		frame.setValue(0, sampleComponent(state, generator));
+
+		return state;
+	}
+
+	@Override
+	public void calculateParameters() {
+		calculateStateParameters();
+		// only the mixture weights are re-estimated,
+		// the shared gaussians are fixed
+		for (int s = 0; s < getNumStates(); s++)
+		{
+			DiscreteEstimator est = (DiscreteEstimator)m_weightEstimators[s];
+			if (est.getSumOfCounts() > 0.00001)
+				for (int k = 0; k < getNumComponents(); k++)
+					m_Weights[s][k] = est.getProbability(k);
+		}
+	}
+
+	@Override
+	public String getRevision() {
+		// TODO Auto-generated method stub
+		return null;
+	}
+
+	public String toString() {
+		String s = "SemiContinuousHMMEstimator\n" + super.toString();
+
+		for (int i = 0; i < m_Weights.length; i++)
+		{
+			s = s + "Mixture weights, state " + i;
+			for (int k = 0; k < getNumComponents(); k++)
+				s = s + " " + Utils.doubleToString(m_Weights[i][k], 4);
+			s = s + "\n";
+		}
+
+		return s;
+	}
+}
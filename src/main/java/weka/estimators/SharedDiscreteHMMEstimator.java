@@ -0,0 +1,233 @@
+package weka.estimators;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A discrete HMM estimator whose counts can be added to by many threads
+ * at once, so that the E step workers of a large model can share one set
+ * of statistics instead of each keeping a private copy.
+ * The counts are doubles stored as bits in atomic arrays and updated
+ * with compare and set. They are striped: each worker adds to its own
+ * copy of the counts through the view returned by getStripe, and the
+ * copies are summed when the counts are folded. The initial state and
+ * transition counts, which every frame adds to, have one stripe per
+ * worker. The output counts are the bulk of the model, so they may have
+ * fewer stripes, each shared by the workers whose index is the same
+ * modulo the number of output stripes.
+ * Row sums are not kept while counting, they are calculated when the
+ * counts are folded back into the tables of a normal estimator, which
+ * happens the first time the parameters are needed. The estimator then
+ * behaves like a DiscreteHMMEstimator.
+ * The order in which threads add their counts is not fixed, so results
+ * can differ between runs by rounding error.
+ */
+public class SharedDiscreteHMMEstimator extends DiscreteHMMEstimator
+	implements HMMEstimator, Serializable {
+
+	private static final long serialVersionUID = -3478402129367447617L;
+
+	protected int m_NumStripes;
+	protected int m_NumOutputStripes;
+	/** the stripes this estimator adds its counts to */
+	protected int m_Stripe;
+	protected int m_OutputStripe;
+
+	/** the striped initial state and transition counts */
+	protected transient AtomicLongArray m_SharedState0Counts;
+	protected transient AtomicLongArray m_SharedStateCounts;
+	/** the striped output counts, each stripe row major by state */
+	protected transient AtomicLongArray m_SharedOutputCounts;
+
+	public SharedDiscreteHMMEstimator(int numStates, int numOutputs, int numStripes) {
+		this(numStates, numOutputs, numStripes, numStripes);
+	}
+
+	/**
+	 * @param numStates the number of states
+	 * @param numOutputs the number of output symbols
+	 * @param numStripes the number of copies of the state counts, normally 
+	 * one per worker
+	 * @param numOutputStripes the number of copies of the output counts, 
+	 * at most numStripes
+	 */
+	public SharedDiscreteHMMEstimator(int numStates, int numOutputs, int numStripes, int numOutputStripes) {
+		super(numStates, 0, false);
+		m_NumStripes = Math.max(1, numStripes);
+		m_NumOutputStripes = Math.max(1, Math.min(m_NumStripes, numOutputStripes));
+		setNumOutputs(numOutputs);
+	}
+
+	/**
+	 * a view of the counts of another estimator that adds to one stripe
+	 */
+	protected SharedDiscreteHMMEstimator(SharedDiscreteHMMEstimator shared, int stripe) {
+		super(shared.getNumStates(), 0, false);
+		m_NumOutputs = shared.m_NumOutputs;
+		m_NumStripes = shared.m_NumStripes;
+		m_NumOutputStripes = shared.m_NumOutputStripes;
+		m_Stripe = stripe % m_NumStripes;
+		m_OutputStripe = stripe % m_NumOutputStripes;
+		m_SharedState0Counts = shared.m_SharedState0Counts;
+		m_SharedStateCounts = shared.m_SharedStateCounts;
+		m_SharedOutputCounts = shared.m_SharedOutputCounts;
+	}
+
+	/**
+	 * gets an estimator that adds its counts to one stripe of this one.
+	 * Each worker should use its own stripe, so that workers never update
+	 * the same state counts. The view is only for adding counts, the 
+	 * parameters are calculated by this estimator once all workers are done.
+	 * 
+	 * @param stripe the index of the worker, from 0
+	 */
+	public SharedDiscreteHMMEstimator getStripe(int stripe)
+	{
+		return new SharedDiscreteHMMEstimator(this, stripe);
+	}
+
+	@Override
+	protected void setupOutputs()
+	{
+		if (m_NumStripes == 0)
+			return;
+		int N = getNumStates();
+		m_SharedState0Counts = new AtomicLongArray(m_NumStripes*N);
+		m_SharedStateCounts = new AtomicLongArray(m_NumStripes*N*N);
+		m_SharedOutputCounts = new AtomicLongArray(m_NumOutputStripes*N*getNumOutputs());
+		m_OutputCounts = null;
+		m_OutputProbs = null;
+		m_SumOfOutputCounts = new double[N];
+		m_OutputsDirty = true;
+	}
+
+	protected static void atomicAdd(AtomicLongArray counts, int i, double weight)
+	{
+		long prev;
+		long next;
+		do {
+			prev = counts.get(i);
+			next = Double.doubleToRawLongBits(Double.longBitsToDouble(prev) + weight);
+		} while (!counts.compareAndSet(i, prev, next));
+	}
+
+	@Override
+	protected void addState0(int state, double weight)
+	{
+		if (m_SharedOutputCounts == null)
+		{
+			super.addState0(state, weight);
+			return;
+		}
+		atomicAdd(m_SharedState0Counts, m_Stripe*m_NumStates + state, weight);
+		m_StatesDirty = true;
+	}
+
+	@Override
+	protected void addTransition(int prevState, int state, double weight)
+	{
+		if (m_SharedOutputCounts == null)
+		{
+			super.addTransition(prevState, state, weight);
+			return;
+		}
+		atomicAdd(m_SharedStateCounts, (m_Stripe*m_NumStates + prevState)*m_NumStates + state, weight);
+		m_StatesDirty = true;
+	}
+
+	@Override
+	public void addOutput(int state, int output, double weight)
+	{
+		if (m_SharedOutputCounts == null)
+		{
+			super.addOutput(state, output, weight);
+			return;
+		}
+		atomicAdd(m_SharedOutputCounts, (m_OutputStripe*m_NumStates + state)*m_NumOutputs + output, weight);
+		m_OutputsDirty = true;
+	}
+
+	/**
+	 * moves the shared counts into the tables of a normal discrete
+	 * estimator, after which the shared arrays are released. Counts must
+	 * not be added by other threads while this runs.
+	 */
+	protected synchronized void foldCounts()
+	{
+		if (m_SharedOutputCounts == null)
+			return;
+
+		int N = getNumStates();
+		int M = getNumOutputs();
+		for (int stripe = 0; stripe < m_NumStripes; stripe++)
+		{
+			for (int s = 0; s < N; s++)
+			{
+				double c = Double.longBitsToDouble(m_SharedState0Counts.get(stripe*N + s));
+				m_State0Counts[s] += c;
+				m_SumOfState0Counts += c;
+			}
+			for (int ps = 0; ps < N; ps++)
+				for (int s = 0; s < N; s++)
+				{
+					double c = Double.longBitsToDouble(m_SharedStateCounts.get((stripe*N + ps)*N + s));
+					m_StateCounts[ps*N + s] += c;
+					m_SumOfStateCounts[ps] += c;
+				}
+		}
+
+		m_OutputCounts = new double[N*M];
+		m_OutputProbs = new double[N*M];
+		for (int s = 0; s < N; s++)
+		{
+			double sum = 0.0;
+			for (int o = 0; o < M; o++)
+			{
+				double c = 0.0;
+				for (int stripe = 0; stripe < m_NumOutputStripes; stripe++)
+					c += Double.longBitsToDouble(m_SharedOutputCounts.get((stripe*N + s)*M + o));
+				m_OutputCounts[s*M + o] = c;
+				sum += c;
+			}
+			m_SumOfOutputCounts[s] = sum;
+		}
+
+		m_SharedState0Counts = null;
+		m_SharedStateCounts = null;
+		m_SharedOutputCounts = null;
+		m_StatesDirty = true;
+		m_OutputsDirty = true;
+	}
+
+	@Override
+	protected synchronized void calculateStateParameters()
+	{
+		foldCounts();
+		super.calculateStateParameters();
+	}
+
+	@Override
+	protected synchronized void calculateOutputParameters()
+	{
+		foldCounts();
+		super.calculateOutputParameters();
+	}
+
+	@Override
+	public void addStatistics(DiscreteHMMEstimator e)
+	{
+		foldCounts();
+		super.addStatistics(e);
+	}
+
+	@Override
+	public void calculateParameters() {
+		foldCounts();
+		super.calculateParameters();
+	}
+
+	public String toString() {
+		foldCounts();
+		return super.toString();
+	}
+}
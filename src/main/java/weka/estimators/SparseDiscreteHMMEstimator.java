@@ -0,0 +1,334 @@
+package weka.estimators;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+/**
+ * A discrete HMM estimator for very large output alphabets. Only the
+ * outputs that have been counted for a state are stored, in a hash table
+ * while they are accumulated and as sorted arrays once they are normalised.
+ * Every other output of the state shares the remaining smoothing mass,
+ * i.e. each output gets a smoothing count which is never stored explicitly.
+ */
+public class SparseDiscreteHMMEstimator extends DiscreteHMMEstimator
+	implements HMMEstimator, Serializable {
+
+	private static final long serialVersionUID = 8143629043384213606L;
+
+	/** the output counts of each state, indexed by output symbol */
+	protected ArrayList<HashMap<Integer, double[]>> m_SparseCounts;
+
+	/** the counted outputs of each state in increasing order and their probabilities */
+	protected int m_Symbols[][];
+	protected double m_SymbolProbs[][];
+	/** the probability of each output of a state that has not been counted */
+	protected double m_UnseenProbs[];
+
+	/** the count added to every output of a state */
+	protected double m_Smoothing;
+
+	/** the symbol matrices of the outputs seen so far, read without locking */
+	protected transient volatile ConcurrentHashMap<Integer, double[]> m_SparseSymbolMatrices;
+
+	public SparseDiscreteHMMEstimator() {
+		this(6, 6, false);
+	}
+
+	public SparseDiscreteHMMEstimator(int numStates, int numOutputs, boolean laplace) {
+		super(numStates, numOutputs, laplace);
+		m_Smoothing = laplace ? 1.0 : 0.0;
+	}
+
+	public SparseDiscreteHMMEstimator(SparseDiscreteHMMEstimator e) throws Exception {
+		super(e);
+		m_Smoothing = e.m_Smoothing;
+	}
+
+	/**
+	 * gets the count added to every output of a state
+	 */
+	public double getSmoothing() {
+		return m_Smoothing;
+	}
+
+	/**
+	 * sets the count added to every output of a state. Without smoothing
+	 * outputs that were not seen in training have zero probability.
+	 *
+	 * @param smoothing the count
+	 */
+	public void setSmoothing(double smoothing) {
+		m_Smoothing = smoothing;
+		m_OutputsDirty = true;
+	}
+
+	@Override
+	protected void setupOutputs()
+	{
+		m_SparseCounts = new ArrayList<HashMap<Integer, double[]>>(getNumStates());
+		for (int s = 0; s < getNumStates(); s++)
+			m_SparseCounts.add(new HashMap<Integer, double[]>());
+		m_SumOfOutputCounts = new double[getNumStates()];
+		m_Symbols = new int[getNumStates()][0];
+		m_SymbolProbs = new double[getNumStates()][0];
+		m_UnseenProbs = new double[getNumStates()];
+		m_OutputsDirty = true;
+	}
+
+	@Override
+	protected void copyOutputCounts(DiscreteHMMEstimator e)
+	{
+		SparseDiscreteHMMEstimator se = (SparseDiscreteHMMEstimator)e;
+		for (int s = 0; s < getNumStates(); s++)
+		{
+			HashMap<Integer, double[]> counts = m_SparseCounts.get(s);
+			for (Map.Entry<Integer, double[]> entry : se.m_SparseCounts.get(s).entrySet())
+				counts.put(entry.getKey(), entry.getValue().clone());
+		}
+		m_SumOfOutputCounts = e.m_SumOfOutputCounts.clone();
+	}
+
+	/**
+	 * gets the number of outputs that have been counted for a state
+	 *
+	 * @param state the state
+	 */
+	public int getNumSeenOutputs(int state)
+	{
+		return m_SparseCounts.get(state).size();
+	}
+
+	@Override
+	public void addOutput(int state, int output, double weight)
+	{
+		if (weight == 0)
+			return;
+		HashMap<Integer, double[]> counts = m_SparseCounts.get(state);
+		double count[] = counts.get(output);
+		if (count == null)
+		{
+			count = new double[1];
+			counts.put(output, count);
+		}
+		count[0] += weight;
+		m_SumOfOutputCounts[state] += weight;
+		m_OutputsDirty = true;
+	}
+
+	@Override
+	public void addStatistics(DiscreteHMMEstimator e)
+	{
+		addStateStatistics(e);
+		SparseDiscreteHMMEstimator se = (SparseDiscreteHMMEstimator)e;
+		for (int s = 0; s < getNumStates(); s++)
+			for (Map.Entry<Integer, double[]> entry : se.m_SparseCounts.get(s).entrySet())
+				addOutput(s, entry.getKey(), entry.getValue()[0]);
+	}
+
+	@Override
+	protected synchronized void calculateOutputParameters()
+	{
+		for (int s = 0; s < getNumStates(); s++)
+		{
+			HashMap<Integer, double[]> counts = m_SparseCounts.get(s);
+			int symbols[] = new int[counts.size()];
+			int i = 0;
+			for (Integer o : counts.keySet())
+				symbols[i++] = o;
+			Arrays.sort(symbols);
+
+			double sum = m_SumOfOutputCounts[s] + m_Smoothing*getNumOutputs();
+			double probs[] = new double[symbols.length];
+			for (i = 0; i < symbols.length; i++)
+				probs[i] = sum > 0 ? (counts.get(symbols[i])[0] + m_Smoothing)/sum : 0.0;
+			m_Symbols[s] = symbols;
+			m_SymbolProbs[s] = probs;
+			m_UnseenProbs[s] = sum > 0 ? m_Smoothing/sum : 0.0;
+		}
+		m_OutputsDirty = false;
+		m_OutputSamplers = null;
+		clearSymbolMatrices();
+	}
+
+	@Override
+	public double getOutputProbability(int state, int output)
+	{
+		if (m_OutputsDirty)
+			calculateOutputParameters();
+		int i = Arrays.binarySearch(m_Symbols[state], output);
+		return i >= 0 ? m_SymbolProbs[state][i] : m_UnseenProbs[state];
+	}
+
+	@Override
+	public void getOutputColumn(int output, double result[])
+	{
+		for (int s = 0; s < result.length; s++)
+			result[s] = getOutputProbability(s, output);
+	}
+
+	@Override
+	protected void clearSymbolMatrices()
+	{
+		super.clearSymbolMatrices();
+		m_SparseSymbolMatrices = null;
+	}
+
+	/**
+	 * gets the transition matrix multiplied by the output probabilities
+	 * of a symbol. The matrices are kept in a hash table rather than an 
+	 * array over the whole alphabet.
+	 * 
+	 * @param output the output symbol
+	 * @return the matrix in row major order, or null if the cache is full
+	 */
+	@Override
+	public double [] getSymbolMatrix(int output)
+	{
+		ConcurrentHashMap<Integer, double[]> matrices = m_SparseSymbolMatrices;
+		if (matrices != null && !m_StatesDirty && !m_OutputsDirty)
+		{
+			double M[] = matrices.get(output);
+			if (M != null)
+				return M;
+		}
+		return cacheSymbolMatrix(output);
+	}
+
+	@Override
+	protected synchronized double [] cacheSymbolMatrix(int output)
+	{
+		if (m_StatesDirty)
+			calculateStateParameters();
+		if (m_OutputsDirty)
+			calculateOutputParameters();
+		if (m_SparseSymbolMatrices == null)
+		{
+			m_SparseSymbolMatrices = new ConcurrentHashMap<Integer, double[]>();
+			m_NumCachedValues = 0;
+		}
+		
+		double M[] = m_SparseSymbolMatrices.get(output);
+		if (M == null)
+		{
+			int N = getNumStates();
+			if ((long)m_NumCachedValues + N*N > MAX_CACHED_SYMBOL_VALUES)
+				return null;
+			M = buildSymbolMatrix(output);
+			m_SparseSymbolMatrices.put(output, M);
+			m_NumCachedValues += N*N;
+		}
+		return M;
+	}
+
+	/**
+	 * powers of the symbol matrices are not cached for sparse outputs,
+	 * runs of the same output are evaluated one step at a time
+	 */
+	@Override
+	public double [] getSymbolMatrixPower(int output, int j)
+	{
+		return null;
+	}
+
+	/**
+	 * the sparse estimator has no dense output table
+	 */
+	@Override
+	public boolean hasDenseOutputTable()
+	{
+		return false;
+	}
+
+	/**
+	 * builds a dense copy of the output probabilities, which takes
+	 * numStates*numOutputs doubles. Callers that can work from the
+	 * sparse outputs should check hasDenseOutputTable first.
+	 */
+	@Override
+	public double [] getOutputProbabilities()
+	{
+		int N = getNumStates();
+		int M = getNumOutputs();
+		double result[] = new double[N*M];
+		for (int s = 0; s < N; s++)
+			for (int o = 0; o < M; o++)
+				result[s*M + o] = getOutputProbability(s, o);
+		return result;
+	}
+
+	/**
+	 * Draw an output from the output distribution of a state, either one
+	 * of the counted outputs or one of the others, which are equally likely.
+	 * The alias table has one entry for each counted output and a last
+	 * entry for all the others together.
+	 *
+	 * @param state the HMM state emitting the output
+	 * @param generator the random number generator to use
+	 */
+	@Override
+	protected synchronized int sampleOutput(int state, Random generator)
+	{
+		if (m_OutputsDirty)
+			calculateOutputParameters();
+		int symbols[] = m_Symbols[state];
+		int numUnseen = getNumOutputs() - symbols.length;
+		if (m_OutputSamplers == null)
+			m_OutputSamplers = new AliasTable[getNumStates()];
+		if (m_OutputSamplers[state] == null)
+		{
+			double weights[] = Arrays.copyOf(m_SymbolProbs[state], symbols.length + 1);
+			weights[symbols.length] = m_UnseenProbs[state]*numUnseen;
+			m_OutputSamplers[state] = new AliasTable(weights);
+		}
+		int i = m_OutputSamplers[state].sample(generator);
+		if (i < symbols.length)
+			return symbols[i];
+		
+		// an output that has not been counted, or any output 
+		// if the state has no probability mass at all
+		if (numUnseen <= 0)
+			return symbols.length > 0 ? symbols[symbols.length - 1] : generator.nextInt(getNumOutputs());
+		return unseenOutput(symbols, generator.nextInt(numUnseen));
+	}
+	
+	/**
+	 * finds the r'th output that is not in a sorted list of outputs.
+	 * symbols[j] - j outputs are missing below symbols[j], so the result
+	 * is r plus the number of listed outputs with at most r missing below them.
+	 */
+	protected static int unseenOutput(int symbols[], int r)
+	{
+		int lo = 0;
+		int hi = symbols.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (symbols[mid] - mid <= r)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return r + lo;
+	}
+
+	public String toString() {
+		String s = "SparseDiscreteHMMEstimator\n" + statesToString();
+
+		for (int i = 0; i < getNumStates(); i++)
+			s = s + "Output Estimator, state " + i + " Sparse Estimator. "
+				+ getNumSeenOutputs(i) + " of " + getNumOutputs() + " outputs counted  (Total = "
+				+ Utils.doubleToString(m_SumOfOutputCounts[i], 2) + ")\n";
+
+		return s;
+	}
+}
@@ -0,0 +1,278 @@
+package weka.estimators;
+
+import java.io.Serializable;
+import java.util.Random;
+
+import weka.core.matrix.DoubleVector;
+import weka.core.matrix.Matrix;
+
+/**
+ * A gaussian HMM estimator for one dimensional numeric outputs.
+ * The output distribution of each state is kept as a plain mean and
+ * variance so that densities can be evaluated without going through
+ * 1x1 matrices or allocating output vectors.
+ */
+public class UnivariateNormalHMMEstimator extends MultivariateNormalHMMEstimator
+	implements HMMEstimator, Serializable {
+
+	private static final long serialVersionUID = 2795178474211064319L;
+
+	// sufficient statistics
+	protected double m_SumOfWeights[];
+	protected double m_SumOfValues[];
+	protected double m_SumOfSquareValues[];
+
+	protected double m_Mean[];
+	protected double m_Var[];
+
+	// derived parameters, the normalising coefficient and the
+	// factor applied to the squared distance from the mean
+	protected double m_Coef[];
+	protected double m_Exponent[];
+
+	protected boolean m_Dirty;
+
+	public UnivariateNormalHMMEstimator() {
+		super();
+	}
+
+	public UnivariateNormalHMMEstimator(int numStates, boolean laplace) {
+		super(numStates, laplace);
+	}
+
+	public UnivariateNormalHMMEstimator(UnivariateNormalHMMEstimator a) throws Exception
+	{
+		super(a);
+	}
+
+	@Override
+	protected void setupOutputs()
+	{
+		m_SumOfWeights = new double[getNumStates()];
+		m_SumOfValues = new double[getNumStates()];
+		m_SumOfSquareValues = new double[getNumStates()];
+		m_Mean = new double[getNumStates()];
+		m_Var = new double[getNumStates()];
+		m_Coef = new double[getNumStates()];
+		m_Exponent = new double[getNumStates()];
+		for (int s = 0; s < getNumStates(); s++)
+		{
+			m_Var[s] = 1.0;
+			calculateDerivedParameters(s);
+		}
+		m_Dirty = false;
+	}
+
+	@Override
+	public int getOutputDimension() {
+		return 1;
+	}
+
+	@Override
+	public void copyOutputParameters(MultivariateNormalHMMEstimator a) throws Exception
+	{
+		setCovarianceType(a.getCovarianceType());
+		setApproximateMath(a.isApproximateMath());
+		setTied(a.isTied());
+		setupOutputs();
+		if (a instanceof UnivariateNormalHMMEstimator)
+		{
+			UnivariateNormalHMMEstimator u = (UnivariateNormalHMMEstimator)a;
+			if (u.m_Dirty)
+				u.calculateParameters();
+			for (int s = 0; s < getNumStates(); s++)
+			{
+				m_Mean[s] = u.m_Mean[s];
+				m_Var[s] = u.m_Var[s];
+				calculateDerivedParameters(s);
+			}
+		}
+		else
+		{
+			for (int s = 0; s < getNumStates(); s++)
+			{
+				setOutputMean(s, a.m_outputEstimators[s].getMean());
+				setOutputVariance(s, a.m_outputEstimators[s].getVariance());
+			}
+		}
+	}
+
+	@Override
+	public void setOutputMean(int state, DoubleVector mean)
+	{
+		m_Mean[state] = mean.get(0);
+	}
+
+	@Override
+	public void setOutputMeans(DoubleVector means[])
+	{
+		for (int i = 0; i < means.length; i++)
+			setOutputMean(i, means[i]);
+	}
+
+	@Override
+	public void setOutputVariance(int state, Matrix var)
+	{
+		m_Var[state] = var.get(0, 0);
+		calculateDerivedParameters(state);
+	}
+
+	@Override
+	public void setOutputVariances(Matrix vars[])
+	{
+		for (int i = 0; i < vars.length; i++)
+			setOutputVariance(i, vars[i]);
+	}
+
+	public double getOutputMean(int state)
+	{
+		return m_Mean[state];
+	}
+
+	public double getOutputVariance(int state)
+	{
+		return m_Var[state];
+	}
+
+	protected void calculateDerivedParameters(int state)
+	{
+		if (m_Var[state] < 1.0E-200)
+		{
+			System.err.println("Variance is zero");
+			m_Coef[state] = 0.0;
+			m_Exponent[state] = 0.0;
+			return;
+		}
+		m_Coef[state] = 1.0/Math.sqrt(2*Math.PI*m_Var[state]);
+		m_Exponent[state] = -0.5/m_Var[state];
+	}
+
+	/**
+	 * Get the output density of a state
+	 *
+	 * @param state the HMM state
+	 * @param output the HMM output
+	 */
+	public double getOutputProbability(int state, double output) throws Exception
+	{
+		if (m_Dirty)
+			calculateParameters();
+
+		double d = output - m_Mean[state];
+		double x = m_Exponent[state]*d*d;
+		double p = m_Coef[state]*(m_ApproximateMath ? ApproximateMath.exp(x) : Math.exp(x));
+		if (Double.isInfinite(p) || Double.isNaN(p))
+			throw new Exception("Calculated probability is NaN");
+		return p;
+	}
+
+	@Override
+	protected DoubleVector sampleOutput(int state, Random generator)
+	{
+		return new DoubleVector(1, m_Mean[state] + Math.sqrt(m_Var[state])*generator.nextGaussian());
+	}
+
+	@Override
+	public void addValue(double prevState, double state, DoubleVector output, double weight) {
+		addValue(prevState, state, output.get(0), weight);
+	}
+
+	@Override
+	public void addValue0(double state, DoubleVector output, double weight) {
+		addValue0(state, output.get(0), weight);
+	}
+
+	@Override
+	public double getOutputProbability(int state, DoubleVector output) throws Exception
+	{
+		return getOutputProbability(state, output.get(0));
+	}
+
+	@Override
+	public double getProbability(double prevState, double state, DoubleVector output) throws Exception {
+		return getProbability(prevState, state, output.get(0));
+	}
+
+	@Override
+	public double getProbability0(double state, DoubleVector output) throws Exception {
+		return getProbability0(state, output.get(0));
+	}
+
+	protected void addOutputValue(int state, double output, double weight)
+	{
+		if (weight == 0)
+			return;
+		m_SumOfWeights[state] += weight;
+		m_SumOfValues[state] += output*weight;
+		m_SumOfSquareValues[state] += output*output*weight;
+		m_Dirty = true;
+	}
+
+	@Override
+	public void addValue(double prevState, double state, double output, double weight) {
+		addTransition((int)prevState, (int)state, weight);
+		addOutputValue((int)state, output, weight);
+	}
+
+	@Override
+	public void addValue0(double state, double output, double weight) {
+		addState0((int)state, weight);
+		addOutputValue((int)state, output, weight);
+	}
+
+	@Override
+	public double getProbability(double prevState, double state, double output) throws Exception {
+		return getTransitionProbability((int)prevState, (int)state) * getOutputProbability((int)state, output);
+	}
+
+	@Override
+	public double getProbability0(double state, double output) throws Exception {
+		return getState0Probability((int)state) * getOutputProbability((int)state, output);
+	}
+
+	@Override
+	public void calculateParameters() throws Exception {
+		m_Dirty = false;
+		super.calculateParameters();
+	}
+
+	@Override
+	public void calculateOutputParameters(int state) throws Exception
+	{
+		m_Dirty = false;
+		if (m_SumOfWeights[state] > 0.00001)
+		{
+			m_Mean[state] = m_SumOfValues[state]/m_SumOfWeights[state];
+			m_Var[state] = m_SumOfSquareValues[state]/m_SumOfWeights[state] - m_Mean[state]*m_Mean[state];
+		}
+		if (!isTied())
+			calculateDerivedParameters(state);
+	}
+
+	@Override
+	public void calculateTiedVariance() throws Exception
+	{
+		double sigma = 0.0;
+		double M = 0.0;
+		for (int s = 0; s < getNumStates(); s++)
+		{
+			sigma += m_Var[s]*m_SumOfWeights[s];
+			M += m_SumOfWeights[s];
+		}
+		if (M > 0.00001)
+			for (int s = 0; s < getNumStates(); s++)
+				m_Var[s] = sigma/M;
+	}
+
+	@Override
+	public void calculateDerivedOutputParameters(int state) throws Exception
+	{
+		calculateDerivedParameters(state);
+	}
+
+	@Override
+	protected String outputToString(int state)
+	{
+		return "Mean\n" + m_Mean[state] + "\nVariance\n" + m_Var[state] + "\n";
+	}
+}
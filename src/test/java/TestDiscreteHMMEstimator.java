@@ -328,4 +328,260 @@ public class TestDiscreteHMMEstimator {
 		DiscreteHMMEstimator dhe = new DiscreteHMMEstimator(4, 4, false);
 		assertEquals(dhe.getOutputDimension(), 1);
 	}
+
+	/**
+	 * Test method for {@link weka.estimators.DiscreteHMMEstimator#calculateParameters()}.
+	 */
+	@Test
+	public void testProbabilityTables() {
+		DiscreteHMMEstimator dhe = new DiscreteHMMEstimator(3, 4, false);
+		for (int i = 0; i < 3; i ++)
+			for (int k = 0; k < 4; k++)
+				dhe.addValue0(i, k, m_rand.nextDouble());
+		for (int i = 0; i < 3; i ++)
+			for (int j = 0; j < 3; j++)
+				for (int k = 0; k < 4; k++)
+					dhe.addValue(i, j, k, m_rand.nextDouble());
+		dhe.calculateParameters();
+		
+		double sum0 = 0.0;
+		for (int i = 0; i < 3; i ++)
+		{
+			sum0 += dhe.getState0Probability(i);
+			double sumA = 0.0;
+			double sumB = 0.0;
+			for (int j = 0; j < 3; j++)
+				sumA += dhe.getTransitionProbability(i, j);
+			for (int k = 0; k < 4; k++)
+				sumB += dhe.getOutputProbability(i, k);
+			assertEquals(1.0, sumA, 1.0E-10);
+			assertEquals(1.0, sumB, 1.0E-10);
+			for (int j = 0; j < 3; j++)
+				for (int k = 0; k < 4; k++)
+					assertEquals(dhe.getTransitionProbability(i, j)*dhe.getOutputProbability(j, k), 
+							dhe.getProbability(i, j, k), 1.0E-12);
+		}
+		assertEquals(1.0, sum0, 1.0E-10);
+		
+		// adding values after the parameters are calculated updates the tables
+		double before = dhe.getOutputProbability(0, 0);
+		dhe.addValue0(0, 0, 100.0);
+		assertTrue(dhe.getOutputProbability(0, 0) > before);
+	}
+
+	/**
+	 * Test method for {@link weka.estimators.DiscreteHMMEstimator#getSymbolMatrix(int)}.
+	 */
+	@Test
+	public void testSymbolMatrix() {
+		DiscreteHMMEstimator dhe = new DiscreteHMMEstimator(3, 4, false);
+		for (int i = 0; i < 3; i ++)
+			for (int j = 0; j < 3; j++)
+				for (int k = 0; k < 4; k++)
+					dhe.addValue(i, j, k, m_rand.nextDouble());
+		
+		for (int k = 0; k < 4; k++)
+		{
+			double M[] = dhe.getSymbolMatrix(k);
+			for (int i = 0; i < 3; i ++)
+				for (int j = 0; j < 3; j++)
+					assertEquals(dhe.getProbability(i, j, k), M[i*3 + j], 1.0E-12);
+		}
+		
+		// the cache is rebuilt when the counts change
+		double M[] = dhe.getSymbolMatrix(0);
+		dhe.addValue(0, 0, 0, 100.0);
+		assertTrue(dhe.getSymbolMatrix(0)[0] > M[0]);
+	}
+
+	/**
+	 * Test method for {@link weka.estimators.DiscreteHMMEstimator#getSymbolMatrix(int)}
+	 * called from several threads.
+	 */
+	@Test
+	public void testSymbolMatrixConcurrent() throws Exception {
+		final DiscreteHMMEstimator estimators[] = {
+				new DiscreteHMMEstimator(3, 200, false), new SparseDiscreteHMMEstimator(3, 200, false)};
+		for (int n = 0; n < 2000; n++)
+		{
+			int i = m_rand.nextInt(3), j = m_rand.nextInt(3), k = m_rand.nextInt(200);
+			double w = m_rand.nextDouble();
+			for (int e = 0; e < estimators.length; e++)
+				estimators[e].addValue(i, j, k, w);
+		}
+		
+		// each thread visits the symbols in a different order
+		final int strides[] = {1, 3, 7, 9};
+		final int numThreads = strides.length;
+		final double results[][][][] = new double[estimators.length][numThreads][][];
+		Thread threads[] = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++)
+		{
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int e = 0; e < estimators.length; e++)
+					{
+						results[e][thread] = new double[200][];
+						for (int n = 0; n < 200; n++)
+						{
+							int k = (n*strides[thread] + thread) % 200;
+							results[e][thread][k] = estimators[e].getSymbolMatrix(k);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < numThreads; t++)
+			threads[t].join();
+		
+		// every thread gets the same matrix of each symbol
+		for (int e = 0; e < estimators.length; e++)
+			for (int k = 0; k < 200; k++)
+			{
+				for (int t = 1; t < numThreads; t++)
+					assertSame(results[e][0][k], results[e][t][k]);
+				for (int i = 0; i < 3; i ++)
+					for (int j = 0; j < 3; j++)
+						assertEquals(estimators[e].getProbability(i, j, k), results[e][0][k][i*3 + j], 1.0E-12);
+			}
+	}
+
+	/**
+	 * Test method for {@link weka.estimators.SharedDiscreteHMMEstimator#getStripe(int)}.
+	 */
+	@Test
+	public void testSharedStripes() throws Exception {
+		final int numThreads = 4;
+		final int numValues = 20000;
+		final int states[][] = new int[numValues][2];
+		final int outputs[] = new int[numValues];
+		final double weights[] = new double[numValues];
+		DiscreteHMMEstimator serial = new DiscreteHMMEstimator(3, 50, false);
+		for (int n = 0; n < numValues; n++)
+		{
+			states[n][0] = m_rand.nextInt(3);
+			states[n][1] = m_rand.nextInt(3);
+			// most of the weight on a few symbols, where contention is worst
+			outputs[n] = m_rand.nextInt(4) == 0 ? m_rand.nextInt(50) : m_rand.nextInt(2);
+			weights[n] = m_rand.nextDouble();
+			serial.addValue0(states[n][1], outputs[n], weights[n]);
+			serial.addValue(states[n][0], states[n][1], outputs[n], weights[n]);
+		}
+
+		// fewer output stripes than threads, so two threads share each
+		SharedDiscreteHMMEstimator shared = new SharedDiscreteHMMEstimator(3, 50, numThreads, 2);
+		Thread threads[] = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++)
+		{
+			final int thread = t;
+			final DiscreteHMMEstimator stripe = shared.getStripe(t);
+			threads[t] = new Thread() {
+				public void run() {
+					for (int n = thread; n < numValues; n += numThreads)
+					{
+						stripe.addValue0(states[n][1], outputs[n], weights[n]);
+						stripe.addValue(states[n][0], states[n][1], outputs[n], weights[n]);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (int t = 0; t < numThreads; t++)
+			threads[t].join();
+
+		// the stripes are summed, so only rounding differs
+		for (int i = 0; i < 3; i ++)
+			for (int k = 0; k < 50; k++)
+			{
+				assertEquals(serial.getProbability0(i, k), shared.getProbability0(i, k), 1.0E-12);
+				for (int j = 0; j < 3; j++)
+					assertEquals(serial.getProbability(i, j, k), shared.getProbability(i, j, k), 1.0E-12);
+			}
+	}
+
+	/**
+	 * Test method for {@link weka.estimators.SparseDiscreteHMMEstimator#getOutputProbability(int, int)}.
+	 */
+	@Test
+	public void testSparseOutputs() {
+		DiscreteHMMEstimator dense = new DiscreteHMMEstimator(3, 1000, false);
+		SparseDiscreteHMMEstimator sparse = new SparseDiscreteHMMEstimator(3, 1000, false);
+		for (int n = 0; n < 50; n++)
+		{
+			int i = m_rand.nextInt(3);
+			int j = m_rand.nextInt(3);
+			int k = m_rand.nextInt(1000);
+			double w = m_rand.nextDouble();
+			dense.addValue(i, j, k, w);
+			sparse.addValue(i, j, k, w);
+		}
+		
+		// without smoothing the sparse estimator matches the dense one
+		for (int i = 0; i < 3; i ++)
+		{
+			assertTrue(sparse.getNumSeenOutputs(i) <= 50);
+			for (int k = 0; k < 1000; k++)
+				assertEquals(dense.getOutputProbability(i, k), sparse.getOutputProbability(i, k), 1.0E-12);
+		}
+		
+		// the sparse estimator has no dense table but can still build one
+		assertTrue(dense.hasDenseOutputTable());
+		assertFalse(sparse.hasDenseOutputTable());
+		assertArrayEquals(dense.getOutputProbabilities(), sparse.getOutputProbabilities(), 1.0E-12);
+		
+		// smoothing shares the remaining mass between the unseen outputs
+		sparse.setSmoothing(0.1);
+		for (int i = 0; i < 3; i ++)
+		{
+			double sum = 0.0;
+			for (int k = 0; k < 1000; k++)
+			{
+				assertTrue(sparse.getOutputProbability(i, k) > 0);
+				sum += sparse.getOutputProbability(i, k);
+			}
+			assertEquals(1.0, sum, 1.0E-10);
+		}
+	}
+
+	/**
+	 * Test method for {@link weka.estimators.AliasTable#sample(Random)}.
+	 */
+	@Test
+	public void testAliasTable() {
+		double weights[] = {0.0, 1.0, 5.0, 0.5, 3.5};
+		AliasTable table = new AliasTable(weights);
+		int counts[] = new int[weights.length];
+		int n = 100000;
+		for (int i = 0; i < n; i++)
+			counts[table.sample(m_rand)]++;
+		
+		assertEquals(0, counts[0]);
+		for (int i = 0; i < weights.length; i++)
+			assertEquals(weights[i]/10.0, (double)counts[i]/n, 0.01);
+	}
+
+	/**
+	 * Test method for {@link weka.estimators.SparseDiscreteHMMEstimator#sampleOutput(int, Random)}.
+	 */
+	@Test
+	public void testSparseSampling() {
+		// outputs 0 and 2 are counted, the other two share the smoothing
+		SparseDiscreteHMMEstimator sparse = new SparseDiscreteHMMEstimator(1, 4, false);
+		sparse.addOutput(0, 0, 3.0);
+		sparse.addOutput(0, 2, 3.0);
+		sparse.setSmoothing(1.0);
+		
+		int counts[] = new int[4];
+		int n = 100000;
+		for (int i = 0; i < n; i++)
+			counts[sparse.sampleOutput(0, m_rand)]++;
+		for (int k = 0; k < 4; k++)
+			assertEquals(sparse.getOutputProbability(0, k), (double)counts[k]/n, 0.01);
+		
+		assertEquals(1, SparseDiscreteHMMEstimator.unseenOutput(new int[] {0, 2}, 0));
+		assertEquals(3, SparseDiscreteHMMEstimator.unseenOutput(new int[] {0, 2}, 1));
+		assertEquals(0, SparseDiscreteHMMEstimator.unseenOutput(new int[] {1, 2}, 0));
+	}
 }
@@ -0,0 +1,125 @@
+package weka.classifiers.bayes;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import weka.core.Instances;
+
+/**
+ * Checks that scoring a sequence with a trained HMM allocates nothing
+ * but the array of class probabilities once the scoring workspace of
+ * the thread has grown to the longest sequence.
+ */
+public class TestHMMAllocation {
+
+	/** allowed for reading the allocation counter itself */
+	protected static final long MEASUREMENT_SLACK = 1024;
+
+	protected TestHMMClassifiers m_Data;
+	protected com.sun.management.ThreadMXBean m_ThreadBean;
+
+	@Before
+	public void setUp() throws Exception {
+		m_Data = new TestHMMClassifiers();
+		m_Data.setUp();
+		
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+		m_ThreadBean = (com.sun.management.ThreadMXBean)bean;
+		assumeTrue(m_ThreadBean.isThreadAllocatedMemorySupported());
+		m_ThreadBean.setThreadAllocatedMemoryEnabled(true);
+	}
+	
+	/** the most measuring windows run while waiting for the allocation to settle */
+	protected static final int MAX_WINDOWS = 8;
+
+	/**
+	 * scores the test sequences once to grow the workspace, then in 
+	 * windows of several rounds until two windows in a row allocate the 
+	 * same number of bytes. The JIT can recompile the scoring code, 
+	 * allocating in the old code while it does, well after the first 
+	 * rounds, so the fewest bytes allocated by any window is checked 
+	 * against the result arrays.
+	 */
+	protected void checkScoringAllocation(HMM hmm, Instances test) throws Exception
+	{
+		for (int i = 0; i < test.numInstances(); i++)
+			hmm.distributionForInstance(test.instance(i));
+		
+		int rounds = 10;
+		long threadId = Thread.currentThread().getId();
+		long fewest = Long.MAX_VALUE;
+		long previous = -1;
+		for (int window = 0; window < MAX_WINDOWS; window++)
+		{
+			long before = m_ThreadBean.getThreadAllocatedBytes(threadId);
+			for (int round = 0; round < rounds; round++)
+				for (int i = 0; i < test.numInstances(); i++)
+					hmm.distributionForInstance(test.instance(i));
+			long allocated = m_ThreadBean.getThreadAllocatedBytes(threadId) - before;
+			fewest = Math.min(fewest, allocated);
+			if (allocated == previous)
+				break;
+			previous = allocated;
+		}
+		
+		// an array header and the class probabilities
+		long resultBytes = 16 + 8*test.numClasses();
+		long budget = (long)rounds*test.numInstances()*resultBytes + MEASUREMENT_SLACK;
+		assertTrue("allocated " + fewest + " bytes, expected at most " + budget, fewest <= budget);
+	}
+	
+	@Test
+	public void testSmallDiscrete() throws Exception
+	{
+		HMM hmm = new HMM();
+		hmm.setNumStates(3);
+		hmm.buildClassifier(m_Data.getSequence2(50, 100));
+		assertNotNull(hmm.m_SmallEstimators);
+		checkScoringAllocation(hmm, m_Data.getSequence2(20, 150));
+	}
+	
+	@Test
+	public void testDiscrete() throws Exception
+	{
+		HMM hmm = new HMM();
+		hmm.setNumStates(10);
+		hmm.buildClassifier(m_Data.getSequence2(50, 100));
+		assertNull(hmm.m_SmallEstimators);
+		checkScoringAllocation(hmm, m_Data.getSequence2(20, 150));
+	}
+	
+	@Test
+	public void testQuantized() throws Exception
+	{
+		HMM hmm = new HMM();
+		hmm.setNumStates(10);
+		hmm.setOutputQuantizationBits(8);
+		hmm.buildClassifier(m_Data.getSequence2(50, 100));
+		checkScoringAllocation(hmm, m_Data.getSequence2(20, 150));
+	}
+	
+	@Test
+	public void testSinglePrecision() throws Exception
+	{
+		HMM hmm = new HMM();
+		hmm.setNumStates(10);
+		hmm.setSinglePrecision(true);
+		hmm.buildClassifier(m_Data.getSequence2(50, 100));
+		checkScoringAllocation(hmm, m_Data.getSequence2(20, 150));
+	}
+	
+	@Test
+	public void testUnivariateNormal() throws Exception
+	{
+		HMM hmm = new HMM();
+		hmm.setNumStates(2);
+		hmm.buildClassifier(m_Data.getUVSequence1(50, 100));
+		checkScoringAllocation(hmm, m_Data.getUVSequence1(20, 150));
+	}
+}
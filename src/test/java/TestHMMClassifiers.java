@@ -1,5 +1,6 @@
 package weka.classifiers.bayes;
 
+import java.util.Arrays;
 import java.util.Random;
 import java.io.File;
 import org.junit.After;
@@ -9,12 +10,22 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import static org.junit.Assert.*;
 import weka.classifiers.Evaluation;
+import weka.classifiers.bayes.hmm.Codebook;
+import weka.classifiers.bayes.hmm.FloatDiscreteHMM;
+import weka.classifiers.bayes.hmm.ForwardSteps;
+import weka.classifiers.bayes.hmm.QuantizedDiscreteHMM;
+import weka.classifiers.bayes.hmm.SequenceProjection;
+import weka.classifiers.bayes.hmm.SmallDiscreteHMM;
 import weka.core.Instances;
 import weka.core.SelectedTag;
+import weka.core.Utils;
 import weka.core.matrix.DoubleVector;
 import weka.core.matrix.Matrix;
 import weka.core.converters.ArffSaver;
+import weka.estimators.DiscreteHMMEstimator;
+import weka.estimators.HMMEstimator;
 import weka.estimators.MultivariateNormalEstimator;
+import weka.estimators.MultivariateNormalHMMEstimator;
 
 public class TestHMMClassifiers {
 	
@@ -321,6 +332,47 @@ public class TestHMMClassifiers {
 		return hmm.sample(numseqs, length);
 	}
 	
+	protected Instances getUVSequence1(int numseqs, int length) throws Exception
+	{
+		HMM hmm = new HMM();
+		
+		hmm.setNumStates(2);
+		hmm.setNumeric(true);
+		hmm.setOutputDimension(1);
+		
+		double state0Probs[][] = new double[2][2];
+		state0Probs[0][0] = 1;
+		state0Probs[0][1] = 0;
+		state0Probs[1][0] = 1;
+		state0Probs[1][1] = 0;
+		
+		double stateProbs[][][] = new double[2][2][2];
+		stateProbs[0][0][0] = 0.5;
+		stateProbs[0][0][1] = 0.5;
+		stateProbs[0][1][0] = 0.5;
+		stateProbs[0][1][1] = 0.5;
+		stateProbs[1][0][0] = 0.9;
+		stateProbs[1][0][1] = 0.1;
+		stateProbs[1][1][0] = 0.1;
+		stateProbs[1][1][1] = 0.9;
+		
+		DoubleVector outputMeans[][] = new DoubleVector[2][2];
+		Matrix outputVars[][] = new Matrix[2][2];
+		
+		for (int c=0; c < 2; c++)
+		{
+			for (int s=0; s < 2; s++)
+			{
+				outputMeans[c][s] = new DoubleVector(1, 10.0*(double)s);
+				outputVars[c][s] = Matrix.identity(1, 1);
+			}
+		}
+		
+		hmm.initEstimatorsMultivariateNormal(2, state0Probs, stateProbs, outputMeans, outputVars, null);
+		
+		return hmm.sample(numseqs, length);
+	}
+	
 	@Test
 	public void TestSequence1() throws Exception
 	{
@@ -1094,6 +1146,853 @@ public class TestHMMClassifiers {
 	}
 
 	
+	@Test
+	public void TestUVSequence1() throws Exception
+	{
+		Instances train = getUVSequence1(200, 100);
+		Instances test = getUVSequence1(100, 100);
+		
+		HMM hmm = new HMM();
+		
+		hmm.setNumStates(2);
+		
+		DoubleVector outputMeans[][] = new DoubleVector[2][2];
+		Matrix outputVars[][] = new Matrix[2][2];
+		
+		for (int c=0; c < 2; c++)
+		{
+			for (int s=0; s < 2; s++)
+			{
+				outputMeans[c][s] = new DoubleVector(1, 10.0*(double)s);
+				outputVars[c][s] = Matrix.identity(1, 1);
+			}
+		}
+		
+		hmm.initEstimatorsMultivariateNormal(2, null, null, outputMeans, outputVars, null);
+		
+		hmm.buildClassifier(train);
+		assertEquals(1, hmm.getOutputDimension());
+		
+		Evaluation eval = new Evaluation(train);
+		
+		eval.evaluateModel(hmm, train);
+		double errorRate = eval.errorRate();
+		if (printErrorRates)
+			System.out.println("Train UV Seq 1 error rate " + errorRate);
+		assertTrue("error rate " + errorRate, errorRate < 0.1);
+		
+		eval.evaluateModel(hmm, test);
+		errorRate = eval.errorRate();
+		if (printErrorRates)
+			System.out.println("Test UV Seq 1 error rate " + errorRate);
+		assertTrue("error rate " + errorRate, errorRate < 0.1);
+	}
+	
+	@Test
+	public void TestParallelTraining() throws Exception
+	{
+		Instances train = getMVSequence3(100, 50);
+		
+		HMM serial = null;
+		HMM parallel = null;
+		for (int slots = 1; slots <= 4; slots += 3)
+		{
+			HMM hmm = new HMM();
+			
+			hmm.setNumStates(4);
+			hmm.setNumeric(true);
+			hmm.setOutputDimension(4);
+			hmm.setTied(true);
+			hmm.setNumExecutionSlots(slots);
+			
+			DoubleVector outputMeans[][] = new DoubleVector[2][4];
+			Matrix outputVars[][] = new Matrix[2][4];
+			for (int c=0; c < 2; c++)
+			{
+				for (int s=0; s < 4; s++)
+				{
+					outputMeans[c][s] = new DoubleVector(4, 10.0*(double)s);
+					outputVars[c][s] = Matrix.identity(4, 4);
+				}
+			}
+			hmm.initEstimatorsMultivariateNormal(2, null, null, outputMeans, outputVars, null);
+			hmm.buildClassifier(train);
+			
+			if (slots == 1)
+				serial = hmm;
+			else
+				parallel = hmm;
+		}
+		
+		// the parallel M step must give exactly the same model
+		for (int i = 0; i < train.numInstances(); i++)
+			assertArrayEquals(serial.distributionForInstance(train.instance(i)), 
+					parallel.distributionForInstance(train.instance(i)), 0.0);
+	}
+	
+	@Test
+	public void TestParallelDiscreteTraining() throws Exception
+	{
+		Instances train = getSequence3(100, 50);
+
+		HMM serial = new HMM();
+		serial.setNumStates(3);
+		serial.buildClassifier(train);
+
+		// private accumulators, then shared ones
+		for (int mode = 0; mode < 2; mode++)
+		{
+			final boolean shared = mode == 1;
+			HMM parallel = new HMM() {
+				@Override
+				protected boolean useSharedAccumulators(int numClasses, int numWorkers) {
+					return shared;
+				}
+			};
+			parallel.setNumStates(3);
+			parallel.setNumExecutionSlots(4);
+			parallel.buildClassifier(train);
+
+			// the counts are only added in a different order
+			for (int i = 0; i < train.numInstances(); i++)
+				assertArrayEquals(serial.distributionForInstance(train.instance(i)),
+						parallel.distributionForInstance(train.instance(i)), 1.0E-6);
+		}
+	}
+
+	@Test
+	public void TestOutputInitialization() throws Exception
+	{
+		Instances train = getSequence1(100, 100);
+		Instances test = getSequence1(20, 100);
+
+		int iterations[] = new int[3];
+		for (int init = HMM.OUTPUT_INIT_RANDOM; init <= HMM.OUTPUT_INIT_SEGMENTAL; init++)
+		{
+			HMM hmm = new HMM();
+			hmm.setNumStates(2);
+			hmm.setOutputInitialization(new SelectedTag(init, HMM.TAGS_OUTPUT_INITIALIZATION));
+			hmm.buildClassifier(train);
+			iterations[init] = hmm.getNumIterations();
+
+			Evaluation eval = new Evaluation(train);
+			eval.evaluateModel(hmm, test);
+			double errorRate = eval.errorRate();
+			if (printErrorRates)
+				System.out.println("Output initialization " + init + " error rate " + errorRate
+						+ " after " + iterations[init] + " EM steps");
+			assertTrue("error rate " + errorRate, errorRate < 0.1);
+		}
+		
+		// starting from the data should not take more EM steps than random outputs
+		assertTrue("EM steps " + Arrays.toString(iterations), iterations[HMM.OUTPUT_INIT_HISTOGRAM] <= iterations[HMM.OUTPUT_INIT_RANDOM]);
+		assertTrue("EM steps " + Arrays.toString(iterations), iterations[HMM.OUTPUT_INIT_SEGMENTAL] <= iterations[HMM.OUTPUT_INIT_RANDOM]);
+	}
+
+	@Test
+	public void TestDeduplication() throws Exception
+	{
+		// every sequence appears at least three times
+		Instances train = getSequence3(50, 30);
+		Instances repeated = new Instances(train);
+		for (int n = 0; n < 2; n++)
+			for (int i = 0; i < train.numInstances(); i++)
+				repeated.add(train.instance(i));
+
+		HMM merged = new HMM();
+		merged.setNumStates(3);
+		merged.buildClassifier(repeated);
+		assertEquals(merged.deduplicateSequences(train).numInstances(), merged.deduplicateSequences(repeated).numInstances());
+		assertEquals(repeated.numInstances(), merged.deduplicateSequences(repeated).sumOfWeights(), 0.0);
+		assertEquals(repeated.numInstances() - merged.deduplicateSequences(repeated).numInstances(), merged.getNumMergedSequences());
+
+		HMM full = new HMM();
+		full.setNumStates(3);
+		full.setDeduplicateSequences(false);
+		full.buildClassifier(repeated);
+		assertEquals(0, full.getNumMergedSequences());
+
+		// the weighted counts only differ from the repeated ones by rounding
+		for (int i = 0; i < train.numInstances(); i++)
+			assertArrayEquals(full.distributionForInstance(train.instance(i)),
+					merged.distributionForInstance(train.instance(i)), 1.0E-6);
+	}
+
+	@Test
+	public void TestBatchPrediction() throws Exception
+	{
+		Instances train = getSequence3(100, 50);
+
+		HMM hmm = new HMM();
+		hmm.setNumStates(3);
+		hmm.buildClassifier(train);
+
+		// the test sequences and the first halves of them share prefixes
+		Instances test = getSequence3(20, 50);
+		int numSequences = test.numInstances();
+		for (int i = 0; i < numSequences; i++)
+		{
+			Instances seq = test.instance(i).relationalValue(2);
+			Instances prefix = new Instances(seq, 0, seq.numInstances()/2);
+			test.add(test.instance(i));
+			test.lastInstance().setValue(2, test.attribute(2).addRelation(prefix));
+		}
+
+		for (int scoring = HMM.BATCH_TRIE; scoring <= HMM.BATCH_LANES; scoring++)
+		{
+			hmm.setBatchScoring(new SelectedTag(scoring, HMM.TAGS_BATCH_SCORING));
+			double batch[][] = hmm.distributionsForInstances(test);
+			for (int i = 0; i < test.numInstances(); i++)
+				assertArrayEquals(hmm.distributionForInstance(test.instance(i)), batch[i], 1.0E-8);
+		}
+	}
+
+	@Test
+	public void TestMatrixKernels() throws Exception
+	{
+		// sizes either side of the unrolled kernels, with odd remainders
+		for (int N = 3; N <= 13; N += 5)
+		{
+			double T[] = new double[N*N];
+			double v[] = new double[N];
+			for (int i = 0; i < T.length; i++)
+				T[i] = m_rand.nextDouble();
+			for (int i = 0; i < N; i++)
+				v[i] = m_rand.nextDouble();
+
+			double vT[] = new double[N];
+			double Tv[] = new double[N];
+			ForwardSteps.vectorTimesMatrix(v, T, vT);
+			ForwardSteps.matrixTimesVector(T, v, Tv);
+			for (int i = 0; i < N; i++)
+			{
+				double expectedVT = 0.0;
+				double expectedTV = 0.0;
+				for (int j = 0; j < N; j++)
+				{
+					expectedVT += v[j]*T[j*N + i];
+					expectedTV += T[i*N + j]*v[j];
+				}
+				assertEquals(expectedVT, vT[i], 1.0E-12);
+				assertEquals(expectedTV, Tv[i], 1.0E-12);
+			}
+		}
+	}
+
+	@Test
+	public void TestParallelForward() throws Exception
+	{
+		Instances train = getSequence2(1, 200);
+		Instances seq = train.instance(0).relationalValue(2);
+		int N = 300;
+		int M = seq.attribute(0).numValues();
+		
+		DiscreteHMMEstimator est = new DiscreteHMMEstimator(N, M, false);
+		for (int s = 0; s < N; s++)
+		{
+			est.addValue0(s, m_rand.nextInt(M), m_rand.nextDouble());
+			for (int ps = 0; ps < N; ps++)
+				est.addValue(ps, s, m_rand.nextInt(M), m_rand.nextDouble());
+		}
+		
+		HMM hmm = new HMM();
+		hmm.setNumStates(N);
+		double serialAlpha[][] = new double[seq.numInstances()][N];
+		double parallelAlpha[][] = new double[seq.numInstances()][N];
+		double serial = hmm.likelihoodFromScales(hmm.forwardDiscrete(est, seq, serialAlpha));
+		double parallel = hmm.likelihoodFromScales(hmm.forwardParallel(est, seq, parallelAlpha, 4));
+		assertEquals(serial, parallel, 1.0E-9*Math.abs(serial));
+		for (int t = 0; t < seq.numInstances(); t += 50)
+			for (int s = 0; s < N; s++)
+				assertEquals(serialAlpha[t][s], parallelAlpha[t][s], 1.0E-9);
+	}
+	
+	@Test
+	public void TestParallelForwardConcurrent() throws Exception
+	{
+		Instances train = getSequence2(1, 200);
+		final Instances seq = train.instance(0).relationalValue(2);
+		final int N = 300;
+		int M = seq.attribute(0).numValues();
+		
+		final DiscreteHMMEstimator est = new DiscreteHMMEstimator(N, M, false);
+		for (int s = 0; s < N; s++)
+		{
+			est.addValue0(s, m_rand.nextInt(M), m_rand.nextDouble());
+			for (int ps = 0; ps < N; ps++)
+				est.addValue(ps, s, m_rand.nextInt(M), m_rand.nextDouble());
+		}
+		
+		// several threads running parallel passes on one model at once
+		final HMM hmm = new HMM();
+		hmm.setNumStates(N);
+		final double serial = hmm.likelihoodFromScales(hmm.forwardDiscrete(est, seq, new double[seq.numInstances()][N]));
+		final int numCallers = 4;
+		final double results[][] = new double[numCallers][20];
+		final Exception failures[] = new Exception[numCallers];
+		Thread callers[] = new Thread[numCallers];
+		for (int c = 0; c < numCallers; c++)
+		{
+			final int caller = c;
+			callers[c] = new Thread() {
+				public void run() {
+					try
+					{
+						for (int i = 0; i < results[caller].length; i++)
+							results[caller][i] = hmm.likelihoodFromScales(
+									hmm.forwardParallel(est, seq, new double[seq.numInstances()][N], 3));
+					}
+					catch (Exception e)
+					{
+						failures[caller] = e;
+					}
+				}
+			};
+			callers[c].setDaemon(true);
+			callers[c].start();
+		}
+		for (int c = 0; c < numCallers; c++)
+		{
+			callers[c].join(60000);
+			assertFalse("parallel forward passes deadlocked", callers[c].isAlive());
+			assertNull(failures[c]);
+			for (int i = 0; i < results[c].length; i++)
+				assertEquals(serial, results[c][i], 1.0E-9*Math.abs(serial));
+		}
+		
+		// a worker that fails stops the pass rather than leaving the others waiting
+		DiscreteHMMEstimator failing = new DiscreteHMMEstimator(est) {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			public double getOutputProbability(int state, int output) {
+				if (state == N - 1)
+					throw new IllegalStateException("failed");
+				return super.getOutputProbability(state, output);
+			}
+		};
+		try
+		{
+			hmm.forwardParallel(failing, seq, new double[seq.numInstances()][N], 3);
+			fail("the failure was not passed on");
+		}
+		catch (IllegalStateException e)
+		{
+		}
+	}
+	
+	@Test
+	public void TestForwardScan() throws Exception
+	{
+		Instances train = getSequence2(3, 2000);
+		
+		HMM hmm = new HMM();
+		hmm.setNumStates(3);
+		hmm.buildClassifier(train);
+		
+		for (int i = 0; i < train.numInstances(); i++)
+		{
+			Instances seq = hmm.getSequence(train.instance(i));
+			for (int c = 0; c < hmm.estimators.length; c++)
+			{
+				DiscreteHMMEstimator est = (DiscreteHMMEstimator)hmm.estimators[c];
+				double serial = hmm.forward(est, seq);
+				for (int numChunks = 1; numChunks <= 7; numChunks += 3)
+				{
+					double scan = hmm.forwardScan(est, seq, numChunks);
+					assertEquals(serial, scan, 1.0E-9*Math.abs(serial));
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void TestSmallStateKernelSelection() throws Exception
+	{
+		// sticky states give runs of the same symbol
+		Instances train = getSequence2(20, 300);
+		final int calls[] = new int[2];
+		HMM hmm = new HMM() {
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected double forwardScan(DiscreteHMMEstimator hmm, Instances sequence, int numChunks) throws Exception {
+				calls[0]++;
+				return super.forwardScan(hmm, sequence, numChunks);
+			}
+			
+			@Override
+			protected double forwardRunLength(DiscreteHMMEstimator hmm, Instances sequence) throws Exception {
+				calls[1]++;
+				return super.forwardRunLength(hmm, sequence);
+			}
+		};
+		hmm.setNumStates(3);
+		hmm.buildClassifier(train);
+		assertNotNull(hmm.m_SmallEstimators);
+		
+		// long runs are scored with matrix powers rather than unrolled
+		Arrays.fill(calls, 0);
+		for (int i = 0; i < train.numInstances(); i++)
+			hmm.distributionForInstance(train.instance(i));
+		assertEquals(train.numInstances()*hmm.estimators.length, calls[1]);
+		
+		// sequences without runs use the unrolled estimators
+		Instances alternating = new Instances(train, 0, 1);
+		Instances seq = alternating.instance(0).relationalValue(2);
+		for (int t = 0; t < seq.numInstances(); t++)
+			seq.instance(t).setValue(0, t % 2);
+		Arrays.fill(calls, 0);
+		hmm.distributionForInstance(alternating.instance(0));
+		assertEquals(0, calls[1]);
+		
+		// long sequences are split over time when there are threads for it
+		hmm.setNumExecutionSlots(2);
+		hmm.setScanMinLength(100);
+		Arrays.fill(calls, 0);
+		double dist[] = hmm.distributionForInstance(train.instance(0));
+		assertEquals(hmm.estimators.length, calls[0]);
+		hmm.setNumExecutionSlots(1);
+		assertArrayEquals(hmm.distributionForInstance(train.instance(0)), dist, 1.0E-9);
+	}
+	
+	@Test
+	public void TestSmallStateKernels() throws Exception
+	{
+		Instances train = getSequence2(1, 100);
+		Instances seq = train.instance(0).relationalValue(2);
+		int M = seq.attribute(0).numValues();
+		
+		for (int N = SmallDiscreteHMM.MIN_STATES; N <= SmallDiscreteHMM.MAX_STATES + 1; N++)
+		{
+			DiscreteHMMEstimator est = new DiscreteHMMEstimator(N, M, false);
+			for (int s = 0; s < N; s++)
+			{
+				est.addValue0(s, m_rand.nextInt(M), m_rand.nextDouble());
+				for (int ps = 0; ps < N; ps++)
+					est.addValue(ps, s, m_rand.nextInt(M), m_rand.nextDouble());
+			}
+			
+			SmallDiscreteHMM kernel = SmallDiscreteHMM.create(est);
+			if (N > SmallDiscreteHMM.MAX_STATES)
+			{
+				assertNull(kernel);
+				continue;
+			}
+			assertEquals(N, kernel.getNumStates());
+			
+			HMM hmm = new HMM();
+			hmm.setNumStates(N);
+			double alpha[][] = new double[seq.numInstances()][N];
+			double expected = hmm.likelihoodFromScales(hmm.forwardDiscrete(est, seq, alpha));
+			assertEquals(expected, kernel.logLikelihood(seq), 1.0E-9*Math.abs(expected));
+		}
+	}
+	
+	@Test
+	public void TestSinglePrecision() throws Exception
+	{
+		Instances train = getSequence3(100, 100);
+		
+		HMM hmm = new HMM();
+		hmm.setNumStates(3);
+		hmm.buildClassifier(train);
+		
+		// likelihoods and E step counts agree with double precision
+		for (int c = 0; c < hmm.estimators.length; c++)
+		{
+			DiscreteHMMEstimator est = (DiscreteHMMEstimator)hmm.estimators[c];
+			FloatDiscreteHMM single = new FloatDiscreteHMM(est);
+			DiscreteHMMEstimator doubleCounts = hmm.newDiscreteEstimator();
+			DiscreteHMMEstimator floatCounts = hmm.newDiscreteEstimator();
+			for (int i = 0; i < 10; i++)
+			{
+				Instances seq = hmm.getSequence(train.instance(i));
+				double exact = hmm.forward(est, seq);
+				assertEquals(exact, single.logLikelihood(seq), 1.0E-5*Math.abs(exact));
+				assertEquals(hmm.expectation(est, seq, doubleCounts, 1.0), 
+						hmm.expectationFloat(single, seq, floatCounts, 1.0), 1.0E-5*Math.abs(exact));
+			}
+			for (int s = 0; s < 3; s++)
+			{
+				assertEquals(doubleCounts.getState0Probability(s), floatCounts.getState0Probability(s), 1.0E-5);
+				for (int ps = 0; ps < 3; ps++)
+					assertEquals(doubleCounts.getTransitionProbability(ps, s), floatCounts.getTransitionProbability(ps, s), 1.0E-5);
+				for (int o = 0; o < hmm.getNumOutputs(); o++)
+					assertEquals(doubleCounts.getOutputProbability(s, o), floatCounts.getOutputProbability(s, o), 1.0E-5);
+			}
+		}
+		
+		// training and classification in single precision
+		Instances test = getSequence3(20, 100);
+		hmm.setSinglePrecision(true);
+		hmm.buildClassifier(train);
+		assertNotNull(hmm.m_FloatEstimators);
+		
+		// batches, as scored by Evaluation, use the single precision estimators too
+		double batch[][] = hmm.distributionsForInstances(test);
+		for (int i = 0; i < test.numInstances(); i++)
+		{
+			Instances seq = hmm.getSequence(test.instance(i));
+			double single[] = new double[hmm.estimators.length];
+			double sum = 0.0;
+			for (int c = 0; c < single.length; c++)
+			{
+				single[c] = Math.exp(hmm.m_FloatEstimators[c].logLikelihood(seq));
+				sum += single[c];
+			}
+			if (Math.abs(sum) > 0.0000001)
+				for (int c = 0; c < single.length; c++)
+					single[c] /= sum;
+			assertArrayEquals(single, batch[i], 0.0);
+			assertArrayEquals(hmm.distributionForInstance(test.instance(i)), batch[i], 0.0);
+		}
+		Evaluation eval = new Evaluation(train);
+		eval.evaluateModel(hmm, test);
+		double errorRate = eval.errorRate();
+		if (printErrorRates)
+			System.out.println("Test single precision error rate " + errorRate);
+		assertTrue("error rate " + errorRate, errorRate < 0.1);
+	}
+	
+	@Test
+	public void TestAutoTune() throws Exception
+	{
+		Instances train = getSequence2(50, 100);
+		Instances test = getSequence2(20, 100);
+		File profile = File.createTempFile("hmm-kernels", ".props");
+		profile.delete();
+		
+		HMM plain = new HMM();
+		plain.setNumStates(3);
+		plain.buildClassifier(train);
+		
+		HMM tuned = new HMM();
+		tuned.setNumStates(3);
+		tuned.setAutoTune(true);
+		tuned.setTuningProfile(profile.getPath());
+		tuned.buildClassifier(train);
+		assertTrue(profile.exists());
+		assertTrue(tuned.getScoringKernel().getSelectedTag().getID() != HMM.SCORING_DEFAULT);
+		for (int i = 0; i < test.numInstances(); i++)
+		{
+			double expected[] = plain.distributionForInstance(test.instance(i));
+			double actual[] = tuned.distributionForInstance(test.instance(i));
+			for (int j = 0; j < expected.length; j++)
+				assertEquals(expected[j], actual[j], 1.0E-6);
+		}
+		
+		// a recorded choice is used without benchmarking
+		weka.classifiers.bayes.hmm.KernelProfile kernels = new weka.classifiers.bayes.hmm.KernelProfile(profile);
+		String shape = tuned.getKernelShape(100);
+		assertNotNull(kernels.get(shape));
+		kernels.put(shape, "STEPWISE,LANES");
+		kernels.save();
+		
+		HMM reloaded = new HMM();
+		reloaded.setNumStates(3);
+		reloaded.setAutoTune(true);
+		reloaded.setTuningProfile(profile.getPath());
+		reloaded.buildClassifier(train);
+		assertEquals(HMM.SCORING_STEPWISE, reloaded.getScoringKernel().getSelectedTag().getID());
+		assertEquals(HMM.BATCH_LANES, reloaded.getBatchScoring().getSelectedTag().getID());
+		profile.delete();
+	}
+	
+	@Test
+	public void TestApproximateMath() throws Exception
+	{
+		Instances uv = getUVSequence1(50, 100);
+		Instances mv = getMVSequence2(50, 100);
+		Instances datasets[] = {uv, mv};
+		for (int d = 0; d < datasets.length; d++)
+		{
+			Instances train = datasets[d];
+			HMM hmm = new HMM();
+			hmm.setNumStates(2);
+			hmm.buildClassifier(train);
+			
+			// log likelihoods are within the error bounds of exp and log per frame
+			for (int c = 0; c < hmm.estimators.length; c++)
+			{
+				MultivariateNormalHMMEstimator est = (MultivariateNormalHMMEstimator)hmm.estimators[c];
+				for (int i = 0; i < 10; i++)
+				{
+					Instances seq = hmm.getSequence(train.instance(i));
+					est.setApproximateMath(false);
+					hmm.setApproximateMath(false);
+					double exact = hmm.forward(est, seq);
+					est.setApproximateMath(true);
+					hmm.setApproximateMath(true);
+					double approx = hmm.forward(est, seq);
+					assertEquals(exact, approx, seq.numInstances()*2.0E-8);
+				}
+				est.setApproximateMath(false);
+			}
+			
+			// training with approximate math gives the same classifications
+			HMM approxHmm = new HMM();
+			approxHmm.setOptions(new String[] {"-approximate-math"});
+			approxHmm.setNumStates(2);
+			approxHmm.buildClassifier(train);
+			assertTrue(approxHmm.isApproximateMath());
+			assertTrue(((MultivariateNormalHMMEstimator)approxHmm.estimators[0]).isApproximateMath());
+			hmm.setApproximateMath(false);
+			for (int i = 0; i < train.numInstances(); i++)
+			{
+				double exact[] = hmm.distributionForInstance(train.instance(i));
+				double approx[] = approxHmm.distributionForInstance(train.instance(i));
+				assertEquals(Utils.maxIndex(exact), Utils.maxIndex(approx));
+			}
+		}
+	}
+	
+	@Test
+	public void TestEmissionCache() throws Exception
+	{
+		// readings quantized to a coarse grid so that frames recur
+		Instances train = getMVSequence2(50, 100);
+		for (int i = 0; i < train.numInstances(); i++)
+			for (int a = 0; a < train.numAttributes(); a++)
+				if (train.attribute(a).isRelationValued())
+				{
+					Instances seq = train.instance(i).relationalValue(a);
+					for (int t = 0; t < seq.numInstances(); t++)
+						for (int d = 0; d < seq.numAttributes(); d++)
+							seq.instance(t).setValue(d, Math.round(seq.instance(t).value(d)));
+				}
+		
+		HMM hmm = new HMM();
+		hmm.setNumStates(2);
+		hmm.buildClassifier(train);
+		
+		HMM cached = new HMM();
+		cached.setOptions(new String[] {"-emission-cache", "4096"});
+		cached.setNumStates(2);
+		cached.buildClassifier(train);
+		assertEquals(4096, cached.getEmissionCacheSize());
+		assertEquals(0.0, cached.getEmissionCacheHitRate(), 0.0);
+		
+		for (int pass = 0; pass < 2; pass++)
+			for (int i = 0; i < train.numInstances(); i++)
+				assertArrayEquals(hmm.distributionForInstance(train.instance(i)), 
+						cached.distributionForInstance(train.instance(i)), 0.0);
+		double hitRate = cached.getEmissionCacheHitRate();
+		if (printErrorRates)
+			System.out.println("Test emission cache hit rate " + hitRate);
+		assertTrue("hit rate " + hitRate, hitRate > 0.5);
+		
+		// the cache is bounded
+		cached.setEmissionCacheSize(2);
+		cached.buildClassifier(train);
+		for (int i = 0; i < train.numInstances(); i++)
+			cached.distributionForInstance(train.instance(i));
+		assertTrue(cached.m_EmissionCache.size() <= 2);
+		assertTrue(cached.getEmissionCacheHitRate() < hitRate);
+	}
+	
+	@Test
+	public void TestRunLengthForward() throws Exception
+	{
+		// sticky states with deterministic outputs give long runs
+		Instances train = getSequence2(50, 300);
+		
+		HMM hmm = new HMM();
+		hmm.setNumStates(2);
+		hmm.buildClassifier(train);
+		
+		for (int i = 0; i < train.numInstances(); i++)
+		{
+			Instances seq = hmm.getSequence(train.instance(i));
+			for (int c = 0; c < hmm.estimators.length; c++)
+			{
+				HMMEstimator est = hmm.estimators[c];
+				double alpha[][] = new double[seq.numInstances()][2];
+				double stepwise = hmm.likelihoodFromScales(hmm.forward(est, seq, alpha));
+				double runLength = hmm.forward(est, seq);
+				assertEquals(stepwise, runLength, 1.0E-8*Math.abs(stepwise));
+			}
+		}
+	}
+	
+	@Test
+	public void TestSparseOutputs() throws Exception
+	{
+		Instances train = getSequence1(100, 100);
+		Instances test = getSequence1(20, 100);
+		
+		HMM hmm = new HMM();
+		
+		hmm.setNumStates(2);
+		hmm.setSparseOutputs(true);
+		
+		hmm.buildClassifier(train);
+		
+		Evaluation eval = new Evaluation(train);
+		eval.evaluateModel(hmm, test);
+		double errorRate = eval.errorRate();
+		if (printErrorRates)
+			System.out.println("Test sparse outputs error rate " + errorRate);
+		assertTrue("error rate " + errorRate, errorRate < 0.1);
+		
+		Instances samples = hmm.sample(2, 10);
+		assertEquals(10, samples.instance(0).relationalValue(2).numInstances());
+	}
+	
+	@Test
+	public void TestQuantizedOutputs() throws Exception
+	{
+		Instances train = getSequence3(100, 100);
+		
+		HMM hmm = new HMM();
+		hmm.setNumStates(3);
+		hmm.buildClassifier(train);
+		
+		for (int bits = 8; bits <= 16; bits += 8)
+		{
+			double maxError = 0.0;
+			for (int c = 0; c < hmm.estimators.length; c++)
+			{
+				DiscreteHMMEstimator est = (DiscreteHMMEstimator)hmm.estimators[c];
+				QuantizedDiscreteHMM quantized = new QuantizedDiscreteHMM(est, bits);
+				for (int i = 0; i < train.numInstances(); i++)
+				{
+					Instances seq = hmm.getSequence(train.instance(i));
+					double exact = hmm.forward(est, seq);
+					double approx = quantized.logLikelihood(seq);
+					maxError = Math.max(maxError, Math.abs(exact - approx)/Math.abs(exact));
+				}
+			}
+			if (printErrorRates)
+				System.out.println(bits + " bit quantized outputs relative log likelihood error " + maxError);
+			assertTrue("relative error " + maxError, maxError < (bits == 8 ? 0.05 : 0.001));
+		}
+		
+		// classification with quantized outputs
+		Instances test = getSequence3(20, 100);
+		hmm.setOutputQuantizationBits(8);
+		hmm.buildClassifier(train);
+		Evaluation eval = new Evaluation(train);
+		eval.evaluateModel(hmm, test);
+		double errorRate = eval.errorRate();
+		if (printErrorRates)
+			System.out.println("Test quantized outputs error rate " + errorRate);
+		assertTrue("error rate " + errorRate, errorRate < 0.1);
+	}
+	
+	@Test
+	public void TestProjection() throws Exception
+	{
+		Instances train = getMVSequence2(200, 100);
+		Instances test = getMVSequence2(100, 100);
+		
+		for (int type = SequenceProjection.PROJECTION_PCA; type <= SequenceProjection.PROJECTION_RANDOM; type++)
+		{
+			HMM hmm = new HMM();
+			
+			hmm.setNumStates(2);
+			hmm.setProjectionDimension(2);
+			hmm.setProjectionType(new SelectedTag(type, HMM.TAGS_PROJECTION_TYPE));
+			
+			hmm.buildClassifier(train);
+			assertEquals(2, hmm.getOutputDimension());
+			
+			Evaluation eval = new Evaluation(train);
+			eval.evaluateModel(hmm, test);
+			double errorRate = eval.errorRate();
+			if (printErrorRates)
+				System.out.println("Test Projection " + type + " error rate " + errorRate);
+			assertTrue("error rate " + errorRate, errorRate < 0.25);
+			
+			// samples are mapped back to the original outputs
+			Instances samples = hmm.sample(2, 10);
+			assertEquals(4, samples.instance(0).relationalValue(2).numAttributes());
+		}
+	}
+	
+	@Test
+	public void TestVectorQuantized() throws Exception
+	{
+		Instances train = getMVSequence2(200, 100);
+		Instances test = getMVSequence2(100, 100);
+		
+		HMM hmm = new HMM();
+		
+		hmm.setNumStates(2);
+		hmm.setOutputModel(new SelectedTag(HMM.OUTPUT_VECTOR_QUANTIZED, HMM.TAGS_OUTPUT_MODEL));
+		hmm.setNumCodewords(4);
+		
+		hmm.buildClassifier(train);
+		
+		Evaluation eval = new Evaluation(train);
+		eval.evaluateModel(hmm, test);
+		double errorRate = eval.errorRate();
+		if (printErrorRates)
+			System.out.println("Test VQ error rate " + errorRate);
+		assertTrue("error rate " + errorRate, errorRate < 0.25);
+		
+		// samples are codewords in the original output space
+		Instances samples = hmm.sample(2, 10);
+		assertEquals(4, samples.instance(0).relationalValue(2).numAttributes());
+	}
+	
+	@Test
+	public void TestCodebookScales() throws Exception
+	{
+		// attributes on very different scales
+		Instances train = getMVSequence2(20, 50);
+		int seqAttr = -1;
+		for (int a = 0; a < train.numAttributes(); a++)
+			if (train.attribute(a).isRelationValued())
+				seqAttr = a;
+		for (int i = 0; i < train.numInstances(); i++)
+		{
+			Instances seq = train.instance(i).relationalValue(seqAttr);
+			for (int t = 0; t < seq.numInstances(); t++)
+				seq.instance(t).setValue(0, seq.instance(t).value(0)*1000);
+		}
+		
+		Codebook codebook = new Codebook();
+		codebook.build(train, seqAttr, 4);
+		
+		// frames are quantized to the codewords k-means assigned them to
+		double counts[] = new double[codebook.getNumCodewords()];
+		for (int i = 0; i < train.numInstances(); i++)
+		{
+			Instances seq = train.instance(i).relationalValue(seqAttr);
+			for (int t = 0; t < seq.numInstances(); t++)
+				counts[codebook.quantize(seq.instance(t))]++;
+		}
+		for (int c = 0; c < counts.length; c++)
+			assertEquals(codebook.getClusterSize(c), counts[c], 0.0);
+	}
+	
+	@Test
+	public void TestSemiContinuous() throws Exception
+	{
+		Instances train = getMVSequence2(200, 100);
+		Instances test = getMVSequence2(100, 100);
+		
+		HMM hmm = new HMM();
+		
+		hmm.setNumStates(2);
+		hmm.setOutputModel(new SelectedTag(HMM.OUTPUT_SEMI_CONTINUOUS, HMM.TAGS_OUTPUT_MODEL));
+		hmm.setNumCodewords(4);
+		
+		hmm.buildClassifier(train);
+		
+		Evaluation eval = new Evaluation(train);
+		eval.evaluateModel(hmm, test);
+		double errorRate = eval.errorRate();
+		if (printErrorRates)
+			System.out.println("Test semi-continuous error rate " + errorRate);
+		assertTrue("error rate " + errorRate, errorRate < 0.25);
+		
+		// samples are drawn from the shared gaussians in the original output space
+		Instances samples = hmm.sample(2, 10);
+		assertEquals(4, samples.instance(0).relationalValue(2).numAttributes());
+	}
+	
 	@Test
 	public void TestMultiVariateNormalEstimator() throws Exception
 	{
@@ -232,4 +232,67 @@ public class TestMultivariateNormalEstimator {
 	}
 
 
+	/**
+	 * Test method for {@link weka.estimators.ApproximateMath#exp(double)}.
+	 */
+	@Test
+	public void testApproximateExp() {
+		java.util.Random rand = new java.util.Random(1);
+		for (int i = 0; i < 200000; i++)
+		{
+			double x = -708 + rand.nextDouble()*1416;
+			if (i % 2 == 0)
+				x = x/100;
+			double exact = Math.exp(x);
+			assertEquals(1.0, ApproximateMath.exp(x)/exact, ApproximateMath.EXP_RELATIVE_ERROR);
+		}
+		assertEquals(1.0, ApproximateMath.exp(0.0), 0.0);
+		assertEquals(0.0, ApproximateMath.exp(-1000.0), 0.0);
+		assertEquals(0.0, ApproximateMath.exp(Double.NEGATIVE_INFINITY), 0.0);
+		assertTrue(Double.isInfinite(ApproximateMath.exp(1000.0)));
+		assertTrue(Double.isNaN(ApproximateMath.exp(Double.NaN)));
+	}
+
+	/**
+	 * Test method for {@link weka.estimators.ApproximateMath#log(double)}.
+	 */
+	@Test
+	public void testApproximateLog() {
+		java.util.Random rand = new java.util.Random(2);
+		for (int i = 0; i < 200000; i++)
+		{
+			double x = Math.pow(10, -300 + rand.nextDouble()*600);
+			if (i % 2 == 0)
+				x = rand.nextDouble()*4;
+			assertEquals(Math.log(x), ApproximateMath.log(x), ApproximateMath.LOG_ABSOLUTE_ERROR);
+		}
+		assertEquals(0.0, ApproximateMath.log(1.0), 0.0);
+		assertEquals(Math.log(Double.MIN_VALUE), ApproximateMath.log(Double.MIN_VALUE), 0.0);
+		assertTrue(Double.isInfinite(ApproximateMath.log(0.0)));
+		assertTrue(Double.isNaN(ApproximateMath.log(-1.0)));
+	}
+
+	/**
+	 * Test method for {@link weka.estimators.MultivariateNormalEstimator#setApproximateMath(boolean)}.
+	 * @throws Exception 
+	 */
+	@Test
+	public void testGetProbabilityApproximate() throws Exception {
+		MultivariateNormalEstimator exact = new MultivariateNormalEstimator();
+		for (int i = 0; i < 50; i++)
+			exact.addValue(DoubleVector.random(6), 1.0);
+		exact.calculateParameters();
+		
+		MultivariateNormalEstimator approx = new MultivariateNormalEstimator(exact);
+		approx.setApproximateMath(true);
+		assertTrue(new MultivariateNormalEstimator(approx).isApproximateMath());
+		
+		for (int i = 0; i < 100; i++)
+		{
+			DoubleVector v = DoubleVector.random(6);
+			double p = exact.getProbability(v);
+			assertEquals(p, approx.getProbability(v), p*ApproximateMath.EXP_RELATIVE_ERROR);
+		}
+	}
+
 }